@@ -0,0 +1,173 @@
+package org.sil.bloom.reader;
+
+import android.content.Context;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Keeps a single copy of each of the larger files that books have in common (fonts, branding
+// images, activity scripts, the same narration intro...). When a file is extracted into a book's
+// BookCache folder, it goes into the store first and the book's folder gets a hard link to it;
+// the next book with the same file just gets another link, and nothing is written at all.
+// Files are identified as the zip central directory does: by CRC32 and size, to which we add
+// the file's own name, since among the many thousands of files in a big library two different
+// ones could well have the same CRC and size. Since the files are shared, they are made
+// read-only. A stored file no book folder links to any more is thrown away by pruneUnused(),
+// which the BookCache asks for (through pruneUnusedSoon()) whenever it evicts a book.
+// getStats() (shown by a debugging item in the main menu) tells how much all this is saving.
+public class AssetStore {
+    private static final String STORE_FOLDER = "assetStore";
+    // Smaller files aren't worth the trouble, and the ones that are different in every book
+    // (the html, meta.json...) are mostly small too.
+    static final long MIN_SHARED_SIZE = 16 * 1024;
+
+    private static AssetStore sInstance;
+
+    private final File mRoot;
+    // Since the app started.
+    private final AtomicInteger mFilesReused = new AtomicInteger();
+    private final AtomicLong mBytesNotWritten = new AtomicLong();
+    // Pruning lists and stats the whole store, so it is done in the background, one at a time.
+    private final ExecutorService mPruner = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean mPrunePending = new AtomicBoolean();
+
+    public static synchronized AssetStore getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new AssetStore(context.getDir(STORE_FOLDER, Context.MODE_PRIVATE));
+        return sInstance;
+    }
+
+    private AssetStore(File root) {
+        mRoot = root;
+    }
+
+    public static boolean isWorthSharing(long size) {
+        return size >= MIN_SHARED_SIZE;
+    }
+
+    private File getStoredFile(String name, long crc, long size) {
+        String baseName = new File(name).getName();
+        return new File(mRoot, Long.toHexString(crc) + "-" + Long.toHexString(size) + "-"
+                + Integer.toHexString(baseName.hashCode()));
+    }
+
+    // If we have this file already, make output a link to it and return true.
+    public boolean linkExisting(String name, long crc, long size, File output) {
+        File stored = getStoredFile(name, crc, size);
+        if (!stored.exists() || !link(stored, output))
+            return false;
+        mFilesReused.incrementAndGet();
+        mBytesNotWritten.addAndGet(size);
+        return true;
+    }
+
+    // extracted is the file, just extracted (and checked against crc). Put it in the store and
+    // make output a link to it. Returns false (leaving extracted where it is) if that can't be
+    // done, in which case the caller should just use the file as it is.
+    public boolean add(File extracted, String name, long crc, long size, File output) {
+        File stored = getStoredFile(name, crc, size);
+        // Another book may have beaten us to it.
+        if (linkExisting(name, crc, size, output)) {
+            extracted.delete();
+            return true;
+        }
+        extracted.setReadOnly();
+        // Link output first, so the file never sits in the store with nothing using it, where
+        // pruneUnused() would take it.
+        if (!link(extracted, output))
+            return false;
+        if (!extracted.renameTo(stored)) {
+            // We still have the output; it just isn't shared.
+            extracted.delete();
+        }
+        return true;
+    }
+
+    private static boolean link(File existing, File output) {
+        try {
+            output.getParentFile().mkdirs();
+            Os.link(existing.getPath(), output.getPath());
+            return true;
+        } catch (ErrnoException e) {
+            // Most likely another thread has just extracted the same file to output, or
+            // pruneUnused() has just removed existing.
+            return output.exists();
+        }
+    }
+
+    // Arrange for pruneUnused() to run soon on a background thread. A request made while one is
+    // still waiting to run is covered by that one, so a burst of evictions costs a single prune.
+    public void pruneUnusedSoon() {
+        if (!mPrunePending.compareAndSet(false, true))
+            return;
+        mPruner.execute(() -> {
+            mPrunePending.set(false);
+            pruneUnused();
+        });
+    }
+
+    // Remove stored files that no book folder uses any more.
+    public synchronized void pruneUnused() {
+        File[] files = mRoot.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            if (getLinkCount(file) <= 1)
+                file.delete();
+        }
+        Log.i("AssetStore", getStats().toString());
+    }
+
+    private static long getLinkCount(File file) {
+        try {
+            return Os.stat(file.getPath()).st_nlink;
+        } catch (ErrnoException e) {
+            return 0;
+        }
+    }
+
+    public static class Stats {
+        // What is in the store now.
+        public int files;
+        public long bytes;
+        // How much more space the BookCache would be using now if book folders had their own
+        // copies of those files.
+        public long bytesSaved;
+        // Since the app started, how many files book folders got from the store without
+        // extracting them, and the bytes that would otherwise have been written.
+        public int filesReused;
+        public long bytesNotWritten;
+
+        @Override
+        public String toString() {
+            return files + " shared files (" + bytes + " bytes) saving " + bytesSaved
+                    + " bytes; " + filesReused + " reused (" + bytesNotWritten + " bytes) this session";
+        }
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        File[] files = mRoot.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                long length = file.length();
+                // One link is the store's own; each other one is a book folder using the file.
+                long users = getLinkCount(file) - 1;
+                stats.files++;
+                stats.bytes += length;
+                if (users > 1)
+                    stats.bytesSaved += (users - 1) * length;
+            }
+        }
+        stats.filesReused = mFilesReused.get();
+        stats.bytesNotWritten = mBytesNotWritten.get();
+        return stats;
+    }
+}
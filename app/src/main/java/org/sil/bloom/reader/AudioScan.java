@@ -0,0 +1,73 @@
+package org.sil.bloom.reader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+// Works out whether a book has recorded narration while something else (typically the
+// validation in IOUtilities) is already going through its entries, so we don't have to open the
+// book again just for the speaker icon. A book has audio if it has files in an audio/ folder
+// and its html file marks some text as an audio sentence. The html is searched as it streams
+// past; it is never extracted or turned into a String.
+public class AudioScan {
+    static final String BOOK_AUDIO_MATCH = "audio-sentence";
+    private static final byte[] MARKER = BOOK_AUDIO_MATCH.getBytes(StandardCharsets.US_ASCII);
+
+    private boolean mAudioFolderFound;
+    private Boolean mMarkerFound; // null until we have searched the html
+
+    // Note each entry of the book as it is visited.
+    public void noteEntry(String name) {
+        if (name.startsWith("audio/") && !name.endsWith("/"))
+            mAudioFolderFound = true;
+    }
+
+    // Is it worth searching the html? (If there is no audio folder the answer is no anyway.)
+    public boolean needsHtml() {
+        return mAudioFolderFound && mMarkerFound == null;
+    }
+
+    // Search the content of the book's html file as it streams from the zip. The stream is not closed.
+    public void scanHtml(InputStream input) throws IOException {
+        mMarkerFound = streamContains(input, MARKER);
+    }
+
+    // Whether the book has audio, or null if we didn't get to see everything we needed to decide.
+    public Boolean getResult() {
+        if (!mAudioFolderFound)
+            return false;
+        return mMarkerFound;
+    }
+
+    // Does the stream contain the pattern? We read in large blocks, keeping the last few bytes of
+    // each block, so a match that spans two blocks is still found.
+    static boolean streamContains(InputStream input, byte[] pattern) throws IOException {
+        byte[] buffer = BufferPool.acquire();
+        try {
+            int kept = 0;
+            int count;
+            while ((count = input.read(buffer, kept, buffer.length - kept)) >= 0) {
+                int length = kept + count;
+                if (indexOf(buffer, length, pattern) >= 0)
+                    return true;
+                kept = Math.min(pattern.length - 1, length);
+                System.arraycopy(buffer, length - kept, buffer, 0, kept);
+            }
+            return false;
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    private static int indexOf(byte[] data, int length, byte[] pattern) {
+        outer:
+        for (int i = 0; i <= length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j])
+                    continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+}
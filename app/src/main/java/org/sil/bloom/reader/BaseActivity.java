@@ -295,7 +295,12 @@ public abstract class BaseActivity extends AppCompatActivity {
         SAFUtilities.searchDirectoryForBooks(context, dir, new BookSearchListener() {
             @Override
             public void onFoundBookOrShelf(File bloomPubFile, Uri bookOrShelfUri) {
-                long modified = IOUtilities.lastModified(context, bookOrShelfUri);
+                onFoundBookOrShelf(bloomPubFile, bookOrShelfUri, -1, -1);
+            }
+
+            @Override
+            public void onFoundBookOrShelf(File bloomPubFile, Uri bookOrShelfUri, long size, long lastModified) {
+                long modified = lastModified >= 0 ? lastModified : IOUtilities.lastModified(context, bookOrShelfUri);
                 if (modified > latestTime[0]) {
                     latestTime[0] = modified;
                     lastModFile[0] = bookOrShelfUri;
@@ -11,8 +11,12 @@ import org.json.JSONObject;
 import org.sil.bloom.reader.models.BookCollection;
 import org.sil.bloom.reader.models.BookOrShelf;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 public class BloomFileReader {
 
@@ -22,13 +26,15 @@ public class BloomFileReader {
     private File bookDirectory;
     private JSONObject metaProperties;
     private ZipFileOrUri fileOrUri;
+    // True if bookDirectory is this book's folder in the BookCache, which we must not empty.
+    private boolean usingBookCache;
 
-    private static final String CURRENT_BOOK_FOLDER = "currentbook";
     private static final String THUMBNAIL_NAME_1 = "thumbnail.png";
     private static final String THUMBNAIL_NAME_2 = "thumbnail.jpg";
     private static final String META_JSON_FILE = "meta.json";
-    private static final String BOOK_AUDIO_MATCH = "audio-sentence";
     private static final String AUDIO_FOLDER = "/audio/";
+    // hasAudioByExtracting() uses a folder shared by every reader, so only one may use it at a time.
+    private static final Object sAudioCheckLock = new Object();
 
     public BloomFileReader(Context context, String bloomFilePath){
         this(context, bloomFilePath, null);
@@ -55,6 +61,24 @@ public class BloomFileReader {
         return fileOrUri.tryGetFile(name);
     }
 
+    // The uncompressed size of the named entry in the book, or -1 if it isn't there or the book
+    // has already been extracted in full.
+    public long getEntrySize(String name) {
+        return fileOrUri.getEntrySize(name);
+    }
+
+    // Read the named entry without extracting it to the book folder. Returns null in the same
+    // cases as getEntrySize() returns -1.
+    public InputStream openEntryStream(String name) throws IOException {
+        return fileOrUri.openEntryStream(name);
+    }
+
+    // Where the named entry's bytes are in the book file, if it is stored uncompressed; see
+    // ZipFileOrUri.getStoredRange().
+    public ZipFileOrUri.StoredRange getStoredRange(String name) {
+        return fileOrUri.getStoredRange(name);
+    }
+
     public File getHtmlFile() throws IOException{
         initialize();
         File index = fileOrUri.tryGetFile("index.htm");
@@ -69,6 +93,29 @@ public class BloomFileReader {
         return currentFile; // pathological, but should work in most cases.
     }
 
+    // Get the book ready in the BookCache so that opening it later is nearly instant: extract
+    // the things the reader needs before it can show the first page (the html file, meta.json and
+    // the top level stylesheets). Everything else is streamed from the zip as it is wanted anyway.
+    // This is meant to run on a background thread; it stops early if the thread is interrupted.
+    public void prefetch() throws IOException {
+        try {
+            initialize();
+            if (fileOrUri == null)
+                return; // the "book" is already a directory
+            getHtmlFile();
+            fileOrUri.tryGetFile(META_JSON_FILE);
+            for (String name : fileOrUri.getEntryNames()) {
+                if (Thread.currentThread().isInterrupted())
+                    return;
+                if (name.endsWith(".css") && name.indexOf('/') < 0)
+                    fileOrUri.tryGetFile(name);
+            }
+        } finally {
+            if (fileOrUri != null)
+                closeFile();
+        }
+    }
+
     @Nullable // If no font file matches the give name
     public File getFontFile(String fontFileName) {
         try {
@@ -98,7 +145,63 @@ public class BloomFileReader {
         return IOUtilities.FileToString(file);
     }
 
+    // Normally the library records whether each book has audio while validating it (see
+    // AudioScan); this is for books it didn't manage to. We stream the html straight from the zip
+    // if we can, and only extract it if the zip is one ZipCentralDirectory can't read.
     public Boolean hasAudio() {
+        try {
+            Boolean result = scanForAudio();
+            if (result != null)
+                return result;
+        } catch (IOException | RuntimeException e) {
+            return false; // we're just trying to put audio icons on thumbnails
+        }
+        synchronized (sAudioCheckLock) {
+            return hasAudioByExtracting();
+        }
+    }
+
+    // Returns null if we can't read the book's central directory.
+    private Boolean scanForAudio() throws IOException {
+        ZipCentralDirectory directory = bookUri == null
+                ? ZipCentralDirectory.open(new File(bloomFilePath))
+                : ZipCentralDirectory.open(context, bookUri);
+        if (directory == null)
+            return null;
+        try {
+            String path = bloomFilePath == null ? bookUri.getPath() : bloomFilePath;
+            String nameFromZipFile = IOUtilities.stripBookFileExtension(new File(path).getName()) + ".htm";
+            AudioScan audio = new AudioScan();
+            ZipCentralDirectory.Entry html = null;
+            ZipCentralDirectory.Entry firstHtml = null;
+            // The same choice of html file as getHtmlFile() makes.
+            for (ZipCentralDirectory.Entry entry : directory.getEntries()) {
+                audio.noteEntry(entry.name);
+                if (entry.name.equals("index.htm"))
+                    html = entry;
+                else if (html == null && entry.name.equals(nameFromZipFile))
+                    html = entry;
+                else if (firstHtml == null && entry.name.indexOf('/') < 0 && entry.name.endsWith(".htm"))
+                    firstHtml = entry;
+            }
+            if (html == null)
+                html = firstHtml;
+            if (html != null && audio.needsHtml()) {
+                InputStream stream = directory.getInputStream(html);
+                try {
+                    audio.scanHtml(stream);
+                } finally {
+                    stream.close();
+                }
+            }
+            Boolean result = audio.getResult();
+            return result != null && result;
+        } finally {
+            directory.close();
+        }
+    }
+
+    private Boolean hasAudioByExtracting() {
         String html;
         File bookDirectory;
         boolean audioFilesExist = false;
@@ -118,30 +221,95 @@ public class BloomFileReader {
         } finally {
             closeFile();
         }
-        return html != null && html.contains(BOOK_AUDIO_MATCH) && audioFilesExist;
+        return html != null && html.contains(AudioScan.BOOK_AUDIO_MATCH) && audioFilesExist;
     }
 
+    // Copy the book's thumbnail straight from its zip entry into the thumbs directory. Nothing
+    // else is extracted, and no temporary folder is used, so (unlike most of what this class
+    // does) this is safe to run for several books at once on different threads.
     public Uri getThumbnail(File thumbsDirectory) throws IOException {
-        Uri thumbUri = null;
-        // This function is called in a background thread for books that are not the current one
-        // being opened. It must not race for the same directory.
-        prepareFileOrUriForBook("tempBookPath");
         String path = bloomFilePath == null ? bookUri.getPath() :bloomFilePath; // uri version is not a valid file path, but works for this.
         String bookName = IOUtilities.stripBookFileExtension((new File(path)).getName());
-        File thumb = fileOrUri.tryGetFile(THUMBNAIL_NAME_1);
-        if (thumb == null)
-            thumb = fileOrUri.tryGetFile(THUMBNAIL_NAME_2);
-        if (thumb != null) {
-            String toPath = thumbsDirectory.getPath() + File.separator + bookName;
-            if (IOUtilities.copyFile(thumb.getPath(), toPath))
-                thumbUri = Uri.fromFile(new File(toPath));
-        } else {
+        File thumb = new File(thumbsDirectory, bookName);
+        boolean found = bookUri == null ? copyThumbnailFromFile(thumb) : copyThumbnailFromUri(thumb);
+        if (!found) {
             String noThumbPath = thumbsDirectory + File.separator + BookCollection.NO_THUMBS_DIR + File.separator + bookName;
             (new File(noThumbPath)).createNewFile();
+            return null;
         }
-        closeFile();
+        return Uri.fromFile(thumb);
+    }
+
+    private boolean copyThumbnailFromFile(File thumb) throws IOException {
+        File bloomFile = new File(bloomFilePath);
+        ZipCentralDirectory directory = ZipCentralDirectory.open(bloomFile);
+        if (directory != null) {
+            try {
+                return copyThumbnail(directory, thumb);
+            } finally {
+                directory.close();
+            }
+        }
+        ZipFile zipFile = new ZipFile(bloomFile);
+        try {
+            for (String name : new String[] {THUMBNAIL_NAME_1, THUMBNAIL_NAME_2}) {
+                ZipEntry entry = zipFile.getEntry(name);
+                if (entry != null) {
+                    writeThumbnail(zipFile.getInputStream(entry), thumb);
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    private boolean copyThumbnailFromUri(File thumb) throws IOException {
+        ZipCentralDirectory directory = ZipCentralDirectory.open(context, bookUri);
+        if (directory != null) {
+            try {
+                return copyThumbnail(directory, thumb);
+            } finally {
+                directory.close();
+            }
+        }
+        // We can only read this book from start to end, but at least we don't have to unzip it all.
+        for (String name : new String[] {THUMBNAIL_NAME_1, THUMBNAIL_NAME_2}) {
+            byte[] data = IOUtilities.ExtractZipEntry(context, bookUri, name);
+            if (data != null && data.length > 0) {
+                writeThumbnail(new ByteArrayInputStream(data), thumb);
+                return true;
+            }
+        }
+        return false;
+    }
 
-        return thumbUri;
+    private static boolean copyThumbnail(ZipCentralDirectory directory, File thumb) throws IOException {
+        ZipCentralDirectory.Entry entry = directory.getEntry(THUMBNAIL_NAME_1);
+        if (entry == null)
+            entry = directory.getEntry(THUMBNAIL_NAME_2);
+        if (entry == null)
+            return false;
+        writeThumbnail(directory.getInputStream(entry), thumb);
+        return true;
+    }
+
+    // Write under a temporary name and then rename, so nobody ever sees a partly written thumbnail.
+    private static void writeThumbnail(InputStream input, File thumb) throws IOException {
+        File temp = new File(thumb.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            IOUtilities.readFileFromInput(input, temp);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        } finally {
+            input.close();
+        }
+        if (!temp.renameTo(thumb)) {
+            temp.delete();
+            throw new IOException("could not write thumbnail " + thumb.getPath());
+        }
     }
 
     public boolean getBooleanMetaProperty(String property, boolean defaultIfNotFound){
@@ -198,12 +366,12 @@ public class BloomFileReader {
     }
 
     // Typically, this reader was constructed with a bloomFilePath pointing to a .bloompub file.
-    // Unzip this file into the folder indicated by the path argument, and set bookDirectory
-    // to that directory. (On subsequent calls, the zip should already have been expanded,
-    // and bookDirectory set, so the method will do nothing. It's therefore cheap to call this
-    // when in any doubt about initialization. However, be careful about different instances
-    // of the class, possibly in different threads, trying to expand the same or different
-    // books into the same folder.)
+    // Set bookDirectory to the book's folder in the BookCache, into which files are extracted
+    // as they are wanted (and may still be there from the last time the book was opened).
+    // (On subsequent calls, bookDirectory is already set, so the method will do nothing. It's
+    // therefore cheap to call this when in any doubt about initialization. Different instances
+    // of the class may share the same folder, but files are extracted under temporary names and
+    // renamed into place, so they won't see each other's half-written files.)
     // If a BloomFileReader is ever created with a URI instead of a file path (currently there
     // are no callers of this constructor), it will unzip that instead.
     // If the supplied path is a directory (I doubt this ever happens), it will assume
@@ -220,13 +388,14 @@ public class BloomFileReader {
                 return;
             }
         }
-        prepareFileOrUriForBook(CURRENT_BOOK_FOLDER);
+        prepareFileOrUriForCachedBook();
     }
 
     private File findHtmlFile() throws IOException {
         // so, we're calling this because we could not find "index.htm".
         // Next, look for an htm file that matches the name of the .bloompub/.bloomd
-        String nameFromZipFile = IOUtilities.stripBookFileExtension(bookDirectory.getName()) + ".htm";
+        String path = bloomFilePath == null ? bookUri.getPath() : bloomFilePath;
+        String nameFromZipFile = IOUtilities.stripBookFileExtension(new File(path).getName()) + ".htm";
         File htmlFile = fileOrUri.tryGetFile(nameFromZipFile);
         if (htmlFile != null) {
             return htmlFile;
@@ -243,14 +412,35 @@ public class BloomFileReader {
     private void closeFile() {
         File toEmpty = bookDirectory;
         bookDirectory = null;
-        IOUtilities.emptyDirectory(toEmpty);
+        if (!usingBookCache)
+            IOUtilities.emptyDirectory(toEmpty);
+        usingBookCache = false;
         fileOrUri.close();
     }
 
+    // The book will be extracted (as needed) into its folder in the BookCache, which may well
+    // already have the files we want from the last time the book was opened.
+    private void prepareFileOrUriForCachedBook() {
+        // The key matches BookOrShelf.pathOrUri, so BookCollection can tell the cache to forget the book.
+        String key = bloomFilePath != null ? bloomFilePath : bookUri.toString();
+        long size = bookUri == null ? new File(bloomFilePath).length() : IOUtilities.fileSize(context, bookUri);
+        long modified = bookUri == null ? new File(bloomFilePath).lastModified() : IOUtilities.lastModified(context, bookUri);
+        bookDirectory = BookCache.getInstance(context).getFolder(key, size, modified);
+        usingBookCache = true;
+        createFileOrUri();
+        // Cache folders are kept, so it's worth sharing what they have in common with other books.
+        fileOrUri.setAssetStore(AssetStore.getInstance(context));
+    }
+
     // The book will be progressively unzipped into toPath as fileOrUri is asked for them
-    // (or all at once if we only have a URI).
+    // (or all at once if we only have a URI that can't be read at random).
     private void prepareFileOrUriForBook(String toPath) throws IOException {
         setupBookDirectory(toPath);
+        usingBookCache = false;
+        createFileOrUri();
+    }
+
+    private void createFileOrUri() {
         if (bookUri == null) {
             fileOrUri = new ZipFileOrUri(new File(bloomFilePath), bookDirectory.getPath());
         } else {
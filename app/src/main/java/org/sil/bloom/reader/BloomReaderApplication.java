@@ -52,6 +52,12 @@ public class BloomReaderApplication extends Application {
         setupAnalytics(this);
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        ThumbnailCache.getInstance(this).trimMemory(level);
+    }
+
     private static void setupAnalytics(Context context) {
         String writeKey = "FSepBapJtfOi3FfhsEWQjc2Dw0O3ixuY"; // Source BloomReaderTest
 
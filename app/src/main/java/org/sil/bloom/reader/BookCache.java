@@ -0,0 +1,148 @@
+package org.sil.bloom.reader;
+
+import android.content.Context;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Keeps the files extracted from the last few books that were opened, so that opening one of
+// them again (which children do constantly) doesn't have to extract anything. Each version of a
+// book gets its own folder, named from a hash of its path (or uri) plus its size and modify time,
+// so a book that is replaced (by WiFi transfer, an import, etc.) simply gets a new folder and the
+// old one is thrown away. Folders are evicted least recently used first once there are more
+// than MAX_BOOKS of them or they use more than MAX_BYTES. (The larger files in the folders may be
+// links into the AssetStore, which is asked to let go of anything no longer used whenever we
+// throw away a folder.)
+public class BookCache {
+    private static final String CACHE_FOLDER = "bookCache";
+    static final int MAX_BOOKS = 6;
+    static final long MAX_BYTES = 100L * 1024 * 1024;
+
+    private static BookCache sInstance;
+
+    private final File mRoot;
+    private final int mMaxBooks;
+    private final long mMaxBytes;
+    // Called (while we are locked, so it should be quick) after we throw away any folders.
+    private Runnable mAfterEviction;
+
+    public static synchronized BookCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BookCache(context.getDir(CACHE_FOLDER, Context.MODE_PRIVATE), MAX_BOOKS, MAX_BYTES);
+            final Context appContext = context.getApplicationContext();
+            sInstance.mAfterEviction = () -> AssetStore.getInstance(appContext).pruneUnusedSoon();
+            // Before we had the cache, the book being read was always extracted here.
+            IOUtilities.deleteFileOrDirectory(context.getDir("currentbook", Context.MODE_PRIVATE));
+        }
+        return sInstance;
+    }
+
+    // Public for the sake of unit tests; the app should use getInstance().
+    public BookCache(File root, int maxBooks, long maxBytes) {
+        mRoot = root;
+        mMaxBooks = maxBooks;
+        mMaxBytes = maxBytes;
+    }
+
+    // Return the folder for this version of the book, creating it if necessary, and mark it as
+    // the most recently used. Folders for other versions of the same book are removed, and then
+    // the least recently used books are evicted to keep within our limits. The folder returned
+    // is never evicted by this call.
+    public synchronized File getFolder(String pathOrUri, long size, long lastModified) {
+        String prefix = getFolderPrefix(pathOrUri);
+        String name = prefix + Long.toHexString(size) + "-" + Long.toHexString(lastModified);
+        boolean evicted = false;
+        for (File folder : listFolders()) {
+            if (folder.getName().startsWith(prefix) && !folder.getName().equals(name)) {
+                IOUtilities.deleteFileOrDirectory(folder);
+                evicted = true;
+            }
+        }
+        File result = new File(mRoot, name);
+        result.mkdirs();
+        result.setLastModified(System.currentTimeMillis());
+        if (trim(result) || evicted)
+            afterEviction();
+        return result;
+    }
+
+    // Forget everything we have extracted from the book, typically because it has been deleted
+    // or replaced.
+    public synchronized void remove(String pathOrUri) {
+        if (pathOrUri == null)
+            return;
+        String prefix = getFolderPrefix(pathOrUri);
+        boolean evicted = false;
+        for (File folder : listFolders()) {
+            if (folder.getName().startsWith(prefix)) {
+                IOUtilities.deleteFileOrDirectory(folder);
+                evicted = true;
+            }
+        }
+        if (evicted)
+            afterEviction();
+    }
+
+    private void afterEviction() {
+        if (mAfterEviction != null)
+            mAfterEviction.run();
+    }
+
+    // Returns true if it threw anything away.
+    private boolean trim(File keep) {
+        List<File> folders = listFolders();
+        // Most recently used first.
+        Collections.sort(folders, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+        folders.remove(keep);
+        int count = 1;
+        long bytes = getSize(keep);
+        boolean evicted = false;
+        for (File folder : folders) {
+            ++count;
+            bytes += getSize(folder);
+            if (count > mMaxBooks || bytes > mMaxBytes) {
+                IOUtilities.deleteFileOrDirectory(folder);
+                evicted = true;
+            }
+        }
+        return evicted;
+    }
+
+    private List<File> listFolders() {
+        File[] folders = mRoot.listFiles(File::isDirectory);
+        return folders == null ? new ArrayList<>() : new ArrayList<>(Arrays.asList(folders));
+    }
+
+    private static long getSize(File fileOrFolder) {
+        if (!fileOrFolder.isDirectory())
+            return fileOrFolder.length();
+        long result = 0;
+        File[] children = fileOrFolder.listFiles();
+        if (children != null) {
+            for (File child : children)
+                result += getSize(child);
+        }
+        return result;
+    }
+
+    // Book paths can be long and contain characters that don't belong in file names, so we use
+    // (the start of) a hash of the path.
+    private static String getFolderPrefix(String pathOrUri) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(pathOrUri.getBytes(StandardCharsets.UTF_8));
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < 8; ++i)
+                builder.append(String.format("%02x", hash[i]));
+            return builder.append("-").toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android has SHA-1, but just in case...
+            return Integer.toHexString(pathOrUri.hashCode()) + "-";
+        }
+    }
+}
@@ -28,6 +28,9 @@ import java.util.List;
 
 public class BookListAdapter extends RecyclerView.Adapter<BookListAdapter.ViewHolder> implements View.OnClickListener, View.OnLongClickListener {
 
+    // How many rows either side of one being shown we fetch thumbnails for in advance.
+    private static final int THUMBNAIL_PREFETCH_ROWS = 5;
+
     private BookCollection bookCollection;
     private BookClickListener bookClickListener;
     private BookOrShelf selectedItem;
@@ -55,9 +58,28 @@ public class BookListAdapter extends RecyclerView.Adapter<BookListAdapter.ViewHo
         String title = TextUtils.isEmpty(holder.bookOrShelf.title) ? holder.bookOrShelf.name : holder.bookOrShelf.title;
         holder.bookNameView.setText(title);
         new SetBookListItemViewExtrasTask(holder).setExtras(); // Sets the thumbnail and speaker icon
+        prefetchThumbnails(holder, position);
         AdjustItemAppearance(holder);
     }
 
+    @Override
+    public void onViewRecycled(ViewHolder holder) {
+        // Nobody will see the thumbnail and speaker icon it was waiting for.
+        holder.cancelExtras();
+    }
+
+    // Get the thumbnails (etc.) of the rows near this one ready, so they are there when scrolled to.
+    private void prefetchThumbnails(ViewHolder holder, int position) {
+        // Every row's thumbnail is the same size.
+        ViewGroup.LayoutParams size = holder.imageView.getLayoutParams();
+        int end = Math.min(bookCollection.size(), position + THUMBNAIL_PREFETCH_ROWS + 1);
+        for (int i = Math.max(0, position - THUMBNAIL_PREFETCH_ROWS); i < end; ++i) {
+            BookOrShelf bookOrShelf = bookCollection.get(i);
+            if (i != position && !bookOrShelf.isShelf() && bookOrShelf.specialBehavior == null)
+                RowExtrasLoader.getInstance().prefetch(holder.getContext(), bookOrShelf, size.width, size.height);
+        }
+    }
+
     ColorStateList originalColors;
 
     private void AdjustItemAppearance(ViewHolder holder){
@@ -219,6 +241,8 @@ public class BookListAdapter extends RecyclerView.Adapter<BookListAdapter.ViewHo
         public ImageView imageView;
         public ImageView speakerIcon;
         public BookOrShelf bookOrShelf;
+        // Waiting for this row's thumbnail and speaker icon, if it is a book.
+        SetBookListItemViewExtrasTask extrasTask;
 
         public ViewHolder(LinearLayout linearLayout) {
             super(linearLayout);
@@ -231,6 +255,13 @@ public class BookListAdapter extends RecyclerView.Adapter<BookListAdapter.ViewHo
         public Context getContext(){
             return linearLayout.getContext();
         }
+
+        void cancelExtras() {
+            if (extrasTask != null) {
+                extrasTask.cancel();
+                extrasTask = null;
+            }
+        }
     }
 
     public interface BookClickListener {
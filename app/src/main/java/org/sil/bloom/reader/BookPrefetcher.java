@@ -0,0 +1,107 @@
+package org.sil.bloom.reader;
+
+import android.content.Context;
+import android.os.Process;
+
+import org.sil.bloom.reader.models.BookCollection;
+import org.sil.bloom.reader.models.BookOrShelf;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Guesses which book the child will open next and gets it ready in the BookCache while nothing
+// else is going on, so that opening it feels instant. Children mostly read the books on a shelf
+// in order, so our guess is the first book after the most recently opened one (in the order the
+// current list shows them) that hasn't itself been opened recently.
+// The work runs on a single low priority thread, starts only after the list has been showing for
+// a moment, and is cancelled as soon as the user opens anything or leaves the list.
+public class BookPrefetcher {
+    private static final long IDLE_DELAY_MILLIS = 1500;
+    private static final int HISTORY_SIZE = 10;
+
+    private static BookPrefetcher sInstance;
+
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            runnable.run();
+        }, "BookPrefetcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Paths (or uris) of the books opened most recently, most recent first.
+    private final LinkedList<String> mRecentlyOpened = new LinkedList<>();
+    private Future<?> mPending;
+
+    public static synchronized BookPrefetcher getInstance() {
+        if (sInstance == null)
+            sInstance = new BookPrefetcher();
+        return sInstance;
+    }
+
+    public synchronized void noteBookOpened(String pathOrUri) {
+        cancel();
+        if (pathOrUri == null)
+            return;
+        mRecentlyOpened.remove(pathOrUri);
+        mRecentlyOpened.addFirst(pathOrUri);
+        while (mRecentlyOpened.size() > HISTORY_SIZE)
+            mRecentlyOpened.removeLast();
+    }
+
+    // Called when a list of books has just been shown. Any earlier prefetch is abandoned.
+    public synchronized void prefetchNextBook(Context context, BookCollection collection) {
+        cancel();
+        final BookOrShelf next = chooseNextBook(collection.getCopyOfFilteredBooksAndShelves(), mRecentlyOpened);
+        if (next == null)
+            return;
+        final Context appContext = context.getApplicationContext();
+        mPending = mExecutor.schedule(() -> {
+            try {
+                new BloomFileReader(appContext, next).prefetch();
+            } catch (Exception e) {
+                // Just a guess that didn't work out; the book will be opened the usual way.
+                e.printStackTrace();
+            }
+        }, IDLE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void cancel() {
+        if (mPending != null) {
+            mPending.cancel(true);
+            mPending = null;
+        }
+    }
+
+    // Pick the book (if any) that we think will be opened next from those in the list.
+    static BookOrShelf chooseNextBook(List<BookOrShelf> booksAndShelves, List<String> recentlyOpened) {
+        int start = 0;
+        for (String path : recentlyOpened) {
+            int index = indexOfPath(booksAndShelves, path);
+            if (index >= 0) {
+                start = index + 1;
+                break;
+            }
+        }
+        for (int i = start; i < booksAndShelves.size(); ++i) {
+            BookOrShelf candidate = booksAndShelves.get(i);
+            if (candidate.isShelf() || candidate.specialBehavior != null)
+                continue;
+            if (!recentlyOpened.contains(candidate.pathOrUri))
+                return candidate;
+        }
+        return null;
+    }
+
+    private static int indexOfPath(List<BookOrShelf> booksAndShelves, String path) {
+        for (int i = 0; i < booksAndShelves.size(); ++i) {
+            if (booksAndShelves.get(i).pathOrUri.equals(path))
+                return i;
+        }
+        return -1;
+    }
+}
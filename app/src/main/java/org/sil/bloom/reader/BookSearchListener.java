@@ -7,6 +7,12 @@ import java.io.File;
 public interface BookSearchListener {
     // called for each book or shelf in the place we're searching
     void onFoundBookOrShelf(File bloomdFile, Uri bookOrShelfUri);
+    // Searches that learn the size and modify time of the file at no extra cost (currently the
+    // SAF search) call this instead, so listeners that want them needn't query for them again.
+    // Either value is -1 if the search couldn't tell.
+    default void onFoundBookOrShelf(File bloomdFile, Uri bookOrShelfUri, long size, long lastModified) {
+        onFoundBookOrShelf(bloomdFile, bookOrShelfUri);
+    }
     // called for each bundle in the place we're searching
     void onFoundBundle(Uri bundleUri);
     void onSearchComplete();
@@ -0,0 +1,43 @@
+package org.sil.bloom.reader;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The buffers for all the places we copy, unzip or check files a chunk at a time. Large buffers
+// make for far fewer reads and writes, but allocating one per file (or worse, one the size of each
+// entry, as validating books used to) churns the heap and can run a 1GB device out of memory on a
+// book with a big video. So buffers are borrowed from here and given back when done with (in a
+// finally block); we keep enough of them for the threads that are typically busy at once, and
+// let any others be garbage collected. Safe to use from any thread.
+public class BufferPool {
+    public static final int BUFFER_SIZE = 256 * 1024;
+    // About as many as are in use at once while the library loads (see BookCollection.LibraryLoad)
+    // or a book arrives over WiFi.
+    private static final int MAX_POOLED = 8;
+
+    private static final ConcurrentLinkedQueue<byte[]> sFree = new ConcurrentLinkedQueue<>();
+    private static final AtomicLong sAllocations = new AtomicLong();
+
+    public static byte[] acquire() {
+        byte[] buffer = sFree.poll();
+        if (buffer == null) {
+            sAllocations.incrementAndGet();
+            buffer = new byte[BUFFER_SIZE];
+        }
+        return buffer;
+    }
+
+    // Give back a buffer from acquire(). The caller must not use it afterwards.
+    public static void release(byte[] buffer) {
+        if (buffer == null || buffer.length != BUFFER_SIZE)
+            return;
+        // (size() walks the queue, but the queue is never long.)
+        if (sFree.size() < MAX_POOLED)
+            sFree.offer(buffer);
+    }
+
+    // How many buffers we have had to allocate, for tests.
+    static long getAllocationCount() {
+        return sAllocations.get();
+    }
+}
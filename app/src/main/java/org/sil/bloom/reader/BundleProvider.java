@@ -0,0 +1,183 @@
+package org.sil.bloom.reader;
+
+import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.provider.OpenableColumns;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.sil.bloom.reader.models.BookCollection.getLocalBooksDirectory;
+
+// Serves the .bloombundles we share without ever writing one to storage. SharingManager asks us
+// for a uri for a bundle of some files and shares that; when the receiving app (Bluetooth, Nearby
+// Share, a file manager...) opens it, we give it the reading end of a pipe and a BundleWriter
+// writes the bundle into the other end as fast as the receiver reads it. So the chooser comes up
+// at once however big the bundle is, and sharing the whole library takes no extra space.
+// BundleWriter knows the size of a bundle in advance, so we can report it, as receivers like
+// to know; what a pipe can't do is seek, so a receiver that wants to would have to copy it first.
+// The files in a bundle are remembered for a day (at most, since only while our process lives);
+// a uri for the whole library is good at any time.
+public class BundleProvider extends ContentProvider {
+    private static final String ALL_BOOKS = "all";
+    // What we have always shared bundles as.
+    private static final String MIME_TYPE = "application/zip";
+
+    // Long enough for any receiver to get round to reading a bundle it was given.
+    private static final long BUNDLE_LIFETIME_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private static class Bundle {
+        final File[] files;
+        final long created = System.currentTimeMillis();
+
+        Bundle(File[] files) {
+            this.files = files;
+        }
+    }
+
+    private static final Map<String, Bundle> sBundles = new ConcurrentHashMap<>();
+
+    private static String getAuthority() {
+        return BuildConfig.APPLICATION_ID + ".bundleprovider";
+    }
+
+    // A uri for a bundle of these files (or of the whole library, if files is null) called fileName.
+    public static Uri getUriForBundle(File[] files, String fileName) {
+        String id = ALL_BOOKS;
+        if (files != null) {
+            forgetOldBundles();
+            id = UUID.randomUUID().toString();
+            sBundles.put(id, new Bundle(files));
+        }
+        return new Uri.Builder()
+                .scheme(ContentResolver.SCHEME_CONTENT)
+                .authority(getAuthority())
+                .appendPath(id)
+                .appendPath(fileName)
+                .build();
+    }
+
+    // A receiver may read a bundle more than once, so we can't forget it as soon as it has been
+    // read; but we don't want to keep every bundle ever shared for the life of the process.
+    private static void forgetOldBundles() {
+        long cutoff = System.currentTimeMillis() - BUNDLE_LIFETIME_MILLIS;
+        sBundles.values().removeIf(bundle -> bundle.created < cutoff);
+    }
+
+    private static File[] getFiles(Uri uri) throws FileNotFoundException {
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() != 2)
+            throw new FileNotFoundException("Not a bundle: " + uri);
+        String id = segments.get(0);
+        if (ALL_BOOKS.equals(id)) {
+            File[] files = getLocalBooksDirectory().listFiles(IOUtilities.BUNDLE_FILE_FILTER);
+            return files == null ? new File[0] : files;
+        }
+        Bundle bundle = sBundles.get(id);
+        if (bundle == null)
+            throw new FileNotFoundException("Bundle is no longer available: " + uri);
+        return bundle.files;
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        File[] files;
+        try {
+            files = getFiles(uri);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        if (projection == null)
+            projection = new String[] {OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE};
+        Object[] row = new Object[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            if (OpenableColumns.DISPLAY_NAME.equals(projection[i]))
+                row[i] = uri.getLastPathSegment();
+            else if (OpenableColumns.SIZE.equals(projection[i]))
+                row[i] = BundleWriter.getBundleSize(files);
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        cursor.addRow(row);
+        return cursor;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return MIME_TYPE;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (!"r".equals(mode))
+            throw new FileNotFoundException("Bundles can only be read: " + uri);
+        final File[] files = getFiles(uri);
+        final ParcelFileDescriptor[] pipe;
+        try {
+            // A reliable pipe lets us tell the reader if writing fails, rather than it just
+            // getting a truncated bundle.
+            pipe = ParcelFileDescriptor.createReliablePipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Could not make pipe for " + uri + ": " + e.getMessage());
+        }
+        final Context context = getContext();
+        new Thread(() -> writeBundle(context, files, pipe[1]), "BundleProvider").start();
+        return pipe[0];
+    }
+
+    private static void writeBundle(Context context, File[] files, ParcelFileDescriptor output) {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        // This stream doesn't own the descriptor; closing output is what ends the bundle.
+        FileOutputStream stream = new FileOutputStream(output.getFileDescriptor());
+        try {
+            new BundleWriter(stream.getChannel(), null).write(files);
+            output.close();
+        } catch (IOException e) {
+            // Most likely the receiver stopped reading.
+            Log.e("BundleProvider", "Bundle not completed: " + e.getMessage());
+            try {
+                output.closeWithError(e.getMessage());
+            } catch (IOException ignored) {
+            }
+            // The receiving app may or may not say anything, so we do.
+            new Handler(Looper.getMainLooper()).post(() -> Toast.makeText(context,
+                    context.getString(R.string.failed_to_share_books), Toast.LENGTH_LONG).show());
+        }
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Bundles can only be read");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Bundles can only be read");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Bundles can only be read");
+    }
+}
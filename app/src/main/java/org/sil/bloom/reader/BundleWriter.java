@@ -0,0 +1,146 @@
+package org.sil.bloom.reader;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+// Writes a .bloombundle, which is a plain tar of book and shelf files, to any channel: a file,
+// or a pipe to whatever is receiving the bundle. It writes the same tar that
+// TarArchiveOutputStream would (GNU long names, 10240 byte blocks), but the content of each
+// file goes straight from the file's channel to the output with FileChannel.transferTo, so
+// even a bundle of the whole library is never copied through a small buffer in Java.
+// Since we only bundle files whose sizes we know, we can say exactly how big the bundle will be
+// before writing it, and report progress by the byte.
+// (The books are already zip files, so compressing the bundle would gain almost nothing, and
+// older Bloom Readers could no longer read it.)
+public class BundleWriter {
+    private static final int RECORD_SIZE = TarConstants.DEFAULT_RCDSIZE;
+    private static final int BLOCK_SIZE = TarConstants.DEFAULT_BLKSIZE;
+    // How much we transfer between reports of progress (and chances to cancel).
+    private static final long TRANSFER_CHUNK = 1024 * 1024;
+    private static final byte[] ZEROS = new byte[BLOCK_SIZE];
+
+    public interface ProgressListener {
+        // Return false to stop writing (the write then throws InterruptedIOException).
+        boolean onProgress(long bytesWritten, long bytesTotal);
+    }
+
+    private final WritableByteChannel mOutput;
+    private final ProgressListener mListener;
+    private final byte[] mHeader = new byte[RECORD_SIZE];
+    private long mWritten;
+    private long mTotal;
+
+    public BundleWriter(WritableByteChannel output, ProgressListener listener) {
+        mOutput = output;
+        mListener = listener;
+    }
+
+    // The name a file has in the bundle. Here we don't want to rename bloom shelves. And eventually
+    // we will take this out. But currently older bloom readers won't handle bloombundles containing
+    // bloompubs.
+    public static String entryName(File file) {
+        String bookFileName = file.getName();
+        if (bookFileName.endsWith(".bloompub")) {
+            int index = bookFileName.lastIndexOf(".");
+            if (index >= 0) {
+                bookFileName = bookFileName.substring(0, index);
+            }
+            bookFileName += ".bloomd";
+        }
+        return bookFileName;
+    }
+
+    // The exact number of bytes write() will produce for these files (as long as they don't change).
+    public static long getBundleSize(File[] files) {
+        long size = 0;
+        for (File file : files) {
+            int nameLength = entryName(file).getBytes(StandardCharsets.UTF_8).length;
+            if (nameLength >= TarConstants.NAMELEN)
+                size += RECORD_SIZE + padded(nameLength + 1);
+            size += RECORD_SIZE + padded(file.length());
+        }
+        // Two empty records mark the end, and the whole is a number of blocks.
+        size += 2 * RECORD_SIZE;
+        return (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+    }
+
+    private static long padded(long length) {
+        return (length + RECORD_SIZE - 1) / RECORD_SIZE * RECORD_SIZE;
+    }
+
+    public void write(File[] files) throws IOException {
+        // We go by the sizes the files have now; the bundle would be corrupt if one changed.
+        mTotal = getBundleSize(files);
+        mWritten = 0;
+        for (File file : files)
+            writeFile(file, file.length());
+        long end = mTotal - mWritten;
+        while (end > 0) {
+            int count = (int) Math.min(end, ZEROS.length);
+            writeFully(ByteBuffer.wrap(ZEROS, 0, count));
+            end -= count;
+        }
+        reportProgress();
+    }
+
+    private void writeFile(File file, long size) throws IOException {
+        try (FileInputStream input = new FileInputStream(file)) {
+            FileChannel channel = input.getChannel();
+            String name = entryName(file);
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            if (nameBytes.length >= TarConstants.NAMELEN) {
+                // Too long for the header; GNU tar puts it in an entry of its own just before.
+                TarArchiveEntry longName = new TarArchiveEntry(TarConstants.GNU_LONGLINK, TarConstants.LF_GNUTYPE_LONGNAME);
+                longName.setSize(nameBytes.length + 1);
+                writeHeader(longName);
+                writeFully(ByteBuffer.wrap(nameBytes));
+                writeFully(ByteBuffer.wrap(ZEROS, 0, 1));
+                writePadding(nameBytes.length + 1);
+            }
+            TarArchiveEntry entry = new TarArchiveEntry(file, name);
+            entry.setSize(size);
+            writeHeader(entry);
+            long position = 0;
+            while (position < size) {
+                long count = channel.transferTo(position, Math.min(TRANSFER_CHUNK, size - position), mOutput);
+                if (count <= 0)
+                    throw new IOException(file.getPath() + " changed while it was being bundled");
+                position += count;
+                mWritten += count;
+                reportProgress();
+            }
+            writePadding(size);
+        }
+    }
+
+    private void writeHeader(TarArchiveEntry entry) throws IOException {
+        entry.writeEntryHeader(mHeader);
+        writeFully(ByteBuffer.wrap(mHeader));
+    }
+
+    private void writePadding(long length) throws IOException {
+        int extra = (int) (padded(length) - length);
+        if (extra > 0)
+            writeFully(ByteBuffer.wrap(ZEROS, 0, extra));
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        mWritten += buffer.remaining();
+        while (buffer.hasRemaining())
+            mOutput.write(buffer);
+    }
+
+    private void reportProgress() throws IOException {
+        if (mListener != null && !mListener.onProgress(mWritten, mTotal))
+            throw new InterruptedIOException("Bundle cancelled");
+    }
+}
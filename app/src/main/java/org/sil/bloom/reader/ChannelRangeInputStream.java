@@ -0,0 +1,98 @@
+package org.sil.bloom.reader;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Reads a range of a file with positional reads on its channel. We use it to serve STORED media
+// entries straight from a book file (see ZipFileOrUri.getStoredRange()). The bytes come through
+// one pooled buffer (see BufferPool), so playing a long video from start to finish costs no more
+// memory than a short one; skipping (seeking in a video) just moves where the next read starts.
+// Positional reads mean several of these can read the same channel at once without getting in
+// each other's way. (Mapping the file a window at a time looks cheaper, but mappings are only
+// let go of when the garbage collector gets round to them, so on a 32-bit device a long video
+// could still use up the address space.)
+public class ChannelRangeInputStream extends InputStream {
+    private final FileChannel mChannel;
+    private long mPosition;     // where in the file the next read from the channel starts
+    private long mRemaining;    // how much of the range has yet to be read from the channel
+    private byte[] mBuffer;     // from the pool once we start reading, until close()
+    private int mBufferPos;
+    private int mBufferLimit;
+
+    public ChannelRangeInputStream(FileChannel channel, long start, long length) {
+        mChannel = channel;
+        mPosition = start;
+        mRemaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (mBufferPos == mBufferLimit && !fill())
+            return -1;
+        return mBuffer[mBufferPos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (mBufferPos == mBufferLimit && !fill())
+            return -1;
+        int count = Math.min(len, mBufferLimit - mBufferPos);
+        System.arraycopy(mBuffer, mBufferPos, b, off, count);
+        mBufferPos += count;
+        return count;
+    }
+
+    // Read the next part of the range into the buffer. Returns false at the end of the range.
+    private boolean fill() throws IOException {
+        if (mRemaining <= 0)
+            return false;
+        if (mBuffer == null)
+            mBuffer = BufferPool.acquire();
+        ByteBuffer target = ByteBuffer.wrap(mBuffer, 0, (int) Math.min(mBuffer.length, mRemaining));
+        int count = mChannel.read(target, mPosition);
+        if (count < 0)
+            throw new EOFException("The file ends before the range does");
+        mPosition += count;
+        mRemaining -= count;
+        mBufferPos = 0;
+        mBufferLimit = count;
+        return true;
+    }
+
+    @Override
+    public long skip(long n) {
+        if (n <= 0)
+            return 0;
+        int buffered = mBufferLimit - mBufferPos;
+        if (n <= buffered) {
+            mBufferPos += (int) n;
+            return n;
+        }
+        long skipped = Math.min(n - buffered, mRemaining);
+        mBufferPos = mBufferLimit = 0;
+        mPosition += skipped;
+        mRemaining -= skipped;
+        return buffered + skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, mBufferLimit - mBufferPos + mRemaining);
+    }
+
+    @Override
+    public void close() {
+        // The channel isn't ours to close.
+        if (mBuffer != null) {
+            BufferPool.release(mBuffer);
+            mBuffer = null;
+        }
+        mBufferPos = mBufferLimit = 0;
+        mRemaining = 0;
+    }
+}
@@ -15,14 +15,15 @@ import android.util.Log;
 import android.widget.Toast;
 
 import org.apache.commons.compress.archivers.ArchiveEntry;
-import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
-import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
 import org.sil.bloom.reader.models.BookOrShelf;
 import org.sil.bloom.reader.models.BookCollection;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
@@ -38,6 +39,7 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Locale;
 import java.util.function.Predicate;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
@@ -56,7 +58,9 @@ public class IOUtilities {
     // Some file transfer mechanisms leave this appended to .bloompub/.bloomd (or .bloombundle)
     public static final String ENCODED_FILE_EXTENSION = ".enc";
 
-    private static final int BUFFER_SIZE = 8192;
+    // The files in our books directory that go in a bundle of the whole library.
+    public static final FilenameFilter BUNDLE_FILE_FILTER = (dir, filename) ->
+            isBloomPubFile(filename) || filename.endsWith(BOOKSHELF_FILE_EXTENSION);
 
     public static void showError(Context context, CharSequence message) {
         int duration = Toast.LENGTH_SHORT;
@@ -127,10 +131,10 @@ public class IOUtilities {
 
     //from http://stackoverflow.com/a/27050680
     public static void unzip(ZipInputStream zis, File targetDirectory) throws IOException {
+        byte[] buffer = BufferPool.acquire();
         try {
             ZipEntry ze;
             int count;
-            byte[] buffer = new byte[BUFFER_SIZE];
             while ((ze = zis.getNextEntry()) != null) {
                 File file = new File(targetDirectory, ze.getName());
 
@@ -167,6 +171,7 @@ public class IOUtilities {
             }
         } finally {
             zis.close();
+            BufferPool.release(buffer);
         }
     }
 
@@ -210,6 +215,8 @@ public class IOUtilities {
     // the whole file.  Note that this fast bypass ignores the checkType and desiredFile parameters.
     // The desiredFile parameter is designed to avoid having to unzip the file twice during startup,
     // once to ensure that it is valid and once to get the meta.json file content.
+    // We first try the quick check, which only looks at the zip headers; the deep check, which
+    // unzips everything, is used only when the quick check can't decide.
     public static boolean isValidZipFile(File input, @FileChecks int checkType, TextFileContent desiredFile) {
         String key = input.getAbsolutePath();
         if (sCheckedFiles == null) {
@@ -223,6 +230,154 @@ public class IOUtilities {
             if (timestamp == input.lastModified() && timestamp != 0L)
                 return true;
         }
+        boolean retval = validateZipFile(input, checkType, desiredFile);
+        if (retval && sCheckedFiles != null) {
+            SharedPreferences.Editor editor = sCheckedFiles.edit();
+            editor.putLong(key, input.lastModified());
+            editor.apply();
+        }
+        return retval;
+    }
+
+    // The check isValidZipFile() does, without consulting or updating its record of files
+    // already checked. (BookCollection keeps its own record in the BookCatalog.)
+    public static boolean validateZipFile(File input, @FileChecks int checkType, TextFileContent desiredFile) {
+        return validateZipFile(input, checkType, desiredFile, null);
+    }
+
+    // As above, and if audio is not null, also find out whether the book has audio while we are
+    // looking at its entries anyway.
+    public static boolean validateZipFile(File input, @FileChecks int checkType, TextFileContent desiredFile, AudioScan audio) {
+        int quickResult = quickCheckZipFile(input, checkType, desiredFile, audio);
+        if (quickResult == ZIP_CHECK_UNSURE)
+            return deepCheckZipFile(input, checkType, desiredFile, audio);
+        return quickResult == ZIP_CHECK_VALID;
+    }
+
+    // meta.json (the only file we read the content of while validating) is a few KB, and the other
+    // entries we read whole into memory (thumbnails, version.txt) aren't much bigger. A book whose
+    // zip headers claim one is bigger than this is damaged (or worse), and we won't believe it
+    // enough to allocate a buffer that big.
+    static final int MAX_DESIRED_FILE_SIZE = 1024 * 1024;
+
+    // Possible results of the quick zip file check.
+    static final int ZIP_CHECK_VALID = 0;
+    static final int ZIP_CHECK_INVALID = 1;
+    static final int ZIP_CHECK_UNSURE = 2;
+
+    @IntDef({ZIP_CHECK_VALID, ZIP_CHECK_INVALID, ZIP_CHECK_UNSURE})
+    @Retention(RetentionPolicy.SOURCE)
+    @interface ZipCheckResult {
+    }
+
+    // Check the structure of the zip file without unzipping it: the central directory must be
+    // intact, every entry must have a local header that agrees with it (name, method, CRC and
+    // sizes), and the entries' data must fit in the file.  This catches the truncated and
+    // half-copied files we actually see, and costs a few small reads per entry instead of
+    // inflating tens of megabytes of audio and video.  The only entry we inflate is desiredFile
+    // (if any), and its CRC is checked.  If the file uses zip features the quick check doesn't
+    // handle, we return ZIP_CHECK_UNSURE and the caller should fall back to deepCheckZipFile().
+    // If audio is not null, we also stream the html file through it if the book has an audio folder.
+    @ZipCheckResult
+    static int quickCheckZipFile(File input, @FileChecks int checkType, TextFileContent desiredFile, AudioScan audio) {
+        ZipCentralDirectory directory;
+        try {
+            directory = ZipCentralDirectory.open(input);
+        } catch (IOException e) {
+            return ZIP_CHECK_INVALID;
+        }
+        return quickCheckZip(directory, input.getName(), checkType, desiredFile, audio);
+    }
+
+    // The same quick check for a book we only have a uri for. This is just as cheap as for a file
+    // provided the document provider gives us a seekable descriptor, as local storage ones do.
+    @ZipCheckResult
+    static int quickCheckZipUri(Context context, Uri input, @FileChecks int checkType, TextFileContent desiredFile, AudioScan audio) {
+        ZipCentralDirectory directory;
+        try {
+            directory = ZipCentralDirectory.open(context, input);
+        } catch (IOException e) {
+            return ZIP_CHECK_INVALID;
+        } catch (RuntimeException e) {
+            // e.g., a SecurityException; let the sequential check sort it out.
+            return ZIP_CHECK_UNSURE;
+        }
+        return quickCheckZip(directory, BookOrShelf.getNameFromPath(input.getPath()), checkType, desiredFile, audio);
+    }
+
+    // Does the work of the quick checks, and closes the directory (which may be null, if the
+    // archive was one ZipCentralDirectory couldn't handle).
+    @ZipCheckResult
+    private static int quickCheckZip(ZipCentralDirectory directory, String displayName, @FileChecks int checkType, TextFileContent desiredFile, AudioScan audio) {
+        if (directory == null)
+            return ZIP_CHECK_UNSURE;
+        try {
+            int countHtml = 0;
+            int countCss = 0;
+            ZipCentralDirectory.Entry desiredEntry = null;
+            ZipCentralDirectory.Entry htmlEntry = null;
+            long previousEnd = 0;
+            boolean inOrder = true;
+            for (ZipCentralDirectory.Entry entry : directory.getEntries()) {
+                if (!directory.verifyLocalHeader(entry))
+                    return ZIP_CHECK_UNSURE;
+                // Entries are normally stored in the same order as the central directory lists them.
+                // If so, we can also cheaply check that no two entries overlap.
+                if (entry.localHeaderOffset < previousEnd)
+                    inOrder = false;
+                previousEnd = directory.getDataOffset(entry) + entry.compressedSize;
+                if (entry.isDirectory())
+                    continue;
+                if (audio != null)
+                    audio.noteEntry(entry.name);
+                String entryName = entry.name.toLowerCase(Locale.ROOT);
+                // For validation purposes we're only interested in html files in the root directory.
+                // Activities, for example, may legitimately have their own.
+                if ((entryName.endsWith(".htm") || entryName.endsWith(".html")) && entryName.indexOf("/") < 0) {
+                    ++countHtml;
+                    htmlEntry = entry;
+                }
+                else if (entryName.endsWith(".css"))
+                    ++countCss;
+                if (desiredFile != null && entryName.equals(desiredFile.getFilename()))
+                    desiredEntry = entry;
+            }
+            if (!inOrder)
+                return ZIP_CHECK_UNSURE;
+            if (checkType == IOUtilities.CHECK_BLOOMPUB && !(countHtml == 1 && countCss > 0))
+                return ZIP_CHECK_INVALID;
+            if (desiredEntry != null) {
+                InputStream stream = directory.getInputStream(desiredEntry);
+                try {
+                    if (readDesiredFile(stream, desiredFile, desiredEntry.size, desiredEntry.crc, displayName) < 0)
+                        return ZIP_CHECK_INVALID;
+                } finally {
+                    stream.close();
+                }
+            }
+            if (audio != null && htmlEntry != null && audio.needsHtml()) {
+                InputStream stream = directory.getInputStream(htmlEntry);
+                try {
+                    audio.scanHtml(stream);
+                } finally {
+                    stream.close();
+                }
+            }
+            return ZIP_CHECK_VALID;
+        } catch (IOException e) {
+            Log.e("IOUtilities", "Quick check failed for " + displayName + ": " + e.getMessage());
+            return ZIP_CHECK_INVALID;
+        } finally {
+            try {
+                directory.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // The original, thorough check: unzip every entry and make sure we get the expected amount of data.
+    static boolean deepCheckZipFile(File input, @FileChecks int checkType, TextFileContent desiredFile, AudioScan audio) {
         try {
             // REVIEW very minimal check for .bloompub/.bloomd files: are there any filenames guaranteed to exist
             // in any .bloompub/.bloomd file regardless of age?
@@ -235,53 +390,36 @@ public class IOUtilities {
                     ZipEntry entry = entries.nextElement();
                     if (entry.isDirectory())
                         continue;
+                    if (audio != null)
+                        audio.noteEntry(entry.getName());
                     String entryName = entry.getName().toLowerCase(Locale.ROOT);
                     // For validation purposes we're only interested in html files in the root directory.
                     // Activities, for example, may legitimately have their own.
-                    if ((entryName.endsWith(".htm") || entryName.endsWith(".html")) && entryName.indexOf("/")< 0)
+                    boolean isHtml = (entryName.endsWith(".htm") || entryName.endsWith(".html")) && entryName.indexOf("/")< 0;
+                    if (isHtml)
                         ++countHtml;
                     else if (entryName.endsWith(".css"))
                         ++countCss;
+                    boolean isDesired = desiredFile != null && entryName.equals(desiredFile.getFilename());
                     InputStream stream = zipFile.getInputStream(entry);
                     try {
-                        int realSize = (int)entry.getSize();
-                        byte[] buffer = new byte[realSize];
-                        boolean inOnePass = true;   // valid data only if it's read by a single read operation.
-                        int size = stream.read(buffer);
-                        if (size != realSize && !(size == -1 && realSize == 0)) {
-                            // The Java ZipEntry code does not always return the full data content even when the buffer is large
-                            // enough for it.  Whether this is a bug or a feature, or just the way it is, depends on your point
-                            // of view I suppose.  So we have a loop here since the initial read wasn't enough.
-                            inOnePass = false;
-                            int moreReadSize = stream.read(buffer);
-                            do {
-                                if (moreReadSize > 0) {
-                                    size += moreReadSize;
-                                    moreReadSize = stream.read(buffer);
-                                }
-                            } while (moreReadSize > 0);
-                            if (size != realSize) {
-                                // It would probably throw before getting here, but just in case, write
-                                // out some debugging information and return false.
-                                int compressedSize = (int)entry.getCompressedSize();
-                                int method = entry.getMethod();
-                                String type = "UNKNOWN (" + method + ")";
-                                switch (entry.getMethod()) {
-                                    case ZipEntry.STORED:
-                                        type = "STORED";
-                                        break;
-                                    case ZipEntry.DEFLATED:
-                                        type = "DEFLATED";
-                                        break;
-                                }
-                                Log.e("IOUtilities", "Unzip size read " + size + " != size expected " + realSize +
-                                        " for " + entry.getName() + " in " + input.getName() + ", compressed size = " + compressedSize + ", storage method = " + type);
+                        // Only the file we want the content of is read into memory; the rest
+                        // (including any big media files) just go through a pooled buffer, and
+                        // the html is searched for audio as it goes.
+                        long size;
+                        if (isDesired) {
+                            size = readDesiredFile(stream, desiredFile, entry.getSize(), entry.getCrc(), input.getName());
+                            if (size < 0)
                                 return false;
-                            }
-                        }
-                        if (inOnePass && desiredFile != null && entryName.equals(desiredFile.getFilename())) {
-                            // save the desired file content so we won't have to unzip again
-                            desiredFile.Content = new String(buffer, desiredFile.getEncoding());
+                        } else if (isHtml && audio != null)
+                            size = scanHtmlToEnd(stream, audio);
+                        else
+                            size = readToEnd(stream);
+                        if (size != entry.getSize()) {
+                            // It would probably throw before getting here, but just in case, write
+                            // out some debugging information and return false.
+                            logSizeMismatch(entry, size, input.getName());
+                            return false;
                         }
                     } finally {
                         stream.close();
@@ -290,17 +428,9 @@ public class IOUtilities {
             } finally {
                 zipFile.close();
             }
-            boolean retval;
             if (checkType == IOUtilities.CHECK_BLOOMPUB)
-                retval = countHtml == 1 && countCss > 0;
-            else
-                retval = true;
-            if (retval && sCheckedFiles != null) {
-                SharedPreferences.Editor editor = sCheckedFiles.edit();
-                editor.putLong(key, input.lastModified());
-                editor.apply();
-            }
-            return retval;
+                return countHtml == 1 && countCss > 0;
+            return true;
         } catch (Exception e) {
             return false;
         }
@@ -320,6 +450,32 @@ public class IOUtilities {
             if (timestamp == lastModified(context, input) && timestamp != 0L)
                 return true;
         }
+        boolean retval = validateZipUri(context, input, checkType, desiredFile);
+        if (retval && sCheckedFiles != null) {
+            SharedPreferences.Editor editor = sCheckedFiles.edit();
+            editor.putLong(key, lastModified(context, input));
+            editor.apply();
+        }
+        return retval;
+    }
+
+    // The check isValidZipUri() does, without consulting or updating its record of files
+    // already checked.
+    public static boolean validateZipUri(Context context, Uri input, @FileChecks int checkType, TextFileContent desiredFile) {
+        return validateZipUri(context, input, checkType, desiredFile, null);
+    }
+
+    // As above, and if audio is not null, also find out whether the book has audio.
+    public static boolean validateZipUri(Context context, Uri input, @FileChecks int checkType, TextFileContent desiredFile, AudioScan audio) {
+        int quickResult = quickCheckZipUri(context, input, checkType, desiredFile, audio);
+        if (quickResult == ZIP_CHECK_UNSURE)
+            return deepCheckZipUri(context, input, checkType, desiredFile, audio);
+        return quickResult == ZIP_CHECK_VALID;
+    }
+
+    // The original check for uris: read the whole thing sequentially and make sure every entry
+    // unzips to the expected amount of data.
+    private static boolean deepCheckZipUri(Context context, Uri input, @FileChecks int checkType, TextFileContent desiredFile, AudioScan audio) {
         try {
             // REVIEW very minimal check for .bloompub files: are there any filenames guaranteed to exist
             // in any .bloompub file regardless of age?
@@ -332,69 +488,137 @@ public class IOUtilities {
                 while ((entry = zis.getNextEntry()) != null) {
                     if (entry.isDirectory())
                         continue;
+                    if (audio != null)
+                        audio.noteEntry(entry.getName());
                     String entryName = entry.getName().toLowerCase(Locale.ROOT);
                     // For validation purposes we're only interested in html files in the root directory.
                     // Activities, for example, may legitimately have their own.
-                    if ((entryName.endsWith(".htm") || entryName.endsWith(".html")) && entryName.indexOf("/") < 0)
+                    boolean isHtml = (entryName.endsWith(".htm") || entryName.endsWith(".html")) && entryName.indexOf("/") < 0;
+                    if (isHtml)
                         ++countHtml;
                     else if (entryName.endsWith(".css"))
                         ++countCss;
-                    int realSize = (int) entry.getSize();
-                    byte[] buffer = new byte[realSize];
-                    if (realSize != 0) {
-                        // The Java ZipEntry code does not always return the full data content even when the buffer is large
-                        // enough for it.  Whether this is a bug or a feature, or just the way it is, depends on your point
-                        // of view I suppose.  So we have a loop here in case the initial read wasn't enough.
-                        int size = 0;
-                        int moreReadSize = zis.read(buffer, size, realSize - size);
-                        while (moreReadSize > 0) {
-                                size += moreReadSize;
-                                moreReadSize = zis.read(buffer, size, realSize - size);
-                        } ;
-                        if (size != realSize) {
-                            // It would probably throw before getting here, but just in case, write
-                            // out some debugging information and return false.
-                            int compressedSize = (int) entry.getCompressedSize();
-                            int method = entry.getMethod();
-                            String type = "UNKNOWN (" + method + ")";
-                            switch (entry.getMethod()) {
-                                case ZipEntry.STORED:
-                                    type = "STORED";
-                                    break;
-                                case ZipEntry.DEFLATED:
-                                    type = "DEFLATED";
-                                    break;
-                            }
-                            Log.e("IOUtilities", "Unzip size read " + size + " != size expected " + realSize +
-                                    " for " + entry.getName() + " in " + BookOrShelf.getNameFromPath(input.getPath()) + ", compressed size = " + compressedSize + ", storage method = " + type);
+                    boolean isDesired = desiredFile != null && entryName.equals(desiredFile.getFilename());
+                    long size;
+                    if (isDesired) {
+                        // (The sizes and CRC may only follow the data, in which case ZipInputStream
+                        // checks them itself.)
+                        size = readDesiredFile(zis, desiredFile, entry.getSize(), entry.getCrc(), BookOrShelf.getNameFromPath(input.getPath()));
+                        if (size < 0)
                             return false;
-                        }
-                    }
-                    if (desiredFile != null && entryName.equals(desiredFile.getFilename())) {
-                        // save the desired file content so we won't have to unzip again
-                        desiredFile.Content = new String(buffer, desiredFile.getEncoding());
+                    } else if (isHtml && audio != null)
+                        size = scanHtmlToEnd(zis, audio);
+                    else
+                        size = readToEnd(zis);
+                    // (If the sizes follow the data, ZipInputStream knows them now we've read it.)
+                    if (size != entry.getSize()) {
+                        // It would probably throw before getting here, but just in case, write
+                        // out some debugging information and return false.
+                        logSizeMismatch(entry, size, BookOrShelf.getNameFromPath(input.getPath()));
+                        return false;
                     }
                 }
             } finally {
                 zis.close();
                 fs.close();
             }
-            boolean retval;
             if (checkType == IOUtilities.CHECK_BLOOMPUB)
-                retval = countHtml == 1 && countCss > 0;
-            else
-                retval = true;
-            if (retval && sCheckedFiles != null) {
-                SharedPreferences.Editor editor = sCheckedFiles.edit();
-                editor.putLong(key, lastModified(context, input));
-                editor.apply();
-            }
-            return retval;
+                return countHtml == 1 && countCss > 0;
+            return true;
         } catch (Exception e) {
             return false;
         }
     }
 
+    // Read the file we want the content of (meta.json) into desiredFile, saving it so we won't
+    // have to unzip again, and return its size. If it is bigger than MAX_DESIRED_FILE_SIZE, or
+    // isn't expectedSize bytes with CRC expectedCrc (either may be -1 if not known), we log it
+    // and return -1. The file nearly always fits in a pooled buffer, so validating a library
+    // allocates little more than the strings themselves.
+    private static long readDesiredFile(InputStream stream, TextFileContent desiredFile, long expectedSize, long expectedCrc, String bookName) throws IOException {
+        if (expectedSize > MAX_DESIRED_FILE_SIZE) {
+            Log.e("IOUtilities", desiredFile.getFilename() + " is too big (" + expectedSize + " bytes) in " + bookName);
+            return -1;
+        }
+        byte[] buffer = BufferPool.acquire();
+        try {
+            CRC32 crc = new CRC32();
+            // What has been read before the part in buffer, if the file is bigger than one buffer.
+            ByteArrayOutputStream earlier = null;
+            long total = 0;
+            int size = 0;
+            int count;
+            while ((count = stream.read(buffer, size, buffer.length - size)) != -1) {
+                size += count;
+                total += count;
+                if (total > MAX_DESIRED_FILE_SIZE) {
+                    Log.e("IOUtilities", desiredFile.getFilename() + " is too big in " + bookName);
+                    return -1;
+                }
+                if (size == buffer.length) {
+                    if (earlier == null)
+                        earlier = new ByteArrayOutputStream();
+                    earlier.write(buffer, 0, size);
+                    crc.update(buffer, 0, size);
+                    size = 0;
+                }
+            }
+            crc.update(buffer, 0, size);
+            if ((expectedSize >= 0 && total != expectedSize) || (expectedCrc >= 0 && crc.getValue() != expectedCrc)) {
+                Log.e("IOUtilities", "Bad data for " + desiredFile.getFilename() + " in " + bookName);
+                return -1;
+            }
+            if (earlier == null) {
+                desiredFile.Content = new String(buffer, 0, size, desiredFile.getEncoding());
+            } else {
+                earlier.write(buffer, 0, size);
+                desiredFile.Content = earlier.toString(desiredFile.getEncoding());
+            }
+            return total;
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    // Read (and discard) the rest of the stream, returning how many bytes there were.
+    static long readToEnd(InputStream stream) throws IOException {
+        byte[] buffer = BufferPool.acquire();
+        try {
+            long total = 0;
+            int count;
+            while ((count = stream.read(buffer)) != -1)
+                total += count;
+            return total;
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    // Search the book's html for audio as it streams past, then read (and discard) whatever the
+    // search didn't need, returning how many bytes there were in all.
+    private static long scanHtmlToEnd(InputStream stream, AudioScan audio) throws IOException {
+        CountingInputStream counter = new CountingInputStream(stream);
+        audio.scanHtml(counter);
+        readToEnd(counter);
+        return counter.getByteCount();
+    }
+
+    private static void logSizeMismatch(ZipEntry entry, long size, String bookName) {
+        long compressedSize = entry.getCompressedSize();
+        int method = entry.getMethod();
+        String type = "UNKNOWN (" + method + ")";
+        switch (entry.getMethod()) {
+            case ZipEntry.STORED:
+                type = "STORED";
+                break;
+            case ZipEntry.DEFLATED:
+                type = "DEFLATED";
+                break;
+        }
+        Log.e("IOUtilities", "Unzip size read " + size + " != size expected " + entry.getSize() +
+                " for " + entry.getName() + " in " + bookName + ", compressed size = " + compressedSize + ", storage method = " + type);
+    }
+
     public static long lastModified(Context context, Uri uri) {
         if (uri == null) return 0; // sometimes we make a URI for a file that might not exist, like something.modified.
         if (uri.getScheme().equals("file")) {
@@ -414,6 +638,24 @@ public class IOUtilities {
         return 0;
     }
 
+    public static long fileSize(Context context, Uri uri) {
+        if (uri == null) return 0;
+        if (uri.getScheme().equals("file")) {
+            return new File(uri.getPath()).length(); // returns zero if anything goes wrong.
+        }
+        if (uri.getScheme().equals("content")) {
+            // SAF type URIs.
+            try (Cursor cursor = context.getContentResolver().query(uri, new String[] {DocumentsContract.Document.COLUMN_SIZE}, null, null, null)) {
+                if (cursor != null && cursor.moveToFirst())
+                    return cursor.getLong(0);
+            } catch (Exception e) {
+                e.printStackTrace();
+                return 0;
+            }
+        }
+        return 0;
+    }
+
     // Return a 'File' object representing the old Bloom directory where Bloom used to store book
     // files when the OS allowed it.
     public static File getOldBloomBooksFolder(Context context) {
@@ -437,7 +679,34 @@ public class IOUtilities {
         oldBloomDirectory.mkdirs();
     }
 
+    // The content of the named entry, or null if the book doesn't have it or we can't read it
+    // (as the File version below does).
     public static byte[] ExtractZipEntry(Context context, Uri uri, String entryName) {
+        // Usually we can go straight to the entry we want.
+        try {
+            ZipCentralDirectory directory = ZipCentralDirectory.open(context, uri);
+            if (directory != null) {
+                try {
+                    ZipCentralDirectory.Entry entry = directory.getEntry(entryName);
+                    if (entry == null)
+                        return null;
+                    InputStream stream = directory.getInputStream(entry);
+                    try {
+                        return readSmallEntry(stream, entryName, entry.size, entry.crc);
+                    } finally {
+                        stream.close();
+                    }
+                } finally {
+                    directory.close();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } catch (RuntimeException e) {
+            // fall back to reading the uri sequentially.
+            e.printStackTrace();
+        }
         InputStream fs = null;
         try {
             fs = context.getContentResolver().openInputStream(uri);
@@ -447,21 +716,48 @@ public class IOUtilities {
                     && !ze.getName().equals(entryName)) {
             }
             if (ze == null)
-                return new byte[0];
-            int size = (int) ze.getSize();
-            final byte[] output = new byte[size];
-            int offset = 0;
-            int count = 0;
-            while ((count = zis.read(output, offset, output.length - offset)) > 0) {
-                offset += count;
-            }
-            return output;
+                return null;
+            // (The size may only follow the data, in which case it is -1 here and ZipInputStream
+            // checks the size and CRC itself.)
+            return readSmallEntry(zis, entryName, ze.getSize(), ze.getCrc());
         } catch (FileNotFoundException e) {
             e.printStackTrace();
         } catch (IOException e) {
             e.printStackTrace();
         }
-        return new byte[0];
+        return null;
+    }
+
+    // Read the whole of an entry we want in memory, or return null if it is (or claims to be)
+    // bigger than MAX_DESIRED_FILE_SIZE, or isn't expectedSize bytes with CRC expectedCrc (either
+    // may be -1 if not known). Zip headers in a damaged book can claim anything, so we don't
+    // trust them for the size of the array.
+    private static byte[] readSmallEntry(InputStream stream, String entryName, long expectedSize, long expectedCrc) throws IOException {
+        if (expectedSize > MAX_DESIRED_FILE_SIZE) {
+            Log.e("IOUtilities", entryName + " is too big (" + expectedSize + " bytes)");
+            return null;
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream(expectedSize >= 0 ? (int) expectedSize : 8192);
+        CRC32 crc = new CRC32();
+        byte[] buffer = BufferPool.acquire();
+        try {
+            int count;
+            while ((count = stream.read(buffer)) != -1) {
+                if (output.size() + count > MAX_DESIRED_FILE_SIZE) {
+                    Log.e("IOUtilities", entryName + " is too big");
+                    return null;
+                }
+                output.write(buffer, 0, count);
+                crc.update(buffer, 0, count);
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+        if ((expectedSize >= 0 && output.size() != expectedSize) || (expectedCrc >= 0 && crc.getValue() != expectedCrc)) {
+            Log.e("IOUtilities", "Bad data for " + entryName);
+            return null;
+        }
+        return output.toByteArray();
     }
 
     public static byte[] ExtractZipEntry(File input, String entryName) {
@@ -532,17 +828,35 @@ public class IOUtilities {
             return false;
         }
     }
+    // InputStream.skip() may skip less than asked (InflaterInputStream, for example, skips at
+    // most 512 bytes at a time), so keep going until we get there or run out of data.
+    public static void skipFully(InputStream stream, long count) throws IOException {
+        while (count > 0) {
+            long skipped = stream.skip(count);
+            if (skipped <= 0) {
+                if (stream.read() < 0)
+                    throw new EOFException("tried to skip past the end of the stream");
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
     public static void readFileFromInput(InputStream fromStream, File output) throws IOException {
         int totalRead = 0;
         try {
         output.getParentFile().mkdirs(); // can't find a clear answer on whether createNewFile will do this
         output.createNewFile(); //this does nothing if if already exists
         OutputStream out = new FileOutputStream(output);
-        byte[] buffer = new byte[BUFFER_SIZE];
-        int read;
-        while ((read = fromStream.read(buffer)) != -1) {
-            out.write(buffer, 0, read);
-            totalRead += read;
+        byte[] buffer = BufferPool.acquire();
+        try {
+            int read;
+            while ((read = fromStream.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                totalRead += read;
+            }
+        } finally {
+            BufferPool.release(buffer);
         }
         fromStream.close();
         out.flush();
@@ -629,55 +943,20 @@ public class IOUtilities {
         return null;
     }
 
-    public static void tar(String directory, FilenameFilter filter, String destinationPath) throws IOException {
-        File[] fileList = new File(directory).listFiles(filter);
-        tar(fileList, destinationPath);
-    }
-
-    public static void tar(File[] files, String destinationPath) throws IOException {
-        File destination = new File(destinationPath);
-        File destDirectory = destination.getParentFile();
-        if (!destDirectory.exists())
-            destDirectory.mkdirs();
-
-        TarArchiveOutputStream tarOutput = new TarArchiveOutputStream(new FileOutputStream(destinationPath));
-        tarOutput.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
-        for(File file : files) {
-            String bookFileName = file.getName();
-            // Here we don't want to rename bloom shelves. And eventually we will take this out.
-            // But currently older bloom readers won't handle bloombundles containing bloompubs.
-            if (bookFileName.endsWith(".bloompub")) {
-                int index = bookFileName.lastIndexOf(".");
-                if (index >= 0) {
-                    bookFileName = bookFileName.substring(0, index);
-                }
-                bookFileName += ".bloomd";
-            }
-            TarArchiveEntry entry = new TarArchiveEntry(file, bookFileName);
-            tarOutput.putArchiveEntry(entry);
-            FileInputStream in = new FileInputStream(file);
-            IOUtils.copy(in, tarOutput);
-            in.close();
-            tarOutput.closeArchiveEntry();
-        }
-        tarOutput.close();
-    }
-
-    public static void makeBloomBundle(String destinationPath) throws IOException {
-
-        FilenameFilter filter = (dir, filename) ->
-                isBloomPubFile(filename) || filename.endsWith(BOOKSHELF_FILE_EXTENSION);
-        tar(getLocalBooksDirectory().getAbsolutePath(), filter, destinationPath);
-        //zip(getLocalBooksDirectory().getAbsolutePath(), filter, destinationPath);
-    }
-
     public static String extractTarEntry(TarArchiveInputStream tarInput, String targetPath) throws IOException {
         ArchiveEntry entry = tarInput.getCurrentEntry();
         File destPath=new File(targetPath,entry.getName());
+        extractTarEntry(tarInput, destPath);
+        return destPath.getPath();
+    }
+
+    // Write the current entry of the tar to destPath, which need not have the entry's name.
+    public static void extractTarEntry(TarArchiveInputStream tarInput, File destPath) throws IOException {
+        ArchiveEntry entry = tarInput.getCurrentEntry();
         if (!entry.isDirectory()) {
             FileOutputStream fout=new FileOutputStream(destPath);
+            final byte[] buffer=BufferPool.acquire();
             try{
-                final byte[] buffer=new byte[8192];
                 int n=0;
                 while (-1 != (n=tarInput.read(buffer))) {
                     fout.write(buffer,0,n);
@@ -690,11 +969,13 @@ public class IOUtilities {
                 tarInput.close();
                 throw e;
             }
+            finally {
+                BufferPool.release(buffer);
+            }
         }
         else {
             destPath.mkdir();
         }
-        return destPath.getPath();
     }
 
     public static File nonRemovablePublicStorageRoot(Context context) {
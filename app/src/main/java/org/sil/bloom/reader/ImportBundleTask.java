@@ -1,6 +1,7 @@
 package org.sil.bloom.reader;
 
 import android.annotation.SuppressLint;
+import android.content.Context;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.util.Log;
@@ -8,16 +9,30 @@ import android.widget.Toast;
 
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.sil.bloom.reader.models.BookCatalog;
+import org.sil.bloom.reader.models.BookCollection;
 
+import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.sil.bloom.reader.models.BookCollection.getLocalBooksDirectory;
 
 public class ImportBundleTask extends AsyncTask<Uri, String, Void> {
+    // Suffix for a book from a bundle that hasn't been validated yet. (Not a book extension, so
+    // nothing else will take it for a book.)
+    private static final String IMPORTING_SUFFIX = ".importing";
+    // Content providers often hand us unbuffered streams, and tar reads them a record at a time.
+    private static final int BUNDLE_BUFFER_SIZE = 64 * 1024;
+
     private final WeakReference<MainActivity> mainActivityRef;
     private final Toast toast;
     private final List<String> newBookPaths;
@@ -83,20 +98,29 @@ public class ImportBundleTask extends AsyncTask<Uri, String, Void> {
             return;
 
         TarArchiveInputStream tarInput = null;
+        BookInstaller installer = new BookInstaller(mainActivity.getApplicationContext());
+        int booksFound = 0;
         try {
             InputStream fs = mainActivity.getContentResolver().openInputStream(bloomBundleUri);
-            tarInput = new TarArchiveInputStream(fs);
+            tarInput = new TarArchiveInputStream(new BufferedInputStream(fs, BUNDLE_BUFFER_SIZE));
 
             final String booksDirectoryPath = getLocalBooksDirectory().getAbsolutePath();
             ArchiveEntry entry;
             while ((entry = tarInput.getNextEntry()) != null) {
                 publishProgress(entry.getName());
-                newBookPaths.add(IOUtilities.extractTarEntry(tarInput, booksDirectoryPath));
+                if (entry.isDirectory() || !IOUtilities.isBloomPubFile(entry.getName())) {
+                    newBookPaths.add(IOUtilities.extractTarEntry(tarInput, booksDirectoryPath));
+                    continue;
+                }
+                // Books go in under a temporary name; the installer checks each one and gives it
+                // its real name while we carry on extracting the next.
+                File destination = new File(booksDirectoryPath, BookCollection.fixBloomdName(entry.getName()));
+                File temp = new File(destination.getPath() + IMPORTING_SUFFIX);
+                IOUtilities.extractTarEntry(tarInput, temp);
+                installer.submit(temp, destination, entry.getSize());
+                booksFound++;
             }
             tarInput.close();
-            if (newBookPaths.isEmpty()) {
-                importBundleErrorHandler.addErrorUri(bloomBundleUri, null);
-            }
         } catch (IOException e) {
             // It could be that a .bloombundle.enc file really is still uuencoded I suppose.
             // Or the file could have been corrupted.
@@ -104,6 +128,71 @@ public class ImportBundleTask extends AsyncTask<Uri, String, Void> {
                 tarInput.close();
             if (bloomBundleUri != null)
                 importBundleErrorHandler.addErrorUri(bloomBundleUri, e);
+            // Books we got before the problem are still worth keeping.
+            newBookPaths.addAll(installer.finish());
+            return;
+        }
+        List<String> installed = installer.finish();
+        newBookPaths.addAll(installed);
+        if (newBookPaths.isEmpty() || installed.size() < booksFound) {
+            importBundleErrorHandler.addErrorUri(bloomBundleUri, null);
+        }
+    }
+
+    // Validates the books of a bundle (checking the zip's central directory and reading its
+    // meta.json, which also tells us whether it has audio) on a thread of its own, so that each
+    // book is checked while the next one is coming out of the tar. A good book is renamed into
+    // place and recorded in the BookCatalog, so reloading the book list afterwards doesn't have to
+    // open it again; a bad one is deleted.
+    private static class BookInstaller {
+        private final Context mContext;
+        private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+        private final List<Future<String>> mPending = new ArrayList<>();
+
+        BookInstaller(Context context) {
+            mContext = context;
+        }
+
+        void submit(final File temp, final File destination, final long expectedSize) {
+            mPending.add(mExecutor.submit(() -> install(temp, destination, expectedSize)));
+        }
+
+        // Returns the path of the installed book, or null if it was no good.
+        private String install(File temp, File destination, long expectedSize) {
+            TextFileContent metaFile = new TextFileContent("meta.json");
+            AudioScan audio = new AudioScan();
+            if (temp.length() != expectedSize
+                    || !IOUtilities.validateZipFile(temp, IOUtilities.CHECK_BLOOMPUB, metaFile, audio)) {
+                Log.e("BundleIO", "Discarding invalid book " + destination.getName() + " from bloom bundle");
+                temp.delete();
+                return null;
+            }
+            if (destination.exists())
+                destination.delete();
+            if (!temp.renameTo(destination)) {
+                Log.e("BundleIO", "Could not rename " + temp.getPath() + " to " + destination.getName());
+                temp.delete();
+                return null;
+            }
+            BookCollection.catalogValidatedBook(mContext, destination, metaFile, audio.getResult());
+            return destination.getPath();
+        }
+
+        // Wait for everything submitted and return the paths of the books installed.
+        List<String> finish() {
+            List<String> paths = new ArrayList<>();
+            for (Future<String> pending : mPending) {
+                try {
+                    String path = pending.get();
+                    if (path != null)
+                        paths.add(path);
+                } catch (InterruptedException | ExecutionException e) {
+                    Log.e("BundleIO", "Problem installing book from bloom bundle", e);
+                }
+            }
+            mExecutor.shutdown();
+            BookCatalog.getInstance(mContext).saveIfDirty();
+            return paths;
         }
     }
 
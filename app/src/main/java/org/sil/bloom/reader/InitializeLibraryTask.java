@@ -9,10 +9,15 @@ import android.widget.LinearLayout;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
+import org.sil.bloom.reader.models.BookCollection;
+import org.sil.bloom.reader.models.BookOrShelf;
+
 import java.lang.ref.WeakReference;
 import java.util.Date;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // This task is in charge of loading up the book collection asynchronously.  When there are a large
 // number of books, especially in the external folder, startup can be rather slow before everything
@@ -23,6 +28,9 @@ public class InitializeLibraryTask extends AsyncTask<Void, Void, Void> {
     private final WeakReference<MainActivity> mainActivityRef;
     private final long mBeginningTime = new Date().getTime();
     private Timer mTimer;
+    // Books are loaded on several threads at once, so we count them here and let the UI thread
+    // show the latest total, rather than relying on each increment arriving separately.
+    private final AtomicInteger mBooksProcessed = new AtomicInteger();
 
     public InitializeLibraryTask(MainActivity mainActivity) {
         this.mainActivityRef = new WeakReference<>(mainActivity);
@@ -38,11 +46,37 @@ public class InitializeLibraryTask extends AsyncTask<Void, Void, Void> {
 
         mainActivity.runOnUiThread(() -> mainActivity.mLoadingProgressBar.setMax(count));
     }
-    // Advance the progress bar for one book being processed.
+    // Advance the progress bar for one book being processed.  Safe to call from any thread.
     public void incrementBookProgress() {
+        mBooksProcessed.incrementAndGet();
         publishProgress();
     }
 
+    // Show a batch of books as soon as they are loaded, instead of waiting for the whole library.
+    // The UI thread puts each one in its place in the displayed list and tells the adapter about
+    // just that row.
+    public void showLoadedBooks(final List<BookOrShelf> books) {
+        final MainActivity mainActivity = mainActivityRef.get();
+        if (mainActivity == null || mainActivity.isFinishing())
+            return;
+
+        mainActivity.runOnUiThread(() -> {
+            final BookListAdapter adapter = mainActivity.mBookListAdapter;
+            BloomReaderApplication.theOneBookCollection.showLoadedBooks(books, adapter == null ? null :
+                    new BookCollection.FilteredListListener() {
+                        @Override
+                        public void onItemsInserted(int position, int count) {
+                            adapter.notifyItemRangeInserted(position, count);
+                        }
+
+                        @Override
+                        public void onItemRemoved(int position) {
+                            adapter.notifyItemRemoved(position);
+                        }
+                    });
+        });
+    }
+
     @Override
     protected Void doInBackground(Void... v) {
         // get a reference to the activity if it is still there
@@ -60,7 +94,8 @@ public class InitializeLibraryTask extends AsyncTask<Void, Void, Void> {
         if (mainActivity == null || mainActivity.isFinishing())
             return;
 
-        mainActivity.mLoadingProgressBar.incrementProgressBy(1);
+        if (mainActivity.mLoadingProgressBar != null)
+            mainActivity.mLoadingProgressBar.setProgress(mBooksProcessed.get());
     }
     @Override
     protected void onPostExecute(Void v) {
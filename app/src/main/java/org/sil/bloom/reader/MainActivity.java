@@ -12,12 +12,14 @@ import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.provider.DocumentsContract;
 import android.text.SpannableString;
 import android.text.format.DateFormat;
+import android.text.format.Formatter;
 import android.text.method.LinkMovementMethod;
 import android.text.style.ForegroundColorSpan;
 import android.text.util.Linkify;
@@ -55,6 +57,7 @@ import com.segment.analytics.Analytics;
 import com.segment.analytics.Properties;
 
 import org.json.JSONObject;
+import org.sil.bloom.reader.models.BookCatalog;
 import org.sil.bloom.reader.models.BookCollection;
 import org.sil.bloom.reader.models.BookOrShelf;
 import org.sil.bloom.reader.wifi.GetFromWiFiActivity;
@@ -467,9 +470,14 @@ public class MainActivity extends BaseActivity
                 SAFUtilities.searchDirectoryForBooks(this, SAFUtilities.getBloomDirectoryTreeUri(), new BookSearchListener() {
                     @Override
                     public void onFoundBookOrShelf(File bloomdFile, Uri bookOrShelfUri) {
+                        onFoundBookOrShelf(bloomdFile, bookOrShelfUri, -1, -1);
+                    }
+
+                    @Override
+                    public void onFoundBookOrShelf(File bloomdFile, Uri bookOrShelfUri, long size, long lastModified) {
                         String fileName = BookCollection.fixBloomd(IOUtilities.getFileNameFromUri(context, bookOrShelfUri));
                         File privateStorageFile = new File(newBloomDir + "/" + fileName);
-                        final long bloomDirectoryModifiedTime = IOUtilities.lastModified(context, bookOrShelfUri);
+                        final long bloomDirectoryModifiedTime = lastModified >= 0 ? lastModified : IOUtilities.lastModified(context, bookOrShelfUri);
                         if (privateStorageFile.exists() && privateStorageFile.lastModified() >= bloomDirectoryModifiedTime)
                             return; // already have this version of book, or an even newer one
                         if (bloomDirectoryModifiedTime>mostRecentlyModifiedBloomFileTime) {
@@ -524,9 +532,10 @@ public class MainActivity extends BaseActivity
 
         NavigationView navigationView = findViewById(R.id.nav_view);
         navigationView.setNavigationItemSelectedListener(this);
-        // This menu option should not be shown in production.
+        // These menu options should not be shown in production.
         if (!BuildConfig.DEBUG && !BuildConfig.FLAVOR.equals("alpha")) {
             navigationView.getMenu().removeItem(R.id.nav_test_location_analytics);
+            navigationView.getMenu().removeItem(R.id.nav_test_shared_book_files);
         }
 
         Button getMoreBooksButton = findViewById(R.id.get_more_books);
@@ -765,6 +774,9 @@ public class MainActivity extends BaseActivity
 
         //Periodic cleanup
         SharingManager.fileCleanup(this);
+
+        // Get the book we think will be read next ready while the child is choosing.
+        BookPrefetcher.getInstance().prefetchNextBook(this, _bookCollection);
     }
 
     // a hook to allow ShelfActivity to set a real filter.
@@ -776,6 +788,10 @@ public class MainActivity extends BaseActivity
     @Override
     protected void onPause() {
         stopObserving();
+        BookPrefetcher.getInstance().cancel();
+        // Keep what we've learned about the books (e.g., which have audio) for next time.
+        final BookCatalog catalog = BookCatalog.getInstance(this);
+        AsyncTask.execute(catalog::saveIfDirty);
 
         super.onPause();
     }
@@ -873,9 +889,7 @@ public class MainActivity extends BaseActivity
 
     private void shareShelf(BookOrShelf shelf){
         List<BookOrShelf> booksAndShelves = _bookCollection.getAllBooksWithinShelf(shelf);
-        ShareShelfDialogFragment dialogFragment = new ShareShelfDialogFragment();
-        dialogFragment.setBooksAndShelves(booksAndShelves);
-        dialogFragment.show(getSupportFragmentManager(), ShareShelfDialogFragment.FRAGMENT_TAG);
+        new SharingManager(this).shareShelf(booksAndShelves);
     }
 
     private void deleteBookOrShelf(){
@@ -1017,6 +1031,7 @@ public class MainActivity extends BaseActivity
     }
 
     public static void launchReader(Context context, String path, BookOrShelf bookOrShelf) {
+        BookPrefetcher.getInstance().noteBookOpened(bookOrShelf != null ? bookOrShelf.pathOrUri : path);
         Intent intent = new Intent(context, ReaderActivity.class);
         intent.putExtra("bookPath", path);
         if (bookOrShelf != null) {
@@ -1141,6 +1156,8 @@ public class MainActivity extends BaseActivity
             }
         } else if (id == R.id.nav_test_location_analytics) {
                 showLocationAnalyticsData();
+        } else if (id == R.id.nav_test_shared_book_files) {
+                showSharedBookFilesData();
         } else if (id == R.id.about_reader) {
                 DisplaySimpleResource(getString(R.string.about_bloom_reader), R.raw.about_reader);
         } else if (id == R.id.about_bloom) {
@@ -1362,6 +1379,31 @@ public class MainActivity extends BaseActivity
         alertDialog.show();
     }
 
+    // Show how much space the AssetStore is saving by sharing files between extracted books.
+    // Like the location data, this is a debugging tool, so the message is not localized.
+    private void showSharedBookFilesData() {
+        final Context context = getApplicationContext();
+        // Getting the stats looks at every file in the store, so not on the UI thread.
+        new Thread(() -> {
+            final AssetStore.Stats stats = AssetStore.getInstance(context).getStats();
+            runOnUiThread(() -> {
+                if (isFinishing())
+                    return;
+                String message = "Books being read share " + stats.files + " files ("
+                        + Formatter.formatShortFileSize(this, stats.bytes) + "), saving "
+                        + Formatter.formatShortFileSize(this, stats.bytesSaved) + ". Since Bloom Reader started, "
+                        + stats.filesReused + " files (" + Formatter.formatShortFileSize(this, stats.bytesNotWritten)
+                        + ") did not need to be extracted again.";
+                AlertDialog alertDialog = new AlertDialog.Builder(this, R.style.AlertDialogTheme).create();
+                alertDialog.setTitle("Shared Book Files");
+                alertDialog.setMessage(message);
+                alertDialog.setButton(AlertDialog.BUTTON_NEUTRAL, "OK",
+                        (dialog, which) -> dialog.dismiss());
+                alertDialog.show();
+            });
+        }).start();
+    }
+
     private void showLocationAnalyticsData() {
         // Check that the user is actually willing to give us permission to do what was just
         // requested.
@@ -6,6 +6,7 @@ import androidx.annotation.Nullable;
 
 import android.content.Intent;
 import android.net.Uri;
+import android.webkit.MimeTypeMap;
 import android.webkit.WebResourceRequest;
 import android.webkit.WebResourceResponse;
 import android.webkit.WebView;
@@ -13,19 +14,27 @@ import android.webkit.WebViewClient;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
 
 // This class improves security. Our WebView is, at the level of its basic settings, allowed
 // extensive file system access. However, all the requests for anything come through this
 // class's shouldInterceptRequest method. We forbid any access to any url that isn't part
 // of the folder where we decompressed this book. (Files that are in the app's assets folder,
 // like our question sounds, are exempt from this check.)
+// Files in the book folder that haven't already been extracted are streamed straight out of the
+// book's zip file, so big audio and video files never need to be copied to internal storage.
+// Ones that are stored uncompressed (as media often are) are read straight from the book file.
 public class ReaderWebViewClient extends WebViewClient {
 
     String mAllowedPathPrefix;
+    String mBookFolderPath;
     BloomFileReader mFileReader;
     int mLengthOfCanonicalPrefix;
     public ReaderWebViewClient(String bookFolderPath, BloomFileReader fileReader) {
@@ -33,6 +42,7 @@ public class ReaderWebViewClient extends WebViewClient {
         // a file:// url to the root html directory in that folder. So any valid urls
         // will start with file:// plus the path to the folder.
         mAllowedPathPrefix = "file://" + bookFolderPath;
+        mBookFolderPath = bookFolderPath;
         mFileReader = fileReader;
         // To get a key for fileReader.tryGetFile, we need to take the canonical path
         // of the file requested and strip off the bit indicated by allowedPathPrefix.
@@ -49,7 +59,21 @@ public class ReaderWebViewClient extends WebViewClient {
         if (fontResponse != null)
             return fontResponse;
 
-        if (urlIsAllowed(url))
+        String keyInZip = getKeyInBook(url);
+        if (keyInZip != null) {
+            // If the file hasn't already been extracted (as index.htm always is), stream it
+            // straight out of the zip rather than copying it to the book folder first. That
+            // matters a lot for books with big videos.
+            if (!new File(mBookFolderPath, keyInZip).exists()) {
+                WebResourceResponse response = getResponseFromZip(keyInZip, request);
+                if (response != null)
+                    return response;
+                // Make sure the file we want has been unzipped.
+                mFileReader.tryGetFile(keyInZip);
+            }
+            return super.shouldInterceptRequest(view, request);
+        }
+        if (urlIsAppAsset(url))
             return super.shouldInterceptRequest(view, request);
 
         return new WebResourceResponse("text", "utf-8", 403,
@@ -121,11 +145,32 @@ public class ReaderWebViewClient extends WebViewClient {
         return null;
     }
 
+    // If the url is for something in the folder where we are putting this book, return the name
+    // of the corresponding entry in the zip file; otherwise return null.
     // We use the canonical path of the file to prevent hacks involving a valid directory
     // prefix followed by multiple "../" to get back to one that is not permitted.
-    private boolean urlIsAllowed(String url) {
+    private String getKeyInBook(String url) {
+        String canonicalUrl = getCanonicalFileUrl(url);
+        if (canonicalUrl == null || !canonicalUrl.startsWith(mAllowedPathPrefix))
+            return null;
+        String keyInZip = canonicalUrl.substring("file://".length() + mLengthOfCanonicalPrefix);
+        int index = keyInZip.indexOf("?");
+        if (index >= 0) {
+            keyInZip = keyInZip.substring(0,index);
+        }
+        return keyInZip;
+    }
+
+    // I think this only happens before Android 21 (Lollipop); in later androids,
+    // the app's own assets are automatically OK.
+    private boolean urlIsAppAsset(String url) {
+        String canonicalUrl = getCanonicalFileUrl(url);
+        return canonicalUrl != null && canonicalUrl.startsWith("file:///android_asset/bloom-player/");
+    }
+
+    private String getCanonicalFileUrl(String url) {
         if (!url.startsWith("file://"))
-            return false;
+            return null;
         String path = null;
         try {
             path = URLDecoder.decode(url.substring("file://".length()), "UTF-8");
@@ -133,22 +178,203 @@ public class ReaderWebViewClient extends WebViewClient {
             e.printStackTrace(); // absolutely stupid compiler requirement, of course UTF-8 is supported!
         }
         try {
-            String canonicalPath = new File(path).getCanonicalPath();
-            String canonicalUrl = "file://" + canonicalPath;
-            if (canonicalUrl.startsWith(mAllowedPathPrefix)) {
-                // Make sure the file we want has been unzipped.
-                String keyInZip = canonicalPath.substring(mLengthOfCanonicalPrefix);
-                int index = keyInZip.indexOf("?");
-                if (index >= 0) {
-                    keyInZip = keyInZip.substring(0,index);
-                }
-                mFileReader.tryGetFile(keyInZip);
-                return true;
+            return "file://" + new File(path).getCanonicalPath();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Make a response that streams the entry out of the book's zip file, honoring a Range header
+    // if there is one (audio and video elements typically ask for a range, especially when seeking).
+    // Returns null if the entry isn't in the zip.
+    private WebResourceResponse getResponseFromZip(String keyInZip, WebResourceRequest request) {
+        long size = mFileReader.getEntrySize(keyInZip);
+        if (size < 0)
+            return null;
+        String mimeType = getMimeType(keyInZip);
+        String encoding = mimeType.startsWith("text/") || mimeType.endsWith("json") ? "utf-8" : null;
+        HashMap<String, String> headers = new HashMap<>();
+        headers.put("Accept-Ranges", "bytes");
+        long[] range = parseRange(getHeader(request, "Range"), size);
+        if (range != null && range.length == 0) {
+            headers.put("Content-Range", "bytes */" + size);
+            return new WebResourceResponse(mimeType, encoding, 416, "Range Not Satisfiable",
+                    headers, new ByteArrayInputStream("".getBytes()));
+        }
+        ZipFileOrUri.StoredRange stored = mFileReader.getStoredRange(keyInZip);
+        if (stored != null) {
+            // No need to go through a zip stream: the bytes are right there in the book file.
+            long start = range == null ? 0 : range[0];
+            long length = range == null ? size : range[1] - range[0] + 1;
+            InputStream content = new ChannelRangeInputStream(stored.channel, stored.offset + start, length);
+            headers.put("Content-Length", Long.toString(length));
+            if (range == null)
+                return new WebResourceResponse(mimeType, encoding, 200, "OK", headers, content);
+            headers.put("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
+            return new WebResourceResponse(mimeType, encoding, 206, "Partial Content", headers, content);
+        }
+        InputStream stream = null;
+        try {
+            stream = mFileReader.openEntryStream(keyInZip);
+            if (stream == null)
+                return null;
+            if (range == null) {
+                headers.put("Content-Length", Long.toString(size));
+                return new WebResourceResponse(mimeType, encoding, 200, "OK", headers, stream);
             }
-            // I think this only happens before Android 21 (Lollipop); in later androids,
-            // the app's own assets are automatically OK.
-            return canonicalUrl.startsWith("file:///android_asset/bloom-player/");
+            long length = range[1] - range[0] + 1;
+            IOUtilities.skipFully(stream, range[0]);
+            headers.put("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
+            headers.put("Content-Length", Long.toString(length));
+            return new WebResourceResponse(mimeType, encoding, 206, "Partial Content", headers,
+                    new RangeInputStream(stream, length));
         } catch (IOException e) {
+            e.printStackTrace();
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e1) {
+                    e1.printStackTrace();
+                }
+            }
+            return null;
+        }
+    }
+
+    private static String getHeader(WebResourceRequest request, String name) {
+        Map<String, String> headers = request.getRequestHeaders();
+        if (headers == null)
+            return null;
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey()))
+                return header.getValue();
+        }
+        return null;
+    }
+
+    // Interpret an HTTP Range header for an entity of the given size. Returns null if there is no
+    // usable range (so the whole thing should be sent), an empty array if the range can't be
+    // satisfied, and otherwise the first and last byte positions requested.
+    // We only handle a single range; if several are requested we just send the first.
+    static long[] parseRange(String rangeHeader, long size) {
+        if (rangeHeader == null || !rangeHeader.trim().startsWith("bytes="))
+            return null;
+        String spec = rangeHeader.trim().substring("bytes=".length());
+        int comma = spec.indexOf(',');
+        if (comma >= 0)
+            spec = spec.substring(0, comma);
+        int dash = spec.indexOf('-');
+        if (dash < 0)
+            return null;
+        String startText = spec.substring(0, dash).trim();
+        String endText = spec.substring(dash + 1).trim();
+        long start;
+        long end;
+        try {
+            if (startText.isEmpty()) {
+                // "bytes=-500" means the last 500 bytes.
+                if (endText.isEmpty())
+                    return null;
+                long suffixLength = Long.parseLong(endText);
+                if (suffixLength <= 0)
+                    return new long[0];
+                start = Math.max(0, size - suffixLength);
+                end = size - 1;
+            } else {
+                start = Long.parseLong(startText);
+                end = endText.isEmpty() ? size - 1 : Math.min(Long.parseLong(endText), size - 1);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (start < 0 || start >= size || end < start)
+            return new long[0];
+        return new long[]{start, end};
+    }
+
+    // MIME types for the kinds of files we find in books. The WebView needs these to be right,
+    // especially for media and css, since we're no longer letting it guess from a file on disk.
+    private static final HashMap<String, String> sMimeTypes = new HashMap<>();
+    static {
+        sMimeTypes.put("htm", "text/html");
+        sMimeTypes.put("html", "text/html");
+        sMimeTypes.put("css", "text/css");
+        sMimeTypes.put("js", "text/javascript");
+        sMimeTypes.put("json", "application/json");
+        sMimeTypes.put("txt", "text/plain");
+        sMimeTypes.put("xml", "text/xml");
+        sMimeTypes.put("png", "image/png");
+        sMimeTypes.put("jpg", "image/jpeg");
+        sMimeTypes.put("jpeg", "image/jpeg");
+        sMimeTypes.put("gif", "image/gif");
+        sMimeTypes.put("svg", "image/svg+xml");
+        sMimeTypes.put("webp", "image/webp");
+        sMimeTypes.put("mp3", "audio/mpeg");
+        sMimeTypes.put("m4a", "audio/mp4");
+        sMimeTypes.put("wav", "audio/wav");
+        sMimeTypes.put("ogg", "audio/ogg");
+        sMimeTypes.put("mp4", "video/mp4");
+        sMimeTypes.put("webm", "video/webm");
+        sMimeTypes.put("ttf", "font/ttf");
+        sMimeTypes.put("otf", "font/otf");
+        sMimeTypes.put("woff", "font/woff");
+        sMimeTypes.put("woff2", "font/woff2");
+    }
+
+    static String getMimeType(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot < 0)
+            return "application/octet-stream";
+        String extension = name.substring(dot + 1).toLowerCase(Locale.ROOT);
+        String type = sMimeTypes.get(extension);
+        if (type == null)
+            type = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+        return type == null ? "application/octet-stream" : type;
+    }
+
+    // Passes on at most a given number of bytes of the underlying stream.
+    private static class RangeInputStream extends FilterInputStream {
+        private long mRemaining;
+
+        RangeInputStream(InputStream in, long length) {
+            super(in);
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0)
+                return -1;
+            int result = super.read();
+            if (result >= 0)
+                --mRemaining;
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mRemaining <= 0)
+                return -1;
+            int result = super.read(buffer, offset, (int) Math.min(count, mRemaining));
+            if (result > 0)
+                mRemaining -= result;
+            return result;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long result = super.skip(Math.min(n, mRemaining));
+            mRemaining -= result;
+            return result;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), mRemaining);
+        }
+
+        @Override
+        public boolean markSupported() {
             return false;
         }
     }
@@ -0,0 +1,196 @@
+package org.sil.bloom.reader;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import org.sil.bloom.reader.models.BookCollection;
+import org.sil.bloom.reader.models.BookOrShelf;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Works out the "extras" shown in a row of the book list, which mean looking inside the book:
+// its thumbnail (fetched into the thumbs directory, see BookCollection.getThumbnail, then decoded
+// at the size of the row and kept in the ThumbnailCache) and whether it has audio. This happens
+// on a small pool of background threads of its own, so that a long list of books doesn't tie up
+// the AsyncTask executor. Rows that are showing are served first, the most recently asked for
+// first, since during a fling those are the rows still on the screen. Rows just off the screen
+// are prefetched when there is nothing more urgent to do.
+// Each request is tagged with the book it is for. Several requests for the same book share one
+// piece of work, and a row that is recycled or rebound to another book cancels its request; if
+// nobody else wants that book, work on it that hasn't started is dropped. Callbacks are made on
+// the UI thread.
+public class RowExtrasLoader {
+    public static final int PRIORITY_VISIBLE = 0;
+    public static final int PRIORITY_PREFETCH = 1;
+
+    // Looking inside books is mostly waiting for storage, which doesn't get much faster with more
+    // threads than this, and we don't want to starve the UI thread on small devices.
+    private static final int THREAD_COUNT = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+
+    public interface Callback {
+        // thumbnail is null if the book has no thumbnail (or we couldn't get it).
+        void onExtras(BookOrShelf book, Bitmap thumbnail, boolean hasAudio);
+    }
+
+    private static RowExtrasLoader sInstance;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor mExecutor;
+    // Requests that are queued or running, keyed by the book's path or uri.
+    private final HashMap<String, Request> mRequests = new HashMap<>();
+    private long mSequence;
+
+    public static synchronized RowExtrasLoader getInstance() {
+        if (sInstance == null)
+            sInstance = new RowExtrasLoader();
+        return sInstance;
+    }
+
+    private RowExtrasLoader() {
+        mExecutor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, "RowExtrasLoader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    // Get the book's extras, with the thumbnail decoded to suit an ImageView of the given size,
+    // and pass them to callback (if not null). If we already know them the callback is made at
+    // once, before this returns; otherwise it is made later on the UI thread, unless cancel()
+    // is called first.
+    public void load(Context context, BookOrShelf book, int priority, int width, int height, Callback callback) {
+        Bitmap cached = ThumbnailCache.getInstance(context).get(book.pathOrUri);
+        Boolean hasAudio = book.hasAudioIfKnown(context);
+        if (cached != null && hasAudio != null) {
+            if (callback != null)
+                callback.onExtras(book, cached, hasAudio);
+            return;
+        }
+        enqueue(context, book, priority, width, height, callback);
+    }
+
+    private synchronized void enqueue(Context context, BookOrShelf book, int priority, int width, int height, Callback callback) {
+        Request request = mRequests.get(book.pathOrUri);
+        if (request == null) {
+            request = new Request(context.getApplicationContext(), book, priority, ++mSequence, width, height);
+            mRequests.put(book.pathOrUri, request);
+            if (callback != null)
+                request.callbacks.add(callback);
+            mExecutor.execute(request);
+            return;
+        }
+        if (callback != null && !request.callbacks.contains(callback))
+            request.callbacks.add(callback);
+        if (!request.started && (priority < request.priority || priority == PRIORITY_VISIBLE)) {
+            // Move it up (or to the front of) the queue.
+            if (mExecutor.remove(request)) {
+                request.priority = priority;
+                request.sequence = ++mSequence;
+                mExecutor.execute(request);
+            }
+        }
+    }
+
+    // Get the extras for a row that isn't showing yet, in case it soon will be.
+    public void prefetch(Context context, BookOrShelf book, int width, int height) {
+        load(context, book, PRIORITY_PREFETCH, width, height, null);
+    }
+
+    // The row that made this request no longer shows the book (it has been recycled or bound to
+    // another book), so the callback won't be made. If nothing else is waiting for the book and
+    // we haven't started on it, we don't do it at all.
+    public synchronized void cancel(BookOrShelf book, Callback callback) {
+        Request request = mRequests.get(book.pathOrUri);
+        if (request == null)
+            return;
+        request.callbacks.remove(callback);
+        if (request.callbacks.isEmpty() && !request.started && mExecutor.remove(request))
+            mRequests.remove(book.pathOrUri);
+    }
+
+    private void finished(Request request, Bitmap thumbnail, boolean hasAudio) {
+        final List<Callback> callbacks;
+        synchronized (this) {
+            mRequests.remove(request.book.pathOrUri);
+            callbacks = new ArrayList<>(request.callbacks);
+        }
+        if (callbacks.isEmpty())
+            return;
+        mMainHandler.post(() -> {
+            for (Callback callback : callbacks)
+                callback.onExtras(request.book, thumbnail, hasAudio);
+        });
+    }
+
+    private class Request implements Runnable, Comparable<Request> {
+        final Context context;
+        final BookOrShelf book;
+        final List<Callback> callbacks = new ArrayList<>(1);
+        final int width;
+        final int height;
+        // These are only changed while the request is out of the queue.
+        int priority;
+        long sequence;
+        volatile boolean started;
+
+        Request(Context context, BookOrShelf book, int priority, long sequence, int width, int height) {
+            this.context = context;
+            this.book = book;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public void run() {
+            synchronized (RowExtrasLoader.this) {
+                started = true;
+            }
+            Bitmap thumbnail = null;
+            boolean hasAudio = false;
+            try {
+                // careful! anything that happens here MUST NOT expand our book into the currentBook
+                // folder, as this could cause a race condition with code trying to open a book the
+                // user has clicked on.
+                thumbnail = ThumbnailCache.getInstance(context).get(book.pathOrUri);
+                if (thumbnail == null) {
+                    Uri uri = BookCollection.getThumbnail(context, book);
+                    if (uri != null)
+                        thumbnail = ThumbnailCache.decodeSampled(new File(uri.getPath()), width, height);
+                    if (thumbnail != null)
+                        ThumbnailCache.getInstance(context).put(book.pathOrUri, thumbnail);
+                }
+                hasAudio = book.hasAudio(context);
+            } finally {
+                finished(this, thumbnail, hasAudio);
+            }
+        }
+
+        // Visible rows first, newest first; then prefetches, oldest first (they are asked for
+        // in the order the rows come in the list).
+        @Override
+        public int compareTo(Request other) {
+            if (priority != other.priority)
+                return priority < other.priority ? -1 : 1;
+            if (priority == PRIORITY_VISIBLE)
+                return Long.compare(other.sequence, sequence);
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
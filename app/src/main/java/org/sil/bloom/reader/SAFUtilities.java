@@ -22,8 +22,12 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 import static org.sil.bloom.reader.IOUtilities.BLOOM_BUNDLE_FILE_EXTENSION;
@@ -240,82 +244,117 @@ public class SAFUtilities {
 //                }
     }
 
-    public static int countBooksIn(Context context, Uri rootUri) {
-        final int[] count = {0};
-        BookSearchListener listener = new BookSearchListener() {
-            @Override
-            public void onFoundBookOrShelf(File bloomPubFile, Uri bookOrShelfUri) {
-                count[0]++;
-            }
-
-            @Override
-            public void onFoundBundle(Uri bundleUri) {
-
-            }
-
-            @Override
-            public void onSearchComplete() {
+    // Document providers cope well with a few queries at once, and listing sibling directories
+    // concurrently hides most of the latency of each one. More than this just competes for the
+    // same storage.
+    private static final int MAX_CONCURRENT_DIRECTORY_QUERIES = 4;
+
+    // Everything we want to know about a child document, fetched in the one query per directory
+    // so that callers don't need further round trips to the provider for size or modify time.
+    private static final String[] CHILD_DOCUMENT_PROJECTION = new String[]{
+            DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+            DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+            DocumentsContract.Document.COLUMN_MIME_TYPE,
+            DocumentsContract.Document.COLUMN_SIZE,
+            DocumentsContract.Document.COLUMN_LAST_MODIFIED};
+
+    // The result of querying one directory.
+    private static class DirectoryListing {
+        final List<String> subdirectoryIds = new ArrayList<>();
+        final List<ChildDocument> files = new ArrayList<>();
+    }
 
-            }
-        };
-        traverseDirectoryEntries(context, rootUri, listener);
-        return count[0];
+    private static class ChildDocument {
+        final String docId;
+        final String name;
+        final long size;
+        final long lastModified;
+
+        ChildDocument(String docId, String name, long size, long lastModified) {
+            this.docId = docId;
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
     }
 
+    // Walk the whole tree under rootUri, reporting books, shelves and bundles to the listener.
+    // Directories are queried on a small pool of threads, but the listener is only ever called
+    // on the calling thread, one call at a time, and onSearchComplete() is called exactly once
+    // at the end.
     private static void traverseDirectoryEntries(Context context, Uri rootUri, BookSearchListener bookSearchListener) {
-        ContentResolver contentResolver = context.getContentResolver();
-//        for (UriPermission perm:contentResolver.getPersistedUriPermissions()) {
-//            Log.d(TAG, perm.getUri().toString());
-//        }
+        final ContentResolver contentResolver = context.getContentResolver();
         assert rootUri.getScheme().equals("content"); // SAF URIs only
 
-        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(rootUri, DocumentsContract.getTreeDocumentId(rootUri));
-
-        // Keep track of our directory hierarchy
-        List<Uri> dirNodes = new LinkedList<>();
-        dirNodes.add(childrenUri);
-
-        while(!dirNodes.isEmpty()) {
-            childrenUri = dirNodes.remove(0); // get the item from top
-            Log.d(TAG, "node uri: " + childrenUri);
-            Cursor c = contentResolver.query(childrenUri, new String[]{
-                            DocumentsContract.Document.COLUMN_DOCUMENT_ID,
-                            DocumentsContract.Document.COLUMN_DISPLAY_NAME,
-                            DocumentsContract.Document.COLUMN_MIME_TYPE},
-                    null,
-                    null,
-                    null);
-            try {
-                if (c != null) {
-                    while (c.moveToNext()) {
-                        final String docId = c.getString(0);
-                        final String name = c.getString(1);
-                        final String mime = c.getString(2);
-                        Log.d(TAG, "name: " + name + ", mime: " + mime);
-
-                        if (isDirectory(mime)) {
-                            final Uri newNode = DocumentsContract.buildChildDocumentsUriUsingTree(rootUri, docId);
-                            dirNodes.add(newNode);
-                        } else {
-                            Uri uri = DocumentsContract.buildDocumentUriUsingTree(rootUri, docId);
-                            if (name.endsWith(BLOOM_BUNDLE_FILE_EXTENSION) ||
-                                    name.endsWith(BLOOM_BUNDLE_FILE_EXTENSION + ENCODED_FILE_EXTENSION)) {
-                                bookSearchListener.onFoundBundle(uri);
-                            } else if (IOUtilities.isBloomPubFile(name, true) ||
-                                    name.endsWith(BOOKSHELF_FILE_EXTENSION) ||
-                                    name.endsWith(BOOKSHELF_FILE_EXTENSION + ENCODED_FILE_EXTENSION)) {
-                                String uriPath = uri.getPath();
-                                if (uriPath != null)
-                                    bookSearchListener.onFoundBookOrShelf(new File(uriPath), uri);
-                            }
-                        }
-                    }
+        ExecutorService pool = Executors.newFixedThreadPool(MAX_CONCURRENT_DIRECTORY_QUERIES);
+        CompletionService<DirectoryListing> listings = new ExecutorCompletionService<>(pool);
+        try {
+            listings.submit(() -> listDirectory(contentResolver, rootUri, DocumentsContract.getTreeDocumentId(rootUri)));
+            int outstanding = 1;
+            while (outstanding > 0) {
+                DirectoryListing listing;
+                try {
+                    listing = listings.take().get();
+                } catch (ExecutionException e) {
+                    // Let the caller see the same exceptions (typically SecurityException) that
+                    // it would have seen from querying the directory itself.
+                    if (e.getCause() instanceof RuntimeException)
+                        throw (RuntimeException) e.getCause();
+                    e.printStackTrace();
+                    continue;
+                } finally {
+                    --outstanding;
                 }
-            } finally {
-                closeQuietly(c);
+                for (String dirId : listing.subdirectoryIds) {
+                    listings.submit(() -> listDirectory(contentResolver, rootUri, dirId));
+                    ++outstanding;
+                }
+                for (ChildDocument child : listing.files)
+                    reportChildDocument(rootUri, child, bookSearchListener);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+            bookSearchListener.onSearchComplete();
+        }
+    }
 
-                bookSearchListener.onSearchComplete();
+    private static DirectoryListing listDirectory(ContentResolver contentResolver, Uri rootUri, String dirId) {
+        DirectoryListing result = new DirectoryListing();
+        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(rootUri, dirId);
+        Cursor c = contentResolver.query(childrenUri, CHILD_DOCUMENT_PROJECTION, null, null, null);
+        try {
+            if (c != null) {
+                while (c.moveToNext()) {
+                    final String docId = c.getString(0);
+                    final String name = c.getString(1);
+                    if (isDirectory(c.getString(2)))
+                        result.subdirectoryIds.add(docId);
+                    else if (name != null)
+                        result.files.add(new ChildDocument(docId, name,
+                                c.isNull(3) ? -1 : c.getLong(3),
+                                c.isNull(4) ? -1 : c.getLong(4)));
+                }
             }
+        } finally {
+            closeQuietly(c);
+        }
+        return result;
+    }
+
+    private static void reportChildDocument(Uri rootUri, ChildDocument child, BookSearchListener bookSearchListener) {
+        final String name = child.name;
+        if (name.endsWith(BLOOM_BUNDLE_FILE_EXTENSION) ||
+                name.endsWith(BLOOM_BUNDLE_FILE_EXTENSION + ENCODED_FILE_EXTENSION)) {
+            bookSearchListener.onFoundBundle(DocumentsContract.buildDocumentUriUsingTree(rootUri, child.docId));
+        } else if (IOUtilities.isBloomPubFile(name, true) ||
+                name.endsWith(BOOKSHELF_FILE_EXTENSION) ||
+                name.endsWith(BOOKSHELF_FILE_EXTENSION + ENCODED_FILE_EXTENSION)) {
+            Uri uri = DocumentsContract.buildDocumentUriUsingTree(rootUri, child.docId);
+            String uriPath = uri.getPath();
+            if (uriPath != null)
+                bookSearchListener.onFoundBookOrShelf(new File(uriPath), uri, child.size, child.lastModified);
         }
     }
 
@@ -349,9 +388,13 @@ public class SAFUtilities {
         try {
             InputStream fs = context.getContentResolver().openInputStream(uri);
             OutputStream os = new FileOutputStream(dest);
-            byte[] buf = new byte[4096];
-            int length;
-            while ((length = fs.read(buf)) > 0) os.write(buf, 0, length);
+            byte[] buf = BufferPool.acquire();
+            try {
+                int length;
+                while ((length = fs.read(buf)) > 0) os.write(buf, 0, length);
+            } finally {
+                BufferPool.release(buf);
+            }
             os.close();
             fs.close();
         } catch (FileNotFoundException e) {
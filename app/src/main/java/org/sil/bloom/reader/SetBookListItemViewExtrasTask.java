@@ -1,15 +1,13 @@
 package org.sil.bloom.reader;
 
 import android.content.res.Resources;
+import android.graphics.Bitmap;
 import android.graphics.Color;
-import android.net.Uri;
-import android.os.AsyncTask;
 import android.util.TypedValue;
 import android.view.ViewGroup;
 
 import androidx.annotation.NonNull;
 
-import org.sil.bloom.reader.models.BookCollection;
 import org.sil.bloom.reader.models.BookOrShelf;
 import org.sil.bloom.reader.BookListAdapter.ViewHolder;
 
@@ -17,12 +15,12 @@ import java.util.Objects;
 
 /**
  * Used by the BookListAdapter to perform potentially slow operations associated with rendering
- * a BookOrShelf on a BookList on a background thread
+ * a BookOrShelf on a BookList on a background thread (via the RowExtrasLoader)
  *
  * It sets the thumbnail image and toggles the speaker icon as appropriate
  */
 
-public class SetBookListItemViewExtrasTask extends AsyncTask<Void, Void, SetBookListItemViewExtrasTask.TaskResult> {
+public class SetBookListItemViewExtrasTask implements RowExtrasLoader.Callback {
     private ViewHolder viewHolder;
     private BookOrShelf bookOrShelf;
 
@@ -35,16 +33,25 @@ public class SetBookListItemViewExtrasTask extends AsyncTask<Void, Void, SetBook
     // Sets the thumbnail and speaker icon first synchronously,
     // then asynchronously if needed (for books)
     public void setExtras() {
+        // Whatever the holder was waiting for before, it doesn't want it now.
+        viewHolder.cancelExtras();
         setInitialImageView();
         clearSpeakerIcon();
         if (!bookOrShelf.isShelf()){
             // Async method only applies to books
-            // This causes doInBackground() to be executed in a background thread
-            // which then calls onPostExecute() with the result on the UI thread
-            this.execute();
+            // The result comes to onExtras() on the UI thread (or right away, if it is known)
+            viewHolder.extrasTask = this;
+            ViewGroup.LayoutParams size = viewHolder.imageView.getLayoutParams();
+            RowExtrasLoader.getInstance().load(viewHolder.getContext(), bookOrShelf, RowExtrasLoader.PRIORITY_VISIBLE,
+                    size.width, size.height, this);
         }
     }
 
+    // Stop waiting for the result, because the holder no longer shows this book
+    void cancel() {
+        RowExtrasLoader.getInstance().cancel(bookOrShelf, this);
+    }
+
     // Synchronous method
     // Sets the proper thumbnail for shelves
     // and the fallback thumbnail for books
@@ -85,41 +92,18 @@ public class SetBookListItemViewExtrasTask extends AsyncTask<Void, Void, SetBook
         viewHolder.speakerIcon.setImageAlpha(0); // transparent
     }
 
-    // Async method fetches the thumbnail and
-    // determines if the book has audio
-    // For books only
-    @Override
-    protected TaskResult doInBackground(Void... v) {
-        // careful! anything that happens here MUST NOT expand our book into the currentBook
-        // folder, as this could cause a race condition with code trying to open a book the
-        // user has clicked on.
-        Uri imageUri = BookCollection.getThumbnail(viewHolder.getContext(), bookOrShelf);
-        boolean hasAudio = bookOrShelf.hasAudio(viewHolder.getContext());
-        return new TaskResult(imageUri, hasAudio);
-    }
-
     // Set the thumbnail and speaker icon
     // that were fetched in the background
     @Override
-    protected void onPostExecute(TaskResult result) {
+    public void onExtras(BookOrShelf book, Bitmap thumbnail, boolean hasAudio) {
         // ViewHolder object can change books as the user scrolls
         // So we verify that this one still has the original book
-        if (bookOrShelf == viewHolder.bookOrShelf) {
-            if (result.imageUri != null)
-                viewHolder.imageView.setImageURI(result.imageUri);
-            int alpha = result.hasAudio ? 255 : 0;
+        if (bookOrShelf == viewHolder.bookOrShelf && viewHolder.extrasTask == this) {
+            viewHolder.extrasTask = null;
+            if (thumbnail != null)
+                viewHolder.imageView.setImageBitmap(thumbnail);
+            int alpha = hasAudio ? 255 : 0;
             viewHolder.speakerIcon.setImageAlpha(alpha);
         }
     }
-
-    public static class TaskResult{
-        public Uri imageUri;
-        public boolean hasAudio;
-
-        TaskResult(Uri imageUri, boolean hasAudio) {
-            this.imageUri = imageUri;
-            this.hasAudio = hasAudio;
-        }
-    }
 }
-
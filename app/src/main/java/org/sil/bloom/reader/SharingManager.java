@@ -95,35 +95,25 @@ public class SharingManager {
         }
     }
 
-    public BundleTask shareShelf(List<BookOrShelf> booksAndShelves, final BundleTask.BundleTaskDoneListener taskDoneListener){
+    public void shareShelf(List<BookOrShelf> booksAndShelves){
         File[] files = new File[booksAndShelves.size()];
         for (int i=0; i<booksAndShelves.size(); ++i)
             files[i] = new File(booksAndShelves.get(i).pathOrUri);
-        return bundleAndShare(files, taskDoneListener);
+        bundleAndShare(files);
     }
 
-    public BundleTask shareAllBooksAndShelves(final BundleTask.BundleTaskDoneListener taskDoneListener) {
-        return bundleAndShare(null, taskDoneListener);
+    public void shareAllBooksAndShelves() {
+        bundleAndShare(null);
     }
 
-    private BundleTask bundleAndShare(File[] files, final BundleTask.BundleTaskDoneListener taskDoneListener) {
-        BundleTask bundleTask = new BundleTask(sharedBloomBundlePath(), bundleFile -> {
-            taskDoneListener.onBundleTaskDone(bundleFile); // Callback to dialog with spinner so it can close
-            shareBloomBundle(bundleFile);
-        });
-        bundleTask.execute(files);
-        return bundleTask;
+    // The bundle isn't made until the app the user chooses reads it; see BundleProvider.
+    private void bundleAndShare(File[] files) {
+        Uri uri = BundleProvider.getUriForBundle(files, bloomBundleFileName());
+        shareUri(uri, "application/zip", mActivity.getString(R.string.share_books_via));
     }
 
-    private void shareBloomBundle(File bundleFile) {
-        if (bundleFile == null)
-            Toast.makeText(mActivity, mActivity.getString(R.string.failed_to_share_books), Toast.LENGTH_LONG).show();
-        else
-            shareFile(bundleFile, "application/zip", mActivity.getString(R.string.share_books_via));
-    }
-
-    // We stage the apk to share in a shareable directory (see filepaths.xml), and bloom bundles have to be
-    // created somewhere.
+    // We stage the apk to share in a shareable directory (see filepaths.xml), and older versions
+    // created bloom bundles there too.
     // This gets called now and then to delete the files there if they are more than a day old.
     public static void fileCleanup(Context context){
         long yesterday = System.currentTimeMillis() - (1000 * 60 * 60 * 24);
@@ -149,6 +139,10 @@ public class SharingManager {
 
     private void shareFile(File file, String fileType, String dialogTitle){
         Uri uri = FileProvider.getUriForFile(mActivity, BuildConfig.APPLICATION_ID + ".fileprovider", file);
+        shareUri(uri, fileType, dialogTitle);
+    }
+
+    private void shareUri(Uri uri, String fileType, String dialogTitle){
         Intent shareIntent = ShareCompat.IntentBuilder.from(mActivity)
                 .setStream(uri)
                 .getIntent()
@@ -180,9 +174,13 @@ public class SharingManager {
     }
 
     private static String sharedBloomBundlePath() {
+        return pathForSharingFile(bloomBundleFileName());
+    }
+
+    private static String bloomBundleFileName() {
         String deviceName = BloomReaderApplication.getOurDeviceName();
         deviceName = (deviceName != null && !deviceName.isEmpty()) ? deviceName : "my";
 
-        return pathForSharingFile(deviceName + IOUtilities.BLOOM_BUNDLE_FILE_EXTENSION);
+        return deviceName + IOUtilities.BLOOM_BUNDLE_FILE_EXTENSION;
     }
 }
@@ -0,0 +1,89 @@
+package org.sil.bloom.reader;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.LruCache;
+
+import java.io.File;
+
+// Keeps decoded thumbnails of books in memory, so that scrolling back to a row (or showing the
+// same book in another activity) doesn't decode the thumbnail file again. Bitmaps are decoded
+// (by the RowExtrasLoader, off the UI thread) only as large as the rows that show them need,
+// which is typically much smaller than the thumbnail in the book. The cache uses a fixed share
+// of the memory the system gives the app and throws away the least recently used thumbnails.
+public class ThumbnailCache {
+    // The share of the app's memory class we use.
+    private static final int MEMORY_FRACTION = 8;
+
+    private static ThumbnailCache sInstance;
+
+    private final LruCache<String, Bitmap> mBitmaps;
+
+    public static synchronized ThumbnailCache getInstance(Context context) {
+        if (sInstance == null) {
+            ActivityManager activityManager = (ActivityManager) context.getApplicationContext().getSystemService(Context.ACTIVITY_SERVICE);
+            sInstance = new ThumbnailCache(activityManager.getMemoryClass() * 1024 * 1024 / MEMORY_FRACTION);
+        }
+        return sInstance;
+    }
+
+    private ThumbnailCache(int maxBytes) {
+        mBitmaps = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+    }
+
+    // All the rows that show thumbnails are the same size, so we keep just one bitmap per book.
+    public Bitmap get(String pathOrUri) {
+        return mBitmaps.get(pathOrUri);
+    }
+
+    public void put(String pathOrUri, Bitmap bitmap) {
+        mBitmaps.put(pathOrUri, bitmap);
+    }
+
+    // Forget the book's thumbnail, typically because the book has been deleted or replaced.
+    public void remove(String pathOrUri) {
+        if (pathOrUri != null)
+            mBitmaps.remove(pathOrUri);
+    }
+
+    // Called from BloomReaderApplication.onTrimMemory().
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE)
+            mBitmaps.evictAll();
+        else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND)
+            mBitmaps.trimToSize(mBitmaps.maxSize() / 2);
+    }
+
+    // Decode the image file, skipping pixels so that the result is no more than about twice
+    // the size wanted in each direction (but never smaller than it). Returns null if the file
+    // can't be decoded.
+    public static Bitmap decodeSampled(File file, int width, int height) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, width, height);
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeFile(file.getPath(), options);
+    }
+
+    // The largest power of two we can divide the image's dimensions by and still have both at
+    // least as big as the ones wanted.
+    static int calculateInSampleSize(int imageWidth, int imageHeight, int width, int height) {
+        int sampleSize = 1;
+        if (width <= 0 || height <= 0)
+            return sampleSize;
+        while (imageWidth / (sampleSize * 2) >= width && imageHeight / (sampleSize * 2) >= height)
+            sampleSize *= 2;
+        return sampleSize;
+    }
+}
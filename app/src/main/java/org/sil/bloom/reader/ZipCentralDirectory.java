@@ -0,0 +1,407 @@
+package org.sil.bloom.reader;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+// This class reads the central directory of a zip file directly, using positional reads on a
+// FileChannel, without touching the data of any entry. That makes it cheap to answer questions
+// like "does this file have a sane structure and which entries does it contain?" even for books
+// with tens of megabytes of audio and video, and it lets callers read individual entries without
+// java.util.zip.ZipFile scanning (and allocating for) the whole archive first.
+// We only handle the plain zip format that Bloom produces. Anything fancier (zip64, spanned
+// archives, encryption, data in front of the archive) makes open() return null so that the
+// caller can fall back to the standard java.util.zip classes.
+public class ZipCentralDirectory implements Closeable {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    private static final int FLAG_ENCRYPTED = 0x0001;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+
+    // One file (or directory) in the archive, as described by the central directory.
+    public static class Entry {
+        public final String name;
+        public final int method;
+        public final int flags;
+        public final long crc;
+        public final long compressedSize;
+        public final long size;
+        public final long localHeaderOffset;
+        // Offset of the entry's (possibly compressed) data.  Only known after the local header
+        // has been read, so -1 until verifyLocalHeader() or getInputStream() has been called.
+        long dataOffset = -1;
+
+        Entry(String name, int method, int flags, long crc, long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.flags = flags;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        public boolean hasDataDescriptor() {
+            return (flags & FLAG_DATA_DESCRIPTOR) != 0;
+        }
+    }
+
+    private final FileChannel mChannel;
+    private final Closeable mOwner;
+    private final long mCentralDirectoryOffset;
+    private final List<Entry> mEntries;
+    // Reused for every local header we look at; local headers are read one at a time.
+    private ByteBuffer mHeaderBuffer = ByteBuffer.allocate(LOCAL_HEADER_SIZE + 256).order(ByteOrder.LITTLE_ENDIAN);
+
+    private ZipCentralDirectory(FileChannel channel, Closeable owner, long centralDirectoryOffset, List<Entry> entries) {
+        mChannel = channel;
+        mOwner = owner;
+        mCentralDirectoryOffset = centralDirectoryOffset;
+        mEntries = entries;
+    }
+
+    public static ZipCentralDirectory open(File input) throws IOException {
+        FileInputStream stream = new FileInputStream(input);
+        try {
+            ZipCentralDirectory result = open(stream.getChannel(), stream);
+            if (result == null)
+                stream.close();
+            return result;
+        } catch (IOException | RuntimeException e) {
+            stream.close();
+            throw e;
+        }
+    }
+
+    // Open a book we only have a (typically SAF) uri for. Document providers for local storage
+    // give us a descriptor for the real file, which we can read at random just like a File.
+    // Returns null if the provider can only give us a pipe or socket (or the archive is one
+    // open(FileChannel) doesn't handle), in which case the caller has to read the uri sequentially.
+    public static ZipCentralDirectory open(Context context, Uri uri) throws IOException {
+        ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+        if (descriptor == null)
+            return null;
+        try {
+            // getStatSize() is -1 unless the descriptor refers to a regular file.
+            if (descriptor.getStatSize() < 0) {
+                descriptor.close();
+                return null;
+            }
+            ZipCentralDirectory result = open(new FileInputStream(descriptor.getFileDescriptor()).getChannel(), descriptor);
+            if (result == null)
+                descriptor.close();
+            return result;
+        } catch (IOException | RuntimeException e) {
+            descriptor.close();
+            throw e;
+        }
+    }
+
+    // Read the central directory from the channel.  owner (which may be null) is closed when the
+    // ZipCentralDirectory is closed; typically it is the stream or descriptor the channel came from.
+    // Returns null if the archive uses features we don't handle here.  Throws a ZipException if the
+    // archive is definitely damaged, for example because it has been truncated.
+    public static ZipCentralDirectory open(FileChannel channel, Closeable owner) throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < END_OF_CENTRAL_DIRECTORY_SIZE)
+            throw new ZipException("file too short to be a zip file");
+
+        // The end of central directory record is at the very end of the file unless the archive
+        // has a comment, which can be up to 64K long.  Usually the first read finds it.
+        int tailSize = (int) Math.min(fileSize, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE + ZIP64_LOCATOR_SIZE);
+        ByteBuffer tail = ByteBuffer.allocate(tailSize).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, tail, fileSize - tailSize);
+        int eocd = -1;
+        for (int i = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; --i) {
+            if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE
+                    && i + END_OF_CENTRAL_DIRECTORY_SIZE + (tail.getShort(i + 20) & 0xFFFF) == tailSize) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0)
+            throw new ZipException("end of central directory not found");
+        if (eocd >= ZIP64_LOCATOR_SIZE && tail.getInt(eocd - ZIP64_LOCATOR_SIZE) == ZIP64_LOCATOR_SIGNATURE)
+            return null;    // zip64
+        int diskNumber = tail.getShort(eocd + 4) & 0xFFFF;
+        int centralDirectoryDisk = tail.getShort(eocd + 6) & 0xFFFF;
+        int entriesOnDisk = tail.getShort(eocd + 8) & 0xFFFF;
+        int entryCount = tail.getShort(eocd + 10) & 0xFFFF;
+        long centralDirectorySize = tail.getInt(eocd + 12) & 0xFFFFFFFFL;
+        long centralDirectoryOffset = tail.getInt(eocd + 16) & 0xFFFFFFFFL;
+        if (diskNumber != 0 || centralDirectoryDisk != 0 || entriesOnDisk != entryCount)
+            return null;    // spanned archive
+        if (entryCount == 0xFFFF || centralDirectorySize == 0xFFFFFFFFL || centralDirectoryOffset == 0xFFFFFFFFL)
+            return null;    // zip64 values without a locator; let somebody else sort it out
+        long eocdPosition = fileSize - tailSize + eocd;
+        if (centralDirectoryOffset + centralDirectorySize > eocdPosition)
+            throw new ZipException("central directory extends past its end record");
+        if (centralDirectoryOffset + centralDirectorySize != eocdPosition)
+            return null;    // something (e.g., a self-extractor stub) is prepended to the archive
+        if (centralDirectorySize > Integer.MAX_VALUE)
+            return null;
+
+        ByteBuffer directory = ByteBuffer.allocate((int) centralDirectorySize).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, directory, centralDirectoryOffset);
+        List<Entry> entries = new ArrayList<>(entryCount);
+        int position = 0;
+        for (int i = 0; i < entryCount; ++i) {
+            if (position + CENTRAL_HEADER_SIZE > centralDirectorySize
+                    || directory.getInt(position) != CENTRAL_HEADER_SIGNATURE)
+                throw new ZipException("bad central directory header for entry " + i);
+            int flags = directory.getShort(position + 8) & 0xFFFF;
+            int method = directory.getShort(position + 10) & 0xFFFF;
+            long crc = directory.getInt(position + 16) & 0xFFFFFFFFL;
+            long compressedSize = directory.getInt(position + 20) & 0xFFFFFFFFL;
+            long size = directory.getInt(position + 24) & 0xFFFFFFFFL;
+            int nameLength = directory.getShort(position + 28) & 0xFFFF;
+            int extraLength = directory.getShort(position + 30) & 0xFFFF;
+            int commentLength = directory.getShort(position + 32) & 0xFFFF;
+            long localHeaderOffset = directory.getInt(position + 42) & 0xFFFFFFFFL;
+            int next = position + CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+            if (next > centralDirectorySize)
+                throw new ZipException("central directory header overflows for entry " + i);
+            if ((flags & FLAG_ENCRYPTED) != 0)
+                return null;
+            if (compressedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL || localHeaderOffset == 0xFFFFFFFFL)
+                return null;    // zip64 entry
+            String name = new String(directory.array(), position + CENTRAL_HEADER_SIZE, nameLength, StandardCharsets.UTF_8);
+            entries.add(new Entry(name, method, flags, crc, compressedSize, size, localHeaderOffset));
+            position = next;
+        }
+        if (position != centralDirectorySize)
+            throw new ZipException("central directory size does not match its entries");
+        return new ZipCentralDirectory(channel, owner, centralDirectoryOffset, Collections.unmodifiableList(entries));
+    }
+
+    public List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    public Entry getEntry(String name) {
+        for (Entry entry : mEntries) {
+            if (entry.name.equals(name))
+                return entry;
+        }
+        return null;
+    }
+
+    // Offset of the start of the central directory, which is also the end of the entry data.
+    public long getCentralDirectoryOffset() {
+        return mCentralDirectoryOffset;
+    }
+
+    // Check the local header of the entry against the central directory without reading any of
+    // the entry's data.  Returns false if the local header uses something we can't check here
+    // (currently just a compression method other than STORED or DEFLATED).  Throws a ZipException
+    // if the local header is missing or disagrees with the central directory.
+    public boolean verifyLocalHeader(Entry entry) throws IOException {
+        long dataOffset = readLocalHeader(entry, true);
+        if (entry.method != ZipEntry.STORED && entry.method != ZipEntry.DEFLATED)
+            return false;
+        if (entry.method == ZipEntry.STORED && entry.compressedSize != entry.size)
+            throw new ZipException("stored entry " + entry.name + " has inconsistent sizes");
+        if (dataOffset + entry.compressedSize > mCentralDirectoryOffset)
+            throw new ZipException("data for " + entry.name + " extends past the end of the archive");
+        return true;
+    }
+
+    // Return a stream of the uncompressed content of the entry.  The data is read straight from
+    // the channel, so several streams may be open at once.  Note that this does not check the CRC.
+    public InputStream getInputStream(Entry entry) throws IOException {
+        long dataOffset = entry.dataOffset >= 0 ? entry.dataOffset : readLocalHeader(entry, false);
+        InputStream raw = new ChannelInputStream(mChannel, dataOffset, entry.compressedSize);
+        switch (entry.method) {
+            case ZipEntry.STORED:
+                return raw;
+            case ZipEntry.DEFLATED:
+                // The extra byte keeps the Inflater happy at the end of some streams (as ZipFile does).
+                return new InflaterInputStream(new SequenceOfOneByte(raw), new Inflater(true)) {
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        inf.end();
+                    }
+                };
+            default:
+                throw new ZipException("unsupported compression method " + entry.method + " for " + entry.name);
+        }
+    }
+
+    // The channel the archive is read from, for reading STORED entries in place (see
+    // ZipFileOrUri.getStoredRange()). It belongs to this object and is closed with it.
+    FileChannel getChannel() {
+        return mChannel;
+    }
+
+    // Offset of the entry's raw data from the start of the file, reading the local header if needed.
+    public long getDataOffset(Entry entry) throws IOException {
+        return entry.dataOffset >= 0 ? entry.dataOffset : readLocalHeader(entry, false);
+    }
+
+    private synchronized long readLocalHeader(Entry entry, boolean compareWithCentral) throws IOException {
+        int nameLength = entry.name.getBytes(StandardCharsets.UTF_8).length;
+        int wanted = LOCAL_HEADER_SIZE + nameLength;
+        if (entry.localHeaderOffset + wanted > mCentralDirectoryOffset)
+            throw new ZipException("local header for " + entry.name + " is past the end of the archive");
+        if (mHeaderBuffer.capacity() < wanted)
+            mHeaderBuffer = ByteBuffer.allocate(wanted).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer header = mHeaderBuffer;
+        header.clear();
+        header.limit(wanted);
+        readFully(mChannel, header, entry.localHeaderOffset);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE)
+            throw new ZipException("missing local header for " + entry.name);
+        int localNameLength = header.getShort(26) & 0xFFFF;
+        int extraLength = header.getShort(28) & 0xFFFF;
+        if (compareWithCentral) {
+            int method = header.getShort(8) & 0xFFFF;
+            if (method != entry.method || localNameLength != nameLength
+                    || !entry.name.equals(new String(header.array(), LOCAL_HEADER_SIZE, nameLength, StandardCharsets.UTF_8)))
+                throw new ZipException("local header does not match central directory for " + entry.name);
+            // With a data descriptor, the local header fields are allowed to be zero and the real
+            // values follow the data.  Otherwise they have to agree with the central directory.
+            if (!entry.hasDataDescriptor()) {
+                long crc = header.getInt(14) & 0xFFFFFFFFL;
+                long compressedSize = header.getInt(18) & 0xFFFFFFFFL;
+                long size = header.getInt(22) & 0xFFFFFFFFL;
+                if (crc != entry.crc || compressedSize != entry.compressedSize || size != entry.size)
+                    throw new ZipException("local header CRC or sizes do not match for " + entry.name);
+            }
+        }
+        entry.dataOffset = entry.localHeaderOffset + LOCAL_HEADER_SIZE + localNameLength + extraLength;
+        return entry.dataOffset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mOwner != null)
+            mOwner.close();
+        else
+            mChannel.close();
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count < 0)
+                throw new ZipException("unexpected end of file");
+            position += count;
+        }
+    }
+
+    // Reads a range of the channel using positional reads, so it doesn't disturb (or depend on)
+    // the channel's own position.
+    static class ChannelInputStream extends InputStream {
+        private final FileChannel mChannel;
+        private long mPosition;
+        private long mRemaining;
+
+        ChannelInputStream(FileChannel channel, long start, long length) {
+            mChannel = channel;
+            mPosition = start;
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (mRemaining <= 0)
+                return -1;
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, mRemaining));
+            int count = mChannel.read(buffer, mPosition);
+            if (count < 0)
+                throw new ZipException("unexpected end of file");
+            mPosition += count;
+            mRemaining -= count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, mRemaining));
+            mPosition += skipped;
+            mRemaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(mRemaining, Integer.MAX_VALUE);
+        }
+    }
+
+    // Appends a single zero byte to the stream.  An Inflater in "nowrap" mode may need one byte
+    // of input past the end of the deflated data to recognize that it is finished.
+    private static class SequenceOfOneByte extends InputStream {
+        private final InputStream mInner;
+        private boolean mDone;
+
+        SequenceOfOneByte(InputStream inner) {
+            mInner = inner;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = mInner.read();
+            if (b >= 0)
+                return b;
+            if (mDone)
+                return -1;
+            mDone = true;
+            return 0;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = mInner.read(b, off, len);
+            if (count >= 0 || len == 0)
+                return count;
+            if (mDone)
+                return -1;
+            mDone = true;
+            b[off] = 0;
+            return 1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mInner.close();
+        }
+    }
+}
@@ -9,47 +9,127 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 // This class helps hide whether the source of a bloom book is a file or a URI.
-// The book is conceptually decompressed into outputDir. If it comes from a file,
-// things are only decompressed there as they are wanted. If it comes from a URI,
-// we can only access the URI data sequentially, which makes it hopelessly slow
-// to extract files on demand, so the best we can do is extract them all immediately.
+// The book is conceptually decompressed into outputDir, and things are only decompressed there
+// as they are wanted. If the book comes from a URI, we normally get a seekable file descriptor
+// for it and read it through a ZipCentralDirectory. Only if the provider can give us nothing but
+// a sequential stream do we have to extract everything immediately, since extracting files on
+// demand from a stream is hopelessly slow.
 public class ZipFileOrUri {
 
+    // Written to outputDir once a book we could only read sequentially has been fully unzipped.
+    private static final String COMPLETE_MARKER = ".unzipped";
+
     ZipFile zipFile;
+    ZipCentralDirectory zipDirectory;
     String outputDir;
+    // The book file, if we have one. We open a ZipCentralDirectory on it too (rangeDirectory)
+    // if anyone wants the range of a STORED entry.
+    File inputFile;
+    ZipCentralDirectory rangeDirectory;
+    // If not null, larger files are extracted through this, so books share one copy of them.
+    AssetStore assetStore;
 
     public ZipFileOrUri(File input, String output) {
         try {
             outputDir = output;
+            inputFile = input;
             zipFile = new ZipFile(input);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
     public ZipFileOrUri(Uri uri, Context context, String output) {
-        InputStream fs = null;
+        outputDir = output;
+        File completeMarker = new File(outputDir, COMPLETE_MARKER);
         try {
-            outputDir = output;
-            // All we can do is unzip the whole thing. I tried some code, which can be seen on the
-            // SAFzipOneByOne branch, to extract individual files from the zip stream we can make
-            // from the context and URI, but it is hopelessly slow; SAF seems to be forcing us to
-            // read the whole file (at least as far as the thing we want) each time. Better, though
-            // not good, to get them all in a single pass.
-            IOUtilities.unzip(context, uri, new File(outputDir));
+            zipDirectory = ZipCentralDirectory.open(context, uri);
+            if (zipDirectory != null)
+                return;
+        } catch (IOException | SecurityException e) {
+            e.printStackTrace();
+        }
+        try {
+            // We can't read this one at random, so all we can do is unzip the whole thing. I tried
+            // some code, which can be seen on the SAFzipOneByOne branch, to extract individual files
+            // from the zip stream we can make from the context and URI, but it is hopelessly slow;
+            // SAF seems to be forcing us to read the whole file (at least as far as the thing we
+            // want) each time. Better, though not good, to get them all in a single pass.
+            // (The folder may be one the BookCache has kept from when we last opened the book, in
+            // which case we may have done this already.)
+            if (completeMarker.exists())
+                return;
+            // The BookPrefetcher may be unzipping this book into the same folder right now (and
+            // can't be stopped part way), so only one of us does it, and the other then finds
+            // the marker. Otherwise each would truncate files as the other wrote them.
+            FolderLock lock = lockFolder(outputDir);
+            try {
+                if (completeMarker.exists())
+                    return;
+                IOUtilities.unzip(context, uri, new File(outputDir));
+                completeMarker.createNewFile();
+            } finally {
+                unlockFolder(outputDir, lock);
+            }
         } catch (IOException | SecurityException e) {
             e.printStackTrace();
         }
     }
 
+    private static class FolderLock {
+        final ReentrantLock lock = new ReentrantLock();
+        int users; // threads holding or waiting for it (guarded by sFolderLocks)
+    }
+
+    private static final HashMap<String, FolderLock> sFolderLocks = new HashMap<>();
+
+    private static FolderLock lockFolder(String folder) {
+        FolderLock folderLock;
+        synchronized (sFolderLocks) {
+            folderLock = sFolderLocks.get(folder);
+            if (folderLock == null) {
+                folderLock = new FolderLock();
+                sFolderLocks.put(folder, folderLock);
+            }
+            ++folderLock.users;
+        }
+        folderLock.lock.lock();
+        return folderLock;
+    }
+
+    private static void unlockFolder(String folder, FolderLock folderLock) {
+        folderLock.lock.unlock();
+        synchronized (sFolderLocks) {
+            if (--folderLock.users == 0)
+                sFolderLocks.remove(folder);
+        }
+    }
+
+    // Share larger files with other books through the store (only sensible for an outputDir that
+    // is kept, and that nobody writes into).
+    public void setAssetStore(AssetStore store) {
+        assetStore = store;
+    }
+
     public File tryGetFile(String name) {
+        // We may already have extracted it, possibly when the book was last opened.
+        File existing = new File(outputDir + File.separator + name);
+        if (existing.exists())
+            return existing;
         if (zipFile != null) {
             try {
                 final ZipEntry entry = zipFile.getEntry(name);
@@ -57,7 +137,17 @@ public class ZipFileOrUri {
                     return null;
                 }
                 InputStream zin = zipFile.getInputStream(entry);
-                return readFileFromInput(name, outputDir, zin);
+                return readFileFromInput(name, outputDir, zin, entry.getCrc(), entry.getSize());
+            } catch (IOException e) {
+                // fall through and return null.
+            }
+        } else if (zipDirectory != null) {
+            try {
+                final ZipCentralDirectory.Entry entry = zipDirectory.getEntry(name);
+                if (entry == null) {
+                    return null;
+                }
+                return readFileFromInput(name, outputDir, zipDirectory.getInputStream(entry), entry.crc, entry.size);
             } catch (IOException e) {
                 // fall through and return null.
             }
@@ -71,20 +161,161 @@ public class ZipFileOrUri {
         return null;
     }
 
+    // The names of the (non-directory) entries in the zip, or an empty list if we had to unzip
+    // everything up front.
+    public List<String> getEntryNames() {
+        List<String> result = new ArrayList<>();
+        if (zipFile != null) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.isDirectory())
+                    result.add(entry.getName());
+            }
+        } else if (zipDirectory != null) {
+            for (ZipCentralDirectory.Entry entry : zipDirectory.getEntries()) {
+                if (!entry.isDirectory())
+                    result.add(entry.name);
+            }
+        }
+        return result;
+    }
+
+    // The uncompressed size of the named entry, or -1 if there isn't one (or if we had to unzip
+    // everything up front, in which case the caller should just use the extracted file).
+    public long getEntrySize(String name) {
+        if (zipFile != null) {
+            final ZipEntry entry = zipFile.getEntry(name);
+            return entry == null ? -1 : entry.getSize();
+        }
+        if (zipDirectory != null) {
+            final ZipCentralDirectory.Entry entry = zipDirectory.getEntry(name);
+            return entry == null ? -1 : entry.size;
+        }
+        return -1;
+    }
+
+    // Open the named entry for reading straight out of the zip, without extracting it to
+    // outputDir. Returns null in the same cases as getEntrySize() returns -1.
+    // Both kinds of zip reader allow several entries to be read at once from different threads.
+    public InputStream openEntryStream(String name) throws IOException {
+        if (zipFile != null) {
+            final ZipEntry entry = zipFile.getEntry(name);
+            return entry == null ? null : zipFile.getInputStream(entry);
+        }
+        if (zipDirectory != null) {
+            final ZipCentralDirectory.Entry entry = zipDirectory.getEntry(name);
+            return entry == null ? null : zipDirectory.getInputStream(entry);
+        }
+        return null;
+    }
+
+    // Where the bytes of an entry that is STORED (not compressed) are in the book's file.
+    public static class StoredRange {
+        public final FileChannel channel;
+        public final long offset;
+        public final long length;
+
+        StoredRange(FileChannel channel, long offset, long length) {
+            this.channel = channel;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    // If the named entry is STORED, where its bytes are, so they can be read in place
+    // instead of through a zip stream or an extracted copy. Media files are usually compressed
+    // already, so Bloom often stores them. Returns null if the entry isn't there, is compressed,
+    // or we had to unzip everything up front. The channel is only good until close() is called.
+    public synchronized StoredRange getStoredRange(String name) {
+        try {
+            ZipCentralDirectory directory = zipDirectory;
+            if (directory == null && zipFile != null) {
+                ZipEntry zipEntry = zipFile.getEntry(name);
+                if (zipEntry == null || zipEntry.getMethod() != ZipEntry.STORED)
+                    return null;
+                if (rangeDirectory == null)
+                    rangeDirectory = ZipCentralDirectory.open(inputFile);
+                directory = rangeDirectory;
+            }
+            if (directory == null)
+                return null;
+            ZipCentralDirectory.Entry entry = directory.getEntry(name);
+            if (entry == null || entry.method != ZipEntry.STORED || entry.compressedSize != entry.size)
+                return null;
+            return new StoredRange(directory.getChannel(), directory.getDataOffset(entry), entry.size);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // Extract under a temporary name and then rename, so that nobody sharing the output folder
+    // (it may be a BookCache folder) ever sees a partly written file.
     private File readFileFromInput(String name, String outputDir, InputStream zin) throws IOException {
 
         File output = new File(outputDir + File.separator + name);
-        IOUtilities.readFileFromInput(zin, output);
+        File temp = getTempFile(output);
+        try {
+            IOUtilities.readFileFromInput(zin, temp);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        return moveIntoPlace(temp, output, name);
+    }
+
+    // As above, but if we have an asset store and the entry is big enough to be worth it, get it
+    // from the store if it is there, and put it there if not. We only store what we have checked
+    // against the CRC, since a bad copy would then turn up in every book that has the file.
+    private File readFileFromInput(String name, String outputDir, InputStream zin, long crc, long size) throws IOException {
+        if (assetStore == null || crc < 0 || !AssetStore.isWorthSharing(size))
+            return readFileFromInput(name, outputDir, zin);
+        File output = new File(outputDir + File.separator + name);
+        if (assetStore.linkExisting(name, crc, size, output)) {
+            zin.close();
+            return output;
+        }
+        File temp = getTempFile(output);
+        CheckedInputStream checked = new CheckedInputStream(zin, new CRC32());
+        try {
+            IOUtilities.readFileFromInput(checked, temp);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        if (checked.getChecksum().getValue() == crc && temp.length() == size
+                && assetStore.add(temp, name, crc, size, output))
+            return output;
+        return moveIntoPlace(temp, output, name);
+    }
+
+    private static File getTempFile(File output) {
+        return new File(output.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+    }
+
+    private static File moveIntoPlace(File temp, File output, String name) throws IOException {
+        if (!temp.renameTo(output)) {
+            temp.delete();
+            if (!output.exists())
+                throw new IOException("could not extract " + name);
+        }
         return output;
     }
 
     public void close() {
-        if (zipFile != null) {
-            try {
+        try {
+            if (zipFile != null)
                 zipFile.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+            if (zipDirectory != null)
+                zipDirectory.close();
+            synchronized (this) {
+                if (rangeDirectory != null)
+                    rangeDirectory.close();
+                rangeDirectory = null;
             }
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
@@ -119,6 +350,15 @@ public class ZipFileOrUri {
                         return readFileFromInput(destName, outputDir, zin);
                     }
                 }
+            } else if (zipDirectory != null) {
+                for (ZipCentralDirectory.Entry entry : zipDirectory.getEntries()) {
+                    if (entry.isDirectory())
+                        continue;
+                    if (condition.test(entry.name)) {
+                        String destName = newName==null ? entry.name : newName;
+                        return readFileFromInput(destName, outputDir, zipDirectory.getInputStream(entry));
+                    }
+                }
             } else {
                 if (outputDir == null) {
                     // Not sure how this can happen, but it did.
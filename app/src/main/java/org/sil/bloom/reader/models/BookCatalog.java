@@ -0,0 +1,284 @@
+package org.sil.bloom.reader.models;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// This class remembers what we learned about each book file the last time we looked at it:
+// whether it was a valid bloomPUB, what its meta.json said, whether it has audio, and whether
+// it has a thumbnail. Entries are keyed by the path (or uri string) of the book and are only
+// trusted if the file's size and modification time still match, so a book is opened again
+// only when it has actually changed.
+// The whole catalog is kept in one small binary file which is read sequentially at startup
+// and rewritten (via a temporary file, so a crash can't leave it half written) when it changes.
+// It replaces two SharedPreferences maps (IOUtilities.CHECKED_FILES_TAG and the BookMetaJson
+// one that BookOrShelf used) for the books in our library.
+public class BookCatalog {
+    private static final String CATALOG_FILE_NAME = "bookCatalog.dat";
+    // Written at the start of the file. Change FORMAT_VERSION if the entry layout changes;
+    // a catalog with a different version is simply ignored and rebuilt.
+    private static final int MAGIC = 0x424b4354; // "BKCT"
+    private static final int FORMAT_VERSION = 1;
+
+    public static final int THUMBNAIL_UNKNOWN = 0;
+    public static final int THUMBNAIL_PRESENT = 1;
+    public static final int THUMBNAIL_NONE = 2;
+
+    public static class Entry {
+        public final String pathOrUri;
+        public final long size;
+        public final long lastModified;
+        public final boolean valid;
+        public final String title;
+        public final String brandingProjectName;
+        public final String bookInstanceId;
+        public final List<String> shelves;
+        // hasAudio is normally found while the book is validated; if not, it and thumbnailState
+        // are filled in lazily, typically when the book first scrolls into view.
+        // hasAudio is null until we know.
+        volatile Boolean hasAudio;
+        volatile int thumbnailState = THUMBNAIL_UNKNOWN;
+
+        public Entry(String pathOrUri, long size, long lastModified, boolean valid, String title,
+                     String brandingProjectName, String bookInstanceId, Collection<String> shelves) {
+            this.pathOrUri = pathOrUri;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.valid = valid;
+            this.title = title;
+            this.brandingProjectName = brandingProjectName;
+            this.bookInstanceId = bookInstanceId;
+            this.shelves = shelves == null || shelves.isEmpty()
+                    ? Collections.<String>emptyList()
+                    : Collections.unmodifiableList(new ArrayList<>(shelves));
+        }
+
+        // Record what we know about a book we have just validated and read the metadata of.
+        public static Entry forBook(BookOrShelf book, long size, long lastModified) {
+            return new Entry(book.pathOrUri, size, lastModified, true, book.title,
+                    book.brandingProjectName, book.bookInstanceId, book.getBookshelves());
+        }
+
+        // The same, when the validation also found out whether the book has audio (null if not).
+        public static Entry forBook(BookOrShelf book, long size, long lastModified, Boolean hasAudio) {
+            Entry entry = forBook(book, size, lastModified);
+            entry.hasAudio = hasAudio;
+            return entry;
+        }
+
+        public static Entry forInvalidFile(String pathOrUri, long size, long lastModified) {
+            return new Entry(pathOrUri, size, lastModified, false, null, null, null, null);
+        }
+
+        public boolean matches(long size, long lastModified) {
+            return this.size == size && this.lastModified == lastModified;
+        }
+
+        public Boolean getHasAudio() {
+            return hasAudio;
+        }
+
+        public int getThumbnailState() {
+            return thumbnailState;
+        }
+
+        // Make a book object from what we remember, without opening the book file.
+        public BookOrShelf makeBook() {
+            BookOrShelf book = new BookOrShelf(pathOrUri);
+            book.title = title;
+            book.brandingProjectName = brandingProjectName;
+            book.bookInstanceId = bookInstanceId;
+            for (String shelf : shelves)
+                book.addBookshelf(shelf);
+            return book;
+        }
+    }
+
+    private static BookCatalog sInstance;
+
+    private final File mFile;
+    private final Map<String, Entry> mEntries = new ConcurrentHashMap<>();
+    private volatile boolean mDirty;
+
+    public static synchronized BookCatalog getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BookCatalog(new File(context.getFilesDir(), CATALOG_FILE_NAME));
+            sInstance.load();
+        }
+        return sInstance;
+    }
+
+    // Public for the sake of unit tests; the app should use getInstance().
+    public BookCatalog(File file) {
+        mFile = file;
+    }
+
+    // Return what we know about the file, provided it hasn't changed since we recorded it.
+    public Entry lookup(String pathOrUri, long size, long lastModified) {
+        Entry entry = mEntries.get(pathOrUri);
+        if (entry == null || !entry.matches(size, lastModified))
+            return null;
+        return entry;
+    }
+
+    // Return whatever we have recorded for the file, without checking whether it has changed.
+    // This is for use with books we have already checked in this session.
+    public Entry get(String pathOrUri) {
+        return pathOrUri == null ? null : mEntries.get(pathOrUri);
+    }
+
+    public void put(Entry entry) {
+        Entry old = mEntries.put(entry.pathOrUri, entry);
+        if (old != null && old.matches(entry.size, entry.lastModified)) {
+            // Don't lose what we learned lazily about an unchanged file.
+            if (entry.hasAudio == null)
+                entry.hasAudio = old.hasAudio;
+            if (entry.thumbnailState == THUMBNAIL_UNKNOWN)
+                entry.thumbnailState = old.thumbnailState;
+        }
+        mDirty = true;
+    }
+
+    public void remove(String pathOrUri) {
+        if (pathOrUri != null && mEntries.remove(pathOrUri) != null)
+            mDirty = true;
+    }
+
+    public void setHasAudio(Entry entry, boolean hasAudio) {
+        if (entry.hasAudio == null || entry.hasAudio != hasAudio) {
+            entry.hasAudio = hasAudio;
+            mDirty = true;
+        }
+    }
+
+    public void setThumbnailState(Entry entry, int state) {
+        if (entry.thumbnailState != state) {
+            entry.thumbnailState = state;
+            mDirty = true;
+        }
+    }
+
+    // Forget any files we didn't see in the most recent complete scan of the library.
+    public void retainOnly(Collection<String> pathsSeen) {
+        if (mEntries.keySet().retainAll(pathsSeen))
+            mDirty = true;
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    public synchronized void saveIfDirty() {
+        if (!mDirty)
+            return;
+        mDirty = false;
+        try {
+            save();
+        } catch (IOException e) {
+            Log.e("BookCatalog", "Could not save book catalog: " + e.getMessage());
+            mDirty = true;
+        }
+    }
+
+    private void save() throws IOException {
+        File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            // Take a snapshot, since other threads may be adding to the catalog as we write.
+            List<Entry> entries = new ArrayList<>(mEntries.values());
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeUTF(entry.pathOrUri);
+                out.writeLong(entry.size);
+                out.writeLong(entry.lastModified);
+                out.writeBoolean(entry.valid);
+                writeNullableString(out, entry.title);
+                writeNullableString(out, entry.brandingProjectName);
+                writeNullableString(out, entry.bookInstanceId);
+                out.writeShort(entry.shelves.size());
+                for (String shelf : entry.shelves)
+                    out.writeUTF(shelf);
+                Boolean hasAudio = entry.hasAudio;
+                out.writeByte(hasAudio == null ? -1 : (hasAudio ? 1 : 0));
+                out.writeByte(entry.thumbnailState);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(mFile))
+            throw new IOException("could not rename " + temp.getPath());
+    }
+
+    void load() {
+        mEntries.clear();
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile), 64 * 1024));
+        } catch (FileNotFoundException e) {
+            return; // first run, or the catalog was deleted; we'll build a new one.
+        }
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+                return;
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                String pathOrUri = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                boolean valid = in.readBoolean();
+                String title = readNullableString(in);
+                String branding = readNullableString(in);
+                String bookInstanceId = readNullableString(in);
+                int shelfCount = in.readShort();
+                List<String> shelves = new ArrayList<>(shelfCount);
+                for (int j = 0; j < shelfCount; ++j)
+                    shelves.add(in.readUTF());
+                Entry entry = new Entry(pathOrUri, size, lastModified, valid, title, branding, bookInstanceId, shelves);
+                byte hasAudio = in.readByte();
+                entry.hasAudio = hasAudio < 0 ? null : hasAudio == 1;
+                entry.thumbnailState = in.readByte();
+                mEntries.put(pathOrUri, entry);
+            }
+        } catch (EOFException e) {
+            // A truncated catalog is no worse than no catalog; keep what we read.
+            Log.w("BookCatalog", "Book catalog was truncated after " + mEntries.size() + " entries");
+        } catch (IOException e) {
+            e.printStackTrace();
+            mEntries.clear();
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void writeNullableString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+            out.writeUTF(value);
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
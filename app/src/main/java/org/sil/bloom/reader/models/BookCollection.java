@@ -11,19 +11,20 @@ import android.widget.Toast;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.sil.bloom.reader.BaseActivity;
+import org.sil.bloom.reader.AudioScan;
+import org.sil.bloom.reader.BookCache;
 import org.sil.bloom.reader.BloomFileReader;
 import org.sil.bloom.reader.BloomReaderApplication;
 import org.sil.bloom.reader.BloomShelfFileReader;
-import org.sil.bloom.reader.BookSearchListener;
 import org.sil.bloom.reader.SAFUtilities;
 import org.sil.bloom.reader.TextFileContent;
 import org.sil.bloom.reader.IOUtilities;
 import org.sil.bloom.reader.InitializeLibraryTask;
 import org.sil.bloom.reader.R;
+import org.sil.bloom.reader.ThumbnailCache;
 import org.sil.bloom.reader.ThumbnailCleanup;
 
 import java.io.File;
-import java.io.FileFilter;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -31,8 +32,13 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class BookCollection {
     public static final String THUMBS_DIR = ".thumbs";
@@ -57,9 +63,13 @@ public class BookCollection {
     private String mFilter = null;
     // The set of shelf ids for the shelves we actually have. Books with none of these pass
     // the empty filter.
-    private final Set<String> mShelfIds = new HashSet<String>();
+    // (Books are loaded on several threads at once, so this needs to be a concurrent set.)
+    private final Set<String> mShelfIds = ConcurrentHashMap.newKeySet();
 
     private InitializeLibraryTask mInitializeTask = null;
+    // The paths (or uri strings) of the book files found by the current loadFromDirectories(),
+    // so we can drop catalog entries for books that have gone away.
+    private final Set<String> mBookPathsSeen = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     public void setFilter(String filter) {
         mFilter = filter;
@@ -78,10 +88,39 @@ public class BookCollection {
 
     public BookOrShelf addBookOrShelfIfNeeded(String pathOrUri) {
  		pathOrUri = fixBloomd(pathOrUri);
+        Context context = BloomReaderApplication.getBloomApplicationContext();
+        // This is called when a book arrives or is updated, so anything the catalog remembers
+        // (or the book cache has extracted) from an older version no longer applies. (If it has
+        // just been cataloged, as books from a bundle are, the entry is for this version.)
+        BookCatalog catalog = BookCatalog.getInstance(context);
+        boolean isBook = IOUtilities.isBloomPubFile(pathOrUri);
+        long size = 0;
+        long modified = 0;
+        BookCatalog.Entry known = null;
+        if (isBook) {
+            Uri uri = SAFUtilities.getContentUriIfItIsOne(pathOrUri);
+            if (uri != null) {
+                size = IOUtilities.fileSize(context, uri);
+                modified = IOUtilities.lastModified(context, uri);
+            } else {
+                File file = new File(pathOrUri);
+                size = file.length();
+                modified = file.lastModified();
+            }
+            known = catalog.lookup(pathOrUri, size, modified);
+        }
+        if (known == null)
+            catalog.remove(pathOrUri);
+        BookCache.getInstance(context).remove(pathOrUri);
+        ThumbnailCache.getInstance(context).remove(pathOrUri);
         BookOrShelf existingBook = getBookOrShelfByPath(pathOrUri);
         if (existingBook != null)
             return existingBook;
-        return addBookOrShelf(pathOrUri, null);
+        BookOrShelf bookOrShelf = addBookOrShelf(pathOrUri, null);
+        // Remember what we just read from it, so the next load doesn't have to open it again.
+        if (isBook && known == null)
+            catalog.put(BookCatalog.Entry.forBook(bookOrShelf, size, modified));
+        return bookOrShelf;
     }
 
     private BookOrShelf makeBookOrShelf(String pathOrUri, TextFileContent metaFile) {
@@ -131,7 +170,7 @@ public class BookCollection {
         return bookOrShelf;
     }
 
-    private synchronized ArrayList<BookOrShelf> getCopyOfFilteredBooksAndShelves() {
+    public synchronized ArrayList<BookOrShelf> getCopyOfFilteredBooksAndShelves() {
         return  new ArrayList<BookOrShelf>(mFilteredBooksAndShelves);
     }
 
@@ -277,130 +316,154 @@ public class BookCollection {
     private void loadFromDirectories(File[] booksDirs, Activity activity) {
         mShelfIds.clear();
         _booksAndShelves.clear();
+        mBookPathsSeen.clear();
+        BookCatalog catalog = BookCatalog.getInstance(activity);
         List<Uri> individualBooks = SAFUtilities.getBooksWithIndividualPermissions(activity);
-        if (mInitializeTask != null) {
-            int count = individualBooks.size() + (oldBloomDirectoryExistsButNoAccess(activity) ? 1 : 0);
-            if (booksDirs != null && booksDirs.length > 0) {
-                for (File booksDir : booksDirs) {
-                    int newCount = 0;
-                    try {
-                        File[] files = IOUtilities.listFilesRecursively(booksDir,new FileFilter() {
-                            public boolean accept(File file) {
-                                String name = file.getName();
-                                return  IOUtilities.isBloomPubFile(name) || name.endsWith(IOUtilities.BOOKSHELF_FILE_EXTENSION);
-                            }
-                        });
-                        newCount = files != null ? files.length : 0;
-                    } catch (SecurityException e) {
-                        // This is expected if we are on older Android and don't have external storage permission.
-                    }
-                    catch (NullPointerException e) {
-                        // For some reason this is what actually happens in some cases (e.g., Nexus 5X API 28 emulator)
-                        // when we don't have external storage permission
-                    }
-                    catch (Exception e) {
-                        // And maybe other devices and OS versions will throw something else again?
-                        e.printStackTrace();
-                    }
-                    if (newCount == 0) {
-                        // Maybe it is a folder, typically ExternalFiles, that the user has given us
-                        // permission to access using SAF? That doesn't allow us to listFiles, and
-                        // unfortunately, instead of throwing or otherwise indicating that we don't
-                        // have permission, listFiles just doesn't list any of them. So try it using
-                        // SAF.
-                        Uri uri = SAFUtilities.getUriForFolderWithPermission(activity, booksDir.getPath());
-                        if (uri != null) {
-                            newCount = SAFUtilities.countBooksIn(activity, uri);
-                        } else {
-                            newCount = 1; // We will make one placeholder for ExternalFiles
-                            // (When it is clicked we ask for permission.)
-
-                        }
-                    }
-                    count += newCount;
-                }
-            }
-            mInitializeTask.setBookCount(count);
-        }
         if (booksDirs != null && booksDirs.length > 0) {
             // Fix any duplicate .bloomd/.bloompub pairs in our main directory.
             for (File f:booksDirs[0].listFiles()) {
                 fixBloomd(f.getAbsolutePath());
             }
-            for (File booksDir : booksDirs)
-                loadFromDirectory(booksDir, activity);
         }
-        List<BookOrShelf> books = individualBooks.stream()
-            .map(uri -> makeBookOrShelf(uri,null))
-            .collect(Collectors.toList());
+        // One walk of each directory gives us both the total for the progress bar and the list
+        // of files to load. Each directory is walked on the pool and its books are queued as soon
+        // as its own walk is done, so a slow SD card or SAF folder doesn't hold up showing the
+        // books in our main directory. (The progress bar total grows as the walks finish.)
+        final AtomicInteger count = new AtomicInteger(
+                individualBooks.size() + (oldBloomDirectoryExistsButNoAccess(activity) ? 1 : 0));
+        if (mInitializeTask != null) {
+            mInitializeTask.setBookCount(count.get());
+        }
+        final LibraryLoad load = new LibraryLoad();
+        if (booksDirs != null) {
+            for (File booksDir : booksDirs) {
+                load.submit(() -> {
+                    BookFileManifest manifest = BookFileManifest.build(activity, booksDir);
+                    // (Locked so the totals reach the progress bar in the order they grow.)
+                    synchronized (count) {
+                        int total = count.addAndGet(manifest.getProgressCount());
+                        if (mInitializeTask != null) {
+                            mInitializeTask.setBookCount(total);
+                        }
+                    }
+                    loadFromManifest(manifest, activity, load);
+                });
+            }
+        }
+        for (Uri uri : individualBooks) {
+            load.submit(() -> {
+                load.add(IOUtilities.isBloomPubFile(uri.getPath())
+                        ? getCatalogedBook(catalog, activity, uri)
+                        : makeBookOrShelf(uri,null));
+                if (mInitializeTask != null) {
+                    mInitializeTask.incrementBookProgress();
+                }
+            });
+        }
         if (oldBloomDirectoryExistsButNoAccess(activity)) {
             // Make a fake shelf for requesting access to it.
             String fakeShelfName = activity.getResources().getString(R.string.show_books_in_old_bloom_folder);
             BookOrShelf fakeShelf = new BookOrShelf(fakeShelfName + IOUtilities.BOOKSHELF_FILE_EXTENSION);
             fakeShelf.specialBehavior = "importOldBloomFolder";
-            books.add(fakeShelf);
+            load.add(fakeShelf);
         }
 
-        addBooks(books);
-    }
+        load.finish();
+        catalog.retainOnly(mBookPathsSeen);
+        catalog.saveIfDirty();
+    }
+
+    // Loading books is mostly a matter of validating each file and reading its meta.json, and the
+    // files are independent of each other, so we spread that work over a pool of threads sized to
+    // the device. The results are merged into the collection a small batch at a time (or whatever
+    // has been loaded, if it's been a while since the last merge), so the first books show up
+    // almost at once even in a large library.
+    private class LibraryLoad {
+        private static final int MERGE_BATCH_SIZE = 12;  // about a screenful
+        private static final long MERGE_INTERVAL_MILLIS = 250;
+        private final ExecutorService mPool = Executors.newFixedThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors()));
+        // One party for the thread that calls finish(), plus one for each piece of work not yet done.
+        private final Phaser mOutstanding = new Phaser(1);
+        private final ConcurrentLinkedQueue<BookOrShelf> mLoaded = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger mUnmerged = new AtomicInteger();
+        private final Object mMergeLock = new Object();
+        private volatile long mLastMergeTime = System.currentTimeMillis();
+
+        // Work may itself submit more work (e.g., loading a directory submits each of its books).
+        void submit(Runnable work) {
+            mOutstanding.register();
+            mPool.execute(() -> {
+                try {
+                    work.run();
+                } catch (Exception e) {
+                    // One bad book (or directory) shouldn't stop us loading the rest.
+                    e.printStackTrace();
+                } finally {
+                    mOutstanding.arriveAndDeregister();
+                }
+            });
+        }
 
-    private void loadFromDirectory(File directory, Activity activity) {
-        File[] files = IOUtilities.listFilesRecursively(directory, new FileFilter() {
-            // Even when we DON'T HAVE PERMISSION to access files in the directory, we can see its
-            // subdirectories!! But if we find no files, we're going to presume we have no permissions,
-            // so we don't want to count directories here.
-            @Override
-            public boolean accept(File file) {
-                return !file.isDirectory();
-            }
-        });
-        ArrayList<BookOrShelf> books = new ArrayList<BookOrShelf>();
-        if (files == null || files.length == 0 && !BaseActivity.haveLegacyStoragePermission(activity)) {
-            // files may be null, or spuriously have length zero, if we don't have permission to access the folder,
-            // or even if we DO have permission, but it's a folder we can only access through
-            // SAF, like BloomExternal. So try again that way, if we get an empty list when we're
-            // without legacy storage permission. Of course, if we do have that, the result should be correct.
-            loadFromSAFDirectory(directory, activity);
-            return;
+        void add(BookOrShelf bookOrShelf) {
+            if (bookOrShelf == null)
+                return;
+            mLoaded.add(bookOrShelf);
+            if (mUnmerged.incrementAndGet() >= MERGE_BATCH_SIZE
+                    || System.currentTimeMillis() - mLastMergeTime >= MERGE_INTERVAL_MILLIS)
+                merge();
         }
-        for (int i = 0; i < files.length; i++) {
-            final String name = files[i].getName();
-            TextFileContent metaFile = new TextFileContent("meta.json");
-            if (!IOUtilities.isBloomPubFile(name)
-                    && !name.endsWith(IOUtilities.BOOKSHELF_FILE_EXTENSION))
-                continue; // not a book (nor a shelf)!
-            final String path = files[i].getAbsolutePath();
-            if (IOUtilities.isBloomPubFile(name) &&
-                    !IOUtilities.isValidZipFile(new File(path), IOUtilities.CHECK_BLOOMPUB, metaFile)) {
-                activity.runOnUiThread(new Runnable() {
-                    public void run() {
-                        String markedName = name + "-BAD";
-                        Log.w("BloomCollection", "Renaming invalid book file " + path + " to " + markedName);
-                        Context context = BloomReaderApplication.getBloomApplicationContext();
-                        String message = context.getString(R.string.renaming_invalid_book, markedName);
-                        Toast.makeText(context, message, Toast.LENGTH_LONG).show();
-                    }
-                });
-                new File(path).renameTo(new File(path + "-BAD"));
+
+        // Wait until all the work (including any it submitted) is done, then merge what's left.
+        void finish() {
+            mOutstanding.arriveAndAwaitAdvance();
+            mPool.shutdown();
+            merge();
+        }
+
+        private void merge() {
+            // Merges must not overlap, or a slower one could replace the filtered list with one
+            // that lacks the books added by a faster one.
+            synchronized (mMergeLock) {
+                ArrayList<BookOrShelf> batch = new ArrayList<BookOrShelf>();
+                BookOrShelf bookOrShelf;
+                while ((bookOrShelf = mLoaded.poll()) != null)
+                    batch.add(bookOrShelf);
+                mUnmerged.addAndGet(-batch.size());
+                mLastMergeTime = System.currentTimeMillis();
+                if (batch.isEmpty())
+                    return;
                 if (mInitializeTask != null) {
-                    mInitializeTask.incrementBookProgress();
+                    // The task will get the UI thread to insert them into the list it is showing.
+                    _booksAndShelves.addAll(batch);
+                    mInitializeTask.showLoadedBooks(batch);
+                } else {
+                    addBooks(batch);
                 }
-                continue;
-            }
-            books.add(makeBookOrShelf(path, metaFile));
-            if (mInitializeTask != null) {
-                mInitializeTask.incrementBookProgress();
             }
         }
-        addBooks(books);
     }
 
-    private void loadFromSAFDirectory(File directory, Activity activity) {
-        // We didn't find anything in directory, but this might be because it's a directory we only
-        // have permission to access through SAF.
-        Uri uri = SAFUtilities.getUriForFolderWithPermission(activity, directory.getPath());
-        final ArrayList<BookOrShelf> books = new ArrayList<BookOrShelf>();
-        if (uri == null) {
+    // Get the book from the catalog if we have seen this version of it before; otherwise make it
+    // from the meta.json in the file and catalog it. This is for books we have individual
+    // permission for, which we have never validated, so a book the catalog knows is invalid is
+    // still returned.
+    private BookOrShelf getCatalogedBook(BookCatalog catalog, Context context, Uri uri) {
+        String key = uri.toString();
+        long size = IOUtilities.fileSize(context, uri);
+        long modified = IOUtilities.lastModified(context, uri);
+        mBookPathsSeen.add(key);
+        BookCatalog.Entry known = catalog.lookup(key, size, modified);
+        if (known != null && known.valid)
+            return known.makeBook();
+        BookOrShelf book = makeBookOrShelf(uri, null);
+        catalog.put(BookCatalog.Entry.forBook(book, size, modified));
+        return book;
+    }
+
+    // Queue up loading everything the manifest found.
+    private void loadFromManifest(BookFileManifest manifest, Activity activity, LibraryLoad load) {
+        if (manifest.needsPermission) {
             // This behavior is specific to the BloomExternal folder, therefore, not as generic as
             // "any folder we put in the list but can't get a uri for" above. So far, BloomExternal
             // is the only possible such folder. That could change. But probably we'd have permission
@@ -409,56 +472,164 @@ public class BookCollection {
             BookOrShelf fakeShelf = new BookOrShelf(fakeShelfName + IOUtilities.BOOKSHELF_FILE_EXTENSION);
             //fakeShelf.backgroundColor = "ffff00";
             fakeShelf.specialBehavior = "loadExternalFiles";
-            books.add(fakeShelf);
-            addBooks(books);
+            load.add(fakeShelf);
+            if (mInitializeTask != null) {
+                mInitializeTask.incrementBookProgress();
+            }
             return;
         }
-
-        BookSearchListener listener = new BookSearchListener() {
-            @Override
-            public void onFoundBookOrShelf(File bloomPubFile, Uri bookOrShelfUri) {
-                // in this context it isn't really new, but oh well..
-                final String path = bookOrShelfUri.getPath();
-                if (!IOUtilities.isBloomPubFile(path)
-                        && !path.endsWith(IOUtilities.BOOKSHELF_FILE_EXTENSION))
-                    return; // not a book (nor a shelf)!
-                TextFileContent metaFile = new TextFileContent("meta.json");
-                if (IOUtilities.isBloomPubFile(path) &&
-                        !IOUtilities.isValidZipUri(bookOrShelfUri, IOUtilities.CHECK_BLOOMPUB, metaFile)) {
-                    // Todo: can we find a way to hide the bad file??
-//                    activity.runOnUiThread(new Runnable() {
-//                        public void run() {
-//                            String markedName = name + "-BAD";
-//                            Log.w("BloomCollection", "Renaming invalid book file "+path+" to "+markedName);
-//                            Context context = BloomReaderApplication.getBloomApplicationContext();
-//                            String message = context.getString(R.string.renaming_invalid_book, markedName);
-//                            Toast.makeText(context, message, Toast.LENGTH_LONG).show();
-//                        }
-//                    });
-//                    new File(path).renameTo(new File(path+"-BAD"));
-                    if (mInitializeTask != null) {
-                        mInitializeTask.incrementBookProgress();
-                    }
-                    return;
-                }
-                books.add(makeBookOrShelf(bookOrShelfUri, metaFile));
+        final BookCatalog catalog = BookCatalog.getInstance(activity);
+        for (final BookFileManifest.Item item : manifest.items) {
+            load.submit(() -> {
+                load.add(item.uri == null
+                        ? loadBookOrShelfFile(item, activity, catalog)
+                        : loadBookOrShelfUri(item, activity, catalog));
                 if (mInitializeTask != null) {
                     mInitializeTask.incrementBookProgress();
                 }
-            }
-
-            @Override
-            public void onFoundBundle(Uri bundleUri) {
+            });
+        }
+    }
 
-            }
+    // Make the BookOrShelf for one file in one of our books directories, or return null if it is
+    // not a valid book (in which case we rename it so we don't keep trying).
+    private BookOrShelf loadBookOrShelfFile(BookFileManifest.Item item, Activity activity, BookCatalog catalog) {
+        final File file = item.file;
+        final String name = item.name;
+        final String path = file.getAbsolutePath();
+        TextFileContent metaFile = new TextFileContent("meta.json");
+        if (!item.isBook())
+            return makeBookOrShelf(path, metaFile);
+        // If the catalog knows this version of the book, we don't need to open it at all.
+        long size = item.size;
+        long modified = item.lastModified;
+        mBookPathsSeen.add(path);
+        BookCatalog.Entry known = catalog.lookup(path, size, modified);
+        if (known != null && known.valid)
+            return known.makeBook();
+        // Find out whether it has audio in the same pass, so the list never has to open it again.
+        AudioScan audio = new AudioScan();
+        if (!IOUtilities.validateZipFile(file, IOUtilities.CHECK_BLOOMPUB, metaFile, audio)) {
+            activity.runOnUiThread(new Runnable() {
+                public void run() {
+                    String markedName = name + "-BAD";
+                    Log.w("BloomCollection", "Renaming invalid book file " + path + " to " + markedName);
+                    Context context = BloomReaderApplication.getBloomApplicationContext();
+                    String message = context.getString(R.string.renaming_invalid_book, markedName);
+                    Toast.makeText(context, message, Toast.LENGTH_LONG).show();
+                }
+            });
+            new File(path).renameTo(new File(path + "-BAD"));
+            return null;
+        }
+        BookOrShelf book = makeBookOrShelf(path, metaFile);
+        catalog.put(BookCatalog.Entry.forBook(book, size, modified, audio.getResult()));
+        return book;
+    }
+
+    // Make the BookOrShelf for one file found in a folder we access through SAF, or return null
+    // if it is not a valid book.
+    private BookOrShelf loadBookOrShelfUri(BookFileManifest.Item item, Activity activity, BookCatalog catalog) {
+        final Uri bookOrShelfUri = item.uri;
+        TextFileContent metaFile = new TextFileContent("meta.json");
+        if (!item.isBook())
+            return makeBookOrShelf(bookOrShelfUri, metaFile);
+        String key = bookOrShelfUri.toString();
+        long size = item.size >= 0 ? item.size : IOUtilities.fileSize(activity, bookOrShelfUri);
+        long modified = item.lastModified >= 0 ? item.lastModified : IOUtilities.lastModified(activity, bookOrShelfUri);
+        mBookPathsSeen.add(key);
+        BookCatalog.Entry known = catalog.lookup(key, size, modified);
+        if (known != null) {
+            // We've seen this version before; if it was bad then, it still is.
+            return known.valid ? known.makeBook() : null;
+        }
+        AudioScan audio = new AudioScan();
+        if (!IOUtilities.validateZipUri(activity, bookOrShelfUri, IOUtilities.CHECK_BLOOMPUB, metaFile, audio)) {
+            catalog.put(BookCatalog.Entry.forInvalidFile(key, size, modified));
+            // Todo: can we find a way to hide the bad file??
+//            activity.runOnUiThread(new Runnable() {
+//                public void run() {
+//                    String markedName = name + "-BAD";
+//                    Log.w("BloomCollection", "Renaming invalid book file "+path+" to "+markedName);
+//                    Context context = BloomReaderApplication.getBloomApplicationContext();
+//                    String message = context.getString(R.string.renaming_invalid_book, markedName);
+//                    Toast.makeText(context, message, Toast.LENGTH_LONG).show();
+//                }
+//            });
+//            new File(path).renameTo(new File(path+"-BAD"));
+            return null;
+        }
+        BookOrShelf book = makeBookOrShelf(bookOrShelfUri, metaFile);
+        catalog.put(BookCatalog.Entry.forBook(book, size, modified, audio.getResult()));
+        return book;
+    }
 
-            @Override
-            public void onSearchComplete() {
+    // Lets a RecyclerView adapter hear about individual changes to the filtered list, so it can
+    // update just the rows concerned instead of redrawing everything.
+    public interface FilteredListListener {
+        void onItemsInserted(int position, int count);
+        void onItemRemoved(int position);
+    }
 
+    // Add newly loaded books and shelves to the list being displayed, each in its sorted
+    // position, telling the listener about every change as it is made. The books must already
+    // be in _booksAndShelves.
+    // This must be called on the UI thread, since the RecyclerView requires the adapter's data and
+    // its notifications to change together.
+    public void showLoadedBooks(List<BookOrShelf> batch, FilteredListListener listener) {
+        ArrayList<BookOrShelf> newList = getCopyOfFilteredBooksAndShelves();
+        ArrayList<int[]> changes = new ArrayList<int[]>();  // {position, +1 inserted or -1 removed}
+        boolean addingShelves = false;
+        for (BookOrShelf bookOrShelf : batch) {
+            if (bookOrShelf.isShelf() && bookOrShelf.shelfId != null)
+                addingShelves = true;
+        }
+        if (addingShelves) {
+            // Books already showing may belong on one of the new shelves.
+            for (int i = newList.size() - 1; i >= 0; i--) {
+                if (!isBookInFilter(newList.get(i), mFilter, mShelfIds)) {
+                    newList.remove(i);
+                    changes.add(new int[] {i, -1});
+                }
+            }
+        }
+        // Inserting in order means neighboring books come out as a single range.
+        ArrayList<BookOrShelf> sortedBatch = new ArrayList<BookOrShelf>(batch);
+        Collections.sort(sortedBatch, BookOrShelf.AlphanumComparator);
+        // If something rebuilt the whole list since these were loaded, some may already be there.
+        Set<BookOrShelf> alreadyShowing = new HashSet<BookOrShelf>(newList);
+        for (BookOrShelf bookOrShelf : sortedBatch) {
+            if (alreadyShowing.contains(bookOrShelf) || !isBookInFilter(bookOrShelf, mFilter, mShelfIds))
+                continue;
+            int position = Collections.binarySearch(newList, bookOrShelf, BookOrShelf.AlphanumComparator);
+            if (position < 0)
+                position = -position - 1;
+            newList.add(position, bookOrShelf);
+            changes.add(new int[] {position, 1});
+        }
+        replaceFilteredBooksAndShelves(newList);
+        if (listener == null)
+            return;
+        // Report consecutive insertions as one range where we can.
+        int rangeStart = -1;
+        int rangeCount = 0;
+        for (int[] change : changes) {
+            if (change[1] > 0 && rangeCount > 0 && change[0] == rangeStart + rangeCount) {
+                ++rangeCount;
+                continue;
+            }
+            if (rangeCount > 0)
+                listener.onItemsInserted(rangeStart, rangeCount);
+            rangeCount = 0;
+            if (change[1] > 0) {
+                rangeStart = change[0];
+                rangeCount = 1;
+            } else {
+                listener.onItemRemoved(change[0]);
             }
-        };
-        SAFUtilities.searchDirectoryForBooks(activity, uri, listener);
-        addBooks(books);
+        }
+        if (rangeCount > 0)
+            listener.onItemsInserted(rangeStart, rangeCount);
     }
 
     private void updateFilteredList() {
@@ -502,6 +673,9 @@ public class BookCollection {
         }
         _booksAndShelves.remove(book);
         mFilteredBooksAndShelves.remove(book);
+        BookCatalog.getInstance(BloomReaderApplication.getBloomApplicationContext()).remove(book.pathOrUri);
+        BookCache.getInstance(BloomReaderApplication.getBloomApplicationContext()).remove(book.pathOrUri);
+        ThumbnailCache.getInstance(BloomReaderApplication.getBloomApplicationContext()).remove(book.pathOrUri);
     }
 
     // is this coming from somewhere other than where we store books?
@@ -615,6 +789,18 @@ public class BookCollection {
         }
     }
 
+    // Record a book that has just been put in one of our books directories after being validated
+    // (as a bundle import does), so that the next load of the collection finds it in the catalog
+    // rather than opening it again. Anything we remember about an older version is forgotten.
+    public static void catalogValidatedBook(Context context, File file, TextFileContent metaFile, Boolean hasAudio) {
+        String path = file.getAbsolutePath();
+        BookCache.getInstance(context).remove(path);
+        ThumbnailCache.getInstance(context).remove(path);
+        BookOrShelf book = new BookOrShelf(path);
+        setShelvesAndTitleOfBook(book, metaFile);
+        BookCatalog.getInstance(context).put(BookCatalog.Entry.forBook(book, file.length(), file.lastModified(), hasAudio));
+    }
+
     // If the path passed ends in the obsolete .bloomd, rename it to .bloompub.
     // If that results in a conflict, delete the older file and keep the newer one with the
     // correct name.
@@ -622,7 +808,7 @@ public class BookCollection {
     public static String fixBloomd(String currentPath) {
         if (!currentPath.endsWith(".bloomd")) return currentPath;
         File currentFile = new File(currentPath);
-        String newPath = currentPath.substring(0, currentPath.length() - "bloomd".length()) + "bloompub";
+        String newPath = fixBloomdName(currentPath);
         if (!currentFile.exists()) return newPath; // may have already been fixed in a previous call
         File newFile = new File(newPath);
         if (newFile.exists()) {
@@ -637,6 +823,12 @@ public class BookCollection {
         return newPath;
     }
 
+    // The name (or path) a book should have: the same, but with .bloompub instead of the obsolete .bloomd.
+    public static String fixBloomdName(String name) {
+        if (!name.endsWith(".bloomd")) return name;
+        return name.substring(0, name.length() - "bloomd".length()) + "bloompub";
+    }
+
     // Tests whether a book passes the current 'filter'.
     // A null (or empty) filter, used by the main activity, contains books that are not on any
     // (existing) shelf. A non-empty filter, which is expected to be the ID of a shelf, contains books
@@ -670,6 +862,8 @@ public class BookCollection {
                     byte[] jsonBytes = bookOrShelf.uri == null
                             ? IOUtilities.ExtractZipEntry(new File(bookOrShelf.pathOrUri), "meta.json")
                             : IOUtilities.ExtractZipEntry(BloomReaderApplication.getBloomApplicationContext(), bookOrShelf.uri, "meta.json");
+                    if (jsonBytes == null)
+                        return; // no meta.json we can read; see below.
                     json = new String(jsonBytes, "UTF-8");
                 }
             }
@@ -687,6 +881,9 @@ public class BookCollection {
             if (data.has("title")) {
                 bookOrShelf.title = data.getString("title");
             }
+            if (data.has("bookInstanceId")) {
+                bookOrShelf.bookInstanceId = data.getString("bookInstanceId");
+            }
         } catch (Exception e) {
             // Not sure about just catching everything like this. But the worst that happens if
             // a bloompub/bloomd does not contain valid meta.json from which we can extract tags is that
@@ -706,24 +903,21 @@ public class BookCollection {
             File thumbsDirectory = getThumbsDirectory();
             String thumbPath = thumbsDirectory.getPath() + File.separator + book.name;
             File thumb = new File(thumbPath);
-            if (thumb.exists()) {
-                if (thumb.lastModified() < book.lastModified()) {
-                    thumb.delete();
-                    return new BloomFileReader(context, book).getThumbnail(thumbsDirectory);
-                }
-                return Uri.fromFile(thumb);
+            // If the catalog has already recorded the thumbnail state of this version of the book,
+            // we can skip checking the book's modification time, which for a book we only have
+            // a uri for means a trip through the ContentResolver.
+            BookCatalog catalog = BookCatalog.getInstance(context);
+            BookCatalog.Entry entry = catalog.get(book.pathOrUri);
+            if (entry != null) {
+                if (entry.getThumbnailState() == BookCatalog.THUMBNAIL_NONE)
+                    return null;
+                if (entry.getThumbnailState() == BookCatalog.THUMBNAIL_PRESENT && thumb.exists())
+                    return Uri.fromFile(thumb);
             }
-
-            File noThumb = new File(thumbsDirectory.getPath() + File.separator + NO_THUMBS_DIR + File.separator + book.name);
-            if (noThumb.exists()){
-                if (noThumb.lastModified() < book.lastModified()) {
-                    noThumb.delete();
-                    return new BloomFileReader(context, book).getThumbnail(thumbsDirectory);
-                }
-                return null;
-            }
-
-            return new BloomFileReader(context, book).getThumbnail(thumbsDirectory);
+            Uri result = getThumbnailFromDisk(context, book, thumbsDirectory, thumb);
+            if (entry != null)
+                catalog.setThumbnailState(entry, result == null ? BookCatalog.THUMBNAIL_NONE : BookCatalog.THUMBNAIL_PRESENT);
+            return result;
         }
         catch (IOException e){
             Log.e("BookCollection", "IOException getting thumbnail: " + e.getMessage());
@@ -732,6 +926,27 @@ public class BookCollection {
         }
     }
 
+    private static Uri getThumbnailFromDisk(Context context, BookOrShelf book, File thumbsDirectory, File thumb) throws IOException {
+        if (thumb.exists()) {
+            if (thumb.lastModified() < book.lastModified()) {
+                thumb.delete();
+                return new BloomFileReader(context, book).getThumbnail(thumbsDirectory);
+            }
+            return Uri.fromFile(thumb);
+        }
+
+        File noThumb = new File(thumbsDirectory.getPath() + File.separator + NO_THUMBS_DIR + File.separator + book.name);
+        if (noThumb.exists()){
+            if (noThumb.lastModified() < book.lastModified()) {
+                noThumb.delete();
+                return new BloomFileReader(context, book).getThumbnail(thumbsDirectory);
+            }
+            return null;
+        }
+
+        return new BloomFileReader(context, book).getThumbnail(thumbsDirectory);
+    }
+
     private static File getThumbsDirectory() throws IOException {
         String booksDirectoryPath = getLocalBooksDirectory().getPath();
         String thumbsDirectoryPath = booksDirectoryPath + File.separator + THUMBS_DIR;
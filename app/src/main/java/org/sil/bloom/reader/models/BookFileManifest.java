@@ -0,0 +1,135 @@
+package org.sil.bloom.reader.models;
+
+import android.content.Context;
+import android.net.Uri;
+
+import org.sil.bloom.reader.BaseActivity;
+import org.sil.bloom.reader.BookSearchListener;
+import org.sil.bloom.reader.IOUtilities;
+import org.sil.bloom.reader.SAFUtilities;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// The book and shelf files in one of our books directories, found by a single walk of the
+// directory tree (through the file system if we can, otherwise through SAF). Both the progress
+// bar total and the actual loading of the books use the same manifest, so we don't have to go
+// through the tree (which may be on a slow SD card) twice.
+class BookFileManifest {
+    // One book or shelf file. Exactly one of file and uri is set. size and lastModified are
+    // recorded during the walk (the SAF search fetches them along with the names); they are -1
+    // if the walk couldn't tell.
+    static class Item {
+        final File file;
+        final Uri uri;
+        final String name;
+        final long size;
+        final long lastModified;
+
+        Item(File file, Uri uri, String name, long size, long lastModified) {
+            this.file = file;
+            this.uri = uri;
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        boolean isBook() {
+            return IOUtilities.isBloomPubFile(name);
+        }
+    }
+
+    final File directory;
+    // Set if we had to search the directory through SAF.
+    final Uri safUri;
+    // True if we can't see into the directory at all and don't (yet) have SAF permission for it.
+    // Currently that only happens with BloomExternal, for which we show a placeholder shelf.
+    final boolean needsPermission;
+    final List<Item> items;
+
+    private BookFileManifest(File directory, Uri safUri, boolean needsPermission, List<Item> items) {
+        this.directory = directory;
+        this.safUri = safUri;
+        this.needsPermission = needsPermission;
+        this.items = Collections.unmodifiableList(items);
+    }
+
+    // How many steps loading this directory adds to the progress bar.
+    int getProgressCount() {
+        return needsPermission ? 1 : items.size();
+    }
+
+    static boolean isCandidate(String name) {
+        return IOUtilities.isBloomPubFile(name) || name.endsWith(IOUtilities.BOOKSHELF_FILE_EXTENSION);
+    }
+
+    static BookFileManifest build(Context context, File directory) {
+        final ArrayList<Item> items = new ArrayList<>();
+        // Even when we DON'T HAVE PERMISSION to access files in the directory, we can see its
+        // subdirectories!! But if we find no files, we're going to presume we have no permissions,
+        // so we don't want to count directories here.
+        final int[] fileCount = {0};
+        boolean listed = false;
+        try {
+            IOUtilities.listFilesRecursively(directory, file -> {
+                if (file.isDirectory())
+                    return false;
+                ++fileCount[0];
+                String name = file.getName();
+                if (isCandidate(name))
+                    items.add(new Item(file, null, name, file.length(), file.lastModified()));
+                return false;   // we keep our own list
+            }, null);
+            listed = true;
+        } catch (SecurityException e) {
+            // This is expected if we are on older Android and don't have external storage permission.
+        }
+        catch (NullPointerException e) {
+            // For some reason this is what actually happens in some cases (e.g., Nexus 5X API 28 emulator)
+            // when we don't have external storage permission
+        }
+        catch (Exception e) {
+            // And maybe other devices and OS versions will throw something else again?
+            e.printStackTrace();
+        }
+        if (listed && (fileCount[0] > 0 || BaseActivity.haveLegacyStoragePermission(context)))
+            return new BookFileManifest(directory, null, false, items);
+
+        // We may get an empty list if we don't have permission to access the folder, or even if
+        // we DO have permission, but it's a folder we can only access through SAF, like
+        // BloomExternal. (Instead of throwing or otherwise indicating that we don't have
+        // permission, listFiles just doesn't list anything.) So try again that way, if we get an
+        // empty list when we're without legacy storage permission. Of course, if we do have that,
+        // the result should be correct.
+        items.clear();
+        Uri uri = SAFUtilities.getUriForFolderWithPermission(context, directory.getPath());
+        if (uri == null)
+            return new BookFileManifest(directory, null, true, items);
+        SAFUtilities.searchDirectoryForBooks(context, uri, new BookSearchListener() {
+            @Override
+            public void onFoundBookOrShelf(File bloomPubFile, Uri bookOrShelfUri) {
+                onFoundBookOrShelf(bloomPubFile, bookOrShelfUri, -1, -1);
+            }
+
+            @Override
+            public void onFoundBookOrShelf(File bloomPubFile, Uri bookOrShelfUri, long size, long lastModified) {
+                String path = bookOrShelfUri.getPath();
+                if (path != null && isCandidate(path))
+                    items.add(new Item(null, bookOrShelfUri, bloomPubFile.getName(), size, lastModified));
+            }
+
+            @Override
+            public void onFoundBundle(Uri bundleUri) {
+
+            }
+
+            @Override
+            public void onSearchComplete() {
+
+            }
+        });
+        return new BookFileManifest(directory, uri, false, items);
+    }
+}
@@ -1,17 +1,15 @@
 package org.sil.bloom.reader.models;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.net.Uri;
 
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.sil.bloom.reader.BloomFileReader;
 import org.sil.bloom.reader.BloomReaderApplication;
 import org.sil.bloom.reader.IOUtilities;
 import org.sil.bloom.reader.SAFUtilities;
 
 import java.io.File;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Set;
@@ -19,8 +17,6 @@ import java.util.Set;
 import static org.sil.bloom.reader.IOUtilities.BOOKSHELF_FILE_EXTENSION;
 
 public class BookOrShelf {
-    public static final String SHARED_PREFERENCES_TAG = "org.sil.bloom.reader.BookMetaJson";
-    public static final String HAS_AUDIO = "hasAudio";
     public final String pathOrUri; // May actually be the toString() of a Uri (if it starts with content:)
     public final Uri uri;
     public final String name;
@@ -32,7 +28,8 @@ public class BookOrShelf {
     // currently only applies to books
     public String brandingProjectName;
     public String title;
-    private JSONObject bookMeta; // Lazy loaded - Use getBookMeta() to access
+    public String bookInstanceId;
+    private Boolean containsAudio; // Lazy loaded - Use hasAudio() to access
 
     // This is set on certain shelves...so far only the one that stands for the external SD card
     // when we don't have permission to access it...that behave specially when clicked.
@@ -85,47 +82,43 @@ public class BookOrShelf {
         return result;
     }
 
-    private JSONObject getBookMeta(Context context) {
-        if (bookMeta != null) return bookMeta;
-        if (isShelf()) return new JSONObject(); // Only applies to books
-
-        try {
-            SharedPreferences values = context.getSharedPreferences(SHARED_PREFERENCES_TAG, 0);
-            String bookMetaJson = values.getString(metaCacheKey(), null);
-            if (bookMetaJson != null) {
-                bookMeta = new JSONObject(bookMetaJson);
-                return bookMeta;
-            }
+    // Whether the book has any recorded narration. Finding out means looking inside the book,
+    // so we remember the answer in the book catalog, which is keyed by the file's size and
+    // modification time, so it will be worked out again if the book changes.
+    public boolean hasAudio(Context context) {
+        Boolean known = hasAudioIfKnown(context);
+        if (known != null) return known;
 
-            // BookMeta not found in cache - need to get it from file
-            bookMeta = new JSONObject();
-            BloomFileReader reader = new BloomFileReader(context, pathOrUri, uri);
-            boolean hasAudio = reader.hasAudio();
-            bookMeta.put(HAS_AUDIO, hasAudio);
-            SharedPreferences.Editor valuesEditor = values.edit();
-            valuesEditor.putString(metaCacheKey(), bookMeta.toString());
-            valuesEditor.apply();
-            return bookMeta;
-        }
-        catch (JSONException e) {
-            e.printStackTrace();
-            return new JSONObject();
-        }
+        // Not in the catalog - need to get it from file
+        BookCatalog catalog = BookCatalog.getInstance(context);
+        BookCatalog.Entry entry = catalog.get(pathOrUri);
+        BloomFileReader reader = new BloomFileReader(context, pathOrUri, uri);
+        containsAudio = reader.hasAudio();
+        if (entry != null)
+            catalog.setHasAudio(entry, containsAudio);
+        return containsAudio;
     }
 
-    private String metaCacheKey() {
-        // A combination of the filepath and modified timestamp on the file
-        return pathOrUri + " - " + String.valueOf(lastModified());
-    }
+    // The answer hasAudio() would give, if we can find it without looking inside the book;
+    // otherwise null.
+    public Boolean hasAudioIfKnown(Context context) {
+        if (containsAudio != null) return containsAudio;
+        if (isShelf()) return false; // Only applies to books
 
-    public boolean hasAudio(Context context) {
-        return getBookMeta(context).optBoolean(HAS_AUDIO);
+        BookCatalog.Entry entry = BookCatalog.getInstance(context).get(pathOrUri);
+        if (entry != null && entry.getHasAudio() != null)
+            containsAudio = entry.getHasAudio();
+        return containsAudio;
     }
 
     public void addBookshelf(String shelf) {
         bookshelves.add(shelf);
     }
 
+    public Set<String> getBookshelves() {
+        return Collections.unmodifiableSet(bookshelves);
+    }
+
     public boolean isBookInShelf(String shelf) {
         return bookshelves.contains(shelf);
     }
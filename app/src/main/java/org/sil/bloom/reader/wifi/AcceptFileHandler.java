@@ -2,37 +2,65 @@ package org.sil.bloom.reader.wifi;
 
 import android.content.Context;
 import android.net.Uri;
+import android.util.Log;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.sil.bloom.reader.BufferPool;
+import org.sil.bloom.reader.IOUtilities;
 import org.sil.bloom.reader.R;
 import org.sil.bloom.reader.models.BookCollection;
 
+import cz.msebera.android.httpclient.Header;
 import cz.msebera.android.httpclient.HttpEntity;
 import cz.msebera.android.httpclient.HttpEntityEnclosingRequest;
 import cz.msebera.android.httpclient.HttpException;
 import cz.msebera.android.httpclient.HttpRequest;
 import cz.msebera.android.httpclient.HttpResponse;
+import cz.msebera.android.httpclient.HttpStatus;
+import cz.msebera.android.httpclient.entity.ContentType;
 import cz.msebera.android.httpclient.entity.StringEntity;
 import cz.msebera.android.httpclient.protocol.HttpContext;
 import cz.msebera.android.httpclient.protocol.HttpRequestHandler;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.io.RandomAccessFile;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Handles requests with urls like http://[ipaddress]:5914/putfile?path=bookTitle.bloompub
  * to write a file containing the data transmitted to a file in the local books directory.
+ * Since protocol 2.1 a book may also be sent in pieces (with Content-Range headers) that can be
+ * resumed after an interruption; http://[ipaddress]:5914/transferstatus?path=bookTitle.bloompub
+ * tells the sender how much of such a book we already have.
+ * Since protocol 2.2 a sender can fetch http://[ipaddress]:5914/bookmanifest?path=bookTitle.bloompub
+ * to see what is in our copy of a book, then send only what has changed to /putdelta (see BookDelta).
  * This is configured as a request handler in SyncServer.
  * Slightly adapted from a similar file in HearThis Android
  */
 public class AcceptFileHandler implements HttpRequestHandler {
+    // Appended to the name of a book while we are receiving it.
+    static final String RECEIVING_SUFFIX = ".receiving";
+    // Appended to the name of a book while we are receiving changes to it.
+    static final String DELTA_SUFFIX = ".delta";
+    // Tells the sender of a book in pieces how much of it we have.
+    static final String RECEIVED_HEADER = "X-Bloom-Received";
+    // A partial book nobody has added to for this long has been abandoned by its sender.
+    static final long ABANDONED_TRANSFER_AGE_MILLIS = 3 * 24 * 60 * 60 * 1000L;
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+)");
+
     Context _parent;
     public AcceptFileHandler(Context parent)
     {
@@ -40,90 +68,439 @@ public class AcceptFileHandler implements HttpRequestHandler {
     }
     @Override
     public void handle(HttpRequest request, HttpResponse response, HttpContext httpContext) throws HttpException, IOException {
-        GetFromWiFiActivity.sendProgressMessage(_parent, _parent.getString(R.string.downloading) + "\n");
         File baseDir = BookCollection.getLocalBooksDirectory();
         Uri uri = Uri.parse(request.getRequestLine().getUri());
         String filePath = uri.getQueryParameter("path");
+        String path = baseDir  + "/" + filePath;
+        if (uri.getPath() != null && uri.getPath().endsWith("/transferstatus")) {
+            handleStatusRequest(new File(path + RECEIVING_SUFFIX), response);
+            return;
+        }
+        if (uri.getPath() != null && uri.getPath().endsWith("/bookmanifest")) {
+            handleManifestRequest(filePath, response);
+            return;
+        }
+        // Senders using protocol 2.1 or later may send a book in pieces, each with a
+        // Content-Range header, and the SHA-256 of the whole book as the hash parameter.
+        String hash = uri.getQueryParameter("hash");
+        Header rangeHeader = request.getFirstHeader("Content-Range");
+        long[] range = null;
+        if (rangeHeader != null) {
+            range = parseContentRange(rangeHeader.getValue());
+            if (range == null) {
+                response.setStatusCode(HttpStatus.SC_BAD_REQUEST);
+                response.setEntity(new StringEntity("failure"));
+                return;
+            }
+        }
+        // For a book sent in pieces, only announce the start of it.
+        if (range == null || range[0] == 0)
+            GetFromWiFiActivity.sendProgressMessage(_parent, _parent.getString(R.string.downloading) + "\n");
 
         if (listener != null)
             listener.receivingFile(filePath);
-        String path = baseDir  + "/" + filePath;
         HttpEntity entity = null;
-        String result = "failure";
         if (request instanceof HttpEntityEnclosingRequest)
             entity = ((HttpEntityEnclosingRequest)request).getEntity();
         if (entity != null) {
+            // Two requests for the same book (say, a sender retrying while its first connection
+            // is still draining) must not write its temporary files at the same time.
+            PathLock lock = lockPath(path);
             try {
-                final InputStream input = entity.getContent();
-                final byte[] buffer = new byte[4096];
-                File file = new File(path);
-                File dir = file.getParentFile();
-                if (!dir.exists())
-                    dir.mkdirs();
-                boolean aborted = false;
-                FileOutputStream fs = new FileOutputStream(file);
-                try {
-                    int bytesRead = 1; // to make first cycle go ahead
-                    // We want to copy the input from WiFi to the output file.
-                    // We'd like to recover if the transmission is interrupted.
-                    // Ideally we'd just put a timeout on the socket that is reading the data,
-                    // but I can't find any way to access it.
-                    // Nor does it work to expect that an interrupted transmission will result
-                    // in a smaller number of bytes being available and successfully reading
-                    // however many there are, even zero. Even though we are only asking the
-                    // stream for (at most) the number of bytes it says are available, the
-                    // read can block forever if the connection is broken suddenly.
-                    // The technique actually used here, with thanks to one of the answers on
-                    // https://stackoverflow.com/questions/804951/is-it-possible-to-read-from-a-inputstream-with-a-timeout,
-                    // runs the read on (yet another) helper thread, forcing a timeout if we don't get some data
-                    // within a second.
-                    ExecutorService executor = Executors.newFixedThreadPool(2);
-                    Callable<Integer> readTask = new Callable<Integer>() {
-                        @Override
-                        public Integer call() throws Exception {
-                            return input.read(buffer, 0, Math.min(input.available(), buffer.length));
-                        }
-                    };
-                    while (bytesRead >= 0) {
-                        // This is a trick to get an exception thrown if it takes more than a second to
-                        // read a block of data.
-                        try {
-                            Future<Integer> future = executor.submit(readTask);
-                            bytesRead = future.get(1000, TimeUnit.MILLISECONDS);
-                        } catch (TimeoutException e) {
-                            // This also blocks. This should be rare, I think we can afford to
-                            // leave the thread stuck.
-                            //input.close(); // should clean up the thread attempting the read
-                            aborted = true;
-                            break;
-                        }
-
-                        if (bytesRead > 0) {
-                            fs.write(buffer, 0, bytesRead);
-                        }
-                    }
-                } catch (Exception e) {
-                    // something unexpected went wrong while writing the output
-                    e.printStackTrace();
-                    aborted = true;
-                }
-                fs.close();
-                if (aborted) {
-                    file.delete(); // incomplete, useless, may cause exceptions trying to unzip.
-                } else {
-                    result = "success"; // normal completion.
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
+                receive(uri, entity, path, filePath, hash, range, response);
+            } finally {
+                unlockPath(path, lock);
             }
+            return;
         }
+        response.setEntity(new StringEntity("failure"));
+        if (listener != null)
+            listener.receivedFile(path, false);
+    }
+
+    // Receive a book (or a piece of one, or the changes to one) to the given path.
+    private void receive(Uri uri, HttpEntity entity, String path, String filePath, String hash,
+                         long[] range, HttpResponse response) throws IOException {
+        File file = new File(path);
+        File dir = file.getParentFile();
+        if (!dir.exists())
+            dir.mkdirs();
+        // We write to a temporary file and only give it the real name once it is complete,
+        // so nothing ever sees a partial book. Only a book sent in pieces keeps its partial
+        // file (and journal) after a failure, so that it can be resumed.
+        File tempFile = new File(path + RECEIVING_SUFFIX);
+        if (range != null) {
+            handleChunk(entity, tempFile, file, range, hash, response);
+            return;
+        }
+        if (uri.getPath() != null && uri.getPath().endsWith("/putdelta")) {
+            handleDelta(entity, tempFile, file, uri.getQueryParameter("base"), hash, response);
+            return;
+        }
+        String result = "failure";
+        // A whole book in one go replaces anything left from an earlier, interrupted transfer.
+        TransferJournal.journalFileFor(tempFile).delete();
+        try {
+            long received = receiveFile(entity.getContent(), tempFile);
+            long expected = entity.getContentLength();
+            if (expected >= 0 && received != expected)
+                Log.e("AcceptFileHandler", "Received " + received + " bytes of " + expected + " for " + filePath);
+            else if (hash != null && !hash.equalsIgnoreCase(getSha256(tempFile)))
+                Log.e("AcceptFileHandler", "Received a corrupt copy of " + filePath);
+            else if (tempFile.renameTo(file))
+                result = "success"; // normal completion.
+        } catch (SocketTimeoutException e) {
+            // The sender stopped sending; SyncServer sets a read timeout on the socket so
+            // that we find out instead of waiting forever.
+            Log.e("AcceptFileHandler", "Timed out receiving " + filePath);
+        } catch (Exception e) {
+            // something unexpected went wrong while reading the input or writing the output
+            e.printStackTrace();
+        }
+        if (!result.equals("success"))
+            tempFile.delete(); // incomplete, useless, may cause exceptions trying to unzip.
         response.setEntity(new StringEntity(result));
         if (listener != null)
-            listener.receivedFile(path, result == "success");
+            listener.receivedFile(path, result.equals("success"));
+    }
+
+    // A lock on one destination path, shared by the requests writing to it.
+    private static class PathLock {
+        final ReentrantLock lock = new ReentrantLock();
+        int users; // requests holding or waiting for it (guarded by _pathLocks)
+    }
+
+    // The handler serves every connection, so several requests can be writing books at once.
+    private final HashMap<String, PathLock> _pathLocks = new HashMap<>();
+
+    private PathLock lockPath(String path) {
+        PathLock pathLock;
+        synchronized (_pathLocks) {
+            pathLock = _pathLocks.get(path);
+            if (pathLock == null) {
+                pathLock = new PathLock();
+                _pathLocks.put(path, pathLock);
+            }
+            ++pathLock.users;
+        }
+        pathLock.lock.lock();
+        return pathLock;
+    }
+
+    private void unlockPath(String path, PathLock pathLock) {
+        pathLock.lock.unlock();
+        synchronized (_pathLocks) {
+            if (--pathLock.users == 0)
+                _pathLocks.remove(path);
+        }
+    }
+
+    // Receive one piece of a book sent in pieces. Pieces must arrive in order; if one doesn't
+    // start where we have got to (typically because the sender is starting again after an
+    // interruption), we answer 409 and tell it where to carry on from in X-Bloom-Received.
+    // A piece that isn't the length its Content-Range says gets a 400, and none of it is kept.
+    // If the connection fails part way through a piece, we keep what did arrive, so the book
+    // will be resumed rather than restarted when it is next requested.
+    private void handleChunk(HttpEntity entity, File tempFile, File file, long[] range, String hash,
+                             HttpResponse response) throws IOException {
+        String path = file.getPath();
+        ChunkResult chunk;
+        try {
+            chunk = receiveChunk(entity.getContent(), tempFile, range[0], range[1], range[2], hash);
+        } catch (SocketTimeoutException e) {
+            Log.e("AcceptFileHandler", "Timed out receiving " + path);
+            chunk = null;
+        } catch (Exception e) {
+            e.printStackTrace();
+            chunk = null;
+        }
+        if (chunk == null) {
+            response.setEntity(new StringEntity("failure"));
+            if (listener != null)
+                listener.receivedFile(path, false);
+            return;
+        }
+        response.setHeader(RECEIVED_HEADER, Long.toString(chunk.received));
+        switch (chunk.status) {
+            case ChunkResult.STORED:
+                response.setEntity(new StringEntity("partial"));
+                if (listener != null)
+                    listener.receivedChunk(path);
+                return;
+            case ChunkResult.OUT_OF_ORDER:
+            case ChunkResult.WRONG_LENGTH:
+                response.setStatusCode(chunk.status == ChunkResult.OUT_OF_ORDER
+                        ? HttpStatus.SC_CONFLICT : HttpStatus.SC_BAD_REQUEST);
+                response.setEntity(new StringEntity("partial"));
+                // We're still waiting for the sender to carry on, not receiving anything from it.
+                if (listener != null)
+                    listener.receivedChunk(path);
+                return;
+        }
+        boolean success = chunk.status == ChunkResult.COMPLETE && tempFile.renameTo(file);
+        if (!success) {
+            Log.e("AcceptFileHandler", "Received a corrupt copy of " + path);
+            tempFile.delete();
+        }
+        response.setEntity(new StringEntity(success ? "success" : "failure"));
+        if (listener != null)
+            listener.receivedFile(path, success);
+    }
+
+    // Answer a sender asking what is in our copy of a book, so it can send us just what has
+    // changed with /putdelta. A 404 tells it to send the whole book.
+    private static void handleManifestRequest(String filePath, HttpResponse response) throws IOException {
+        File book = filePath == null ? null
+                : IOUtilities.getBookFileIfExists(IOUtilities.stripBookFileExtension(filePath));
+        JSONObject manifest = null;
+        if (book != null) {
+            try {
+                manifest = BookDelta.getManifest(book);
+            } catch (IOException e) {
+                Log.e("AcceptFileHandler", "Could not read manifest of " + book.getPath(), e);
+            }
+        }
+        if (manifest == null) {
+            response.setStatusCode(HttpStatus.SC_NOT_FOUND);
+            response.setEntity(new StringEntity("failure"));
+            return;
+        }
+        response.setEntity(new StringEntity(manifest.toString(), ContentType.APPLICATION_JSON));
+    }
+
+    // Receive the changed parts of a book we already have (see BookDelta) and rebuild the new
+    // version of the book from them and our copy. base must be what our manifest gave the
+    // sender; if our copy has changed since (or gone), we answer 409 and the sender should
+    // send the whole book instead.
+    private void handleDelta(HttpEntity entity, File tempFile, File file, String base, String hash,
+                             HttpResponse response) throws IOException {
+        String path = file.getPath();
+        File oldBook = IOUtilities.getBookFileIfExists(IOUtilities.stripBookFileExtension(file.getName()));
+        if (oldBook == null || base == null || !base.equals(BookDelta.getBaseToken(oldBook))) {
+            response.setStatusCode(HttpStatus.SC_CONFLICT);
+            response.setEntity(new StringEntity("failure"));
+            if (listener != null)
+                listener.receivedFile(path, false);
+            return;
+        }
+        File deltaFile = new File(path + DELTA_SUFFIX);
+        boolean success = false;
+        try {
+            long received = receiveFile(entity.getContent(), deltaFile);
+            long expected = entity.getContentLength();
+            if (expected >= 0 && received != expected) {
+                Log.e("AcceptFileHandler", "Received " + received + " bytes of " + expected + " for " + path);
+            } else {
+                BookDelta.apply(oldBook, deltaFile, tempFile);
+                if (hash != null && !hash.equalsIgnoreCase(getSha256(tempFile)))
+                    Log.e("AcceptFileHandler", "Rebuilt a corrupt copy of " + path);
+                else if (!IOUtilities.validateZipFile(tempFile, IOUtilities.CHECK_BLOOMPUB, null))
+                    Log.e("AcceptFileHandler", "Rebuilt an invalid copy of " + path);
+                else
+                    success = tempFile.renameTo(file);
+            }
+        } catch (SocketTimeoutException e) {
+            Log.e("AcceptFileHandler", "Timed out receiving changes to " + path);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        deltaFile.delete();
+        if (!success)
+            tempFile.delete();
+        response.setEntity(new StringEntity(success ? "success" : "failure"));
+        if (listener != null)
+            listener.receivedFile(path, success);
+    }
+
+    // Answer a sender asking how much of a book we already have (e.g. before it resumes sending).
+    private static void handleStatusRequest(File tempFile, HttpResponse response) throws IOException {
+        TransferJournal journal = TransferJournal.load(tempFile);
+        JSONObject status = new JSONObject();
+        try {
+            status.put("received", journal == null ? 0 : Math.min(journal.received, tempFile.length()));
+            if (journal != null) {
+                status.put("total", journal.total);
+                if (journal.hash != null)
+                    status.put("hash", journal.hash);
+            }
+        } catch (JSONException e) {
+            e.printStackTrace(); // can't happen with these values
+        }
+        response.setEntity(new StringEntity(status.toString(), ContentType.APPLICATION_JSON));
+    }
+
+    // What became of one piece of a book.
+    static class ChunkResult {
+        static final int STORED = 0;        // saved; more to come
+        static final int OUT_OF_ORDER = 1;  // ignored; it didn't start where we have got to
+        static final int COMPLETE = 2;      // that was the last piece, and the book checks out
+        static final int CORRUPT = 3;       // that was the last piece, but the book is wrong
+        static final int WRONG_LENGTH = 4;  // ignored; it wasn't the length the sender said
+
+        final int status;
+        final long received; // how much of the book we now have
+
+        ChunkResult(int status, long received) {
+            this.status = status;
+            this.received = received;
+        }
+    }
+
+    // Append a piece of a book, which the sender says runs from offset start to end (inclusive)
+    // of a book of total bytes, to the partial file, keeping its journal up to date. The journal
+    // is only advanced once the data is safely on storage. If the connection fails part way
+    // through, what did arrive is kept; if the piece turns out longer or shorter than the sender
+    // said, none of it is. When the last piece arrives the whole book is checked against the
+    // hash (if we were given one), and the journal is removed either way; on CORRUPT the caller
+    // should delete the partial file.
+    static ChunkResult receiveChunk(InputStream input, File tempFile, long start, long end, long total, String hash) throws IOException {
+        TransferJournal journal = TransferJournal.load(tempFile);
+        if (journal == null || !journal.isFor(total, hash) || journal.received > tempFile.length()) {
+            // Nothing we can trust; start this book from scratch.
+            tempFile.delete();
+            journal = TransferJournal.create(tempFile, total, hash);
+            journal.save();
+        }
+        if (start != journal.received)
+            return new ChunkResult(ChunkResult.OUT_OF_ORDER, journal.received);
+
+        RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            // Anything beyond what the journal records arrived after its last update and may
+            // not have been written completely.
+            channel.truncate(journal.received);
+            channel.position(journal.received);
+            long length = end - start + 1;
+            boolean wrongLength = false;
+            try {
+                long count = receiveFile(input, channel, length);
+                wrongLength = count != length || input.read() >= 0;
+            } finally {
+                if (wrongLength) {
+                    // Something is confused about where this piece goes; don't trust any of it.
+                    channel.truncate(journal.received);
+                } else {
+                    // Even if the piece was cut short, keep what did arrive.
+                    channel.force(false);
+                    journal.received = channel.position();
+                    if (journal.received <= total)
+                        journal.save();
+                }
+            }
+            if (wrongLength)
+                return new ChunkResult(ChunkResult.WRONG_LENGTH, journal.received);
+        } finally {
+            raf.close();
+        }
+        if (journal.received < total)
+            return new ChunkResult(ChunkResult.STORED, journal.received);
+        journal.delete();
+        boolean good = journal.received == total && (hash == null || hash.equalsIgnoreCase(getSha256(tempFile)));
+        return new ChunkResult(good ? ChunkResult.COMPLETE : ChunkResult.CORRUPT, journal.received);
+    }
+
+    // Delete what is left in directory of transfers that were abandoned: the partial files (and
+    // journals) of books sent in pieces that were never finished, and anything a crash left
+    // behind. An interrupted book keeps its partial file so it can be resumed, but one that
+    // never is would otherwise take up space for good.
+    static void deleteAbandonedTransfers(File directory, long maxAgeMillis) {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        for (File file : files) {
+            String name = file.getName();
+            boolean leftover = name.endsWith(RECEIVING_SUFFIX) || name.endsWith(DELTA_SUFFIX)
+                    || name.contains(RECEIVING_SUFFIX + TransferJournal.JOURNAL_SUFFIX);
+            if (leftover && file.isFile() && file.lastModified() < cutoff) {
+                Log.i("AcceptFileHandler", "Deleting abandoned transfer " + name);
+                file.delete();
+            }
+        }
+    }
+
+    // Parse a Content-Range header value like "bytes 0-1048575/73400320" into
+    // {start, end, total}, or return null if it isn't one we can use.
+    static long[] parseContentRange(String value) {
+        Matcher matcher = CONTENT_RANGE.matcher(value.trim());
+        if (!matcher.matches())
+            return null;
+        try {
+            long start = Long.parseLong(matcher.group(1));
+            long end = Long.parseLong(matcher.group(2));
+            long total = Long.parseLong(matcher.group(3));
+            if (start > end || end >= total)
+                return null;
+            return new long[] {start, end, total};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static String getSha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e); // every Android has SHA-256
+        }
+        final byte[] buffer = BufferPool.acquire();
+        FileInputStream input = new FileInputStream(file);
+        try {
+            int bytesRead;
+            while ((bytesRead = input.read(buffer)) >= 0)
+                digest.update(buffer, 0, bytesRead);
+        } finally {
+            input.close();
+            BufferPool.release(buffer);
+        }
+        StringBuilder builder = new StringBuilder();
+        for (byte b : digest.digest())
+            builder.append(String.format("%02x", b));
+        return builder.toString();
+    }
+
+    // Copy everything the sender sends to the file, returning the number of bytes received.
+    static long receiveFile(InputStream input, File output) throws IOException {
+        FileOutputStream fs = new FileOutputStream(output);
+        try {
+            return receiveFile(input, fs.getChannel());
+        } finally {
+            fs.close();
+        }
+    }
+
+    // Copy everything the sender sends to the channel at its current position.
+    static long receiveFile(InputStream input, FileChannel channel) throws IOException {
+        return receiveFile(input, channel, Long.MAX_VALUE);
+    }
+
+    // Copy what the sender sends to the channel at its current position, stopping after limit
+    // bytes. We read in large chunks straight into the buffer we hand to the FileChannel, which
+    // keeps up with fast WiFi much better than lots of small reads and writes.
+    static long receiveFile(InputStream input, FileChannel channel, long limit) throws IOException {
+        final byte[] buffer = BufferPool.acquire();
+        try {
+            long total = 0;
+            int bytesRead;
+            while (total < limit
+                    && (bytesRead = input.read(buffer, 0, (int) Math.min(buffer.length, limit - total))) >= 0) {
+                ByteBuffer wrapper = ByteBuffer.wrap(buffer, 0, bytesRead);
+                while (wrapper.hasRemaining())
+                    channel.write(wrapper);
+                total += bytesRead;
+            }
+            return total;
+        } finally {
+            BufferPool.release(buffer);
+        }
     }
 
     public interface IFileReceivedNotification {
         void receivingFile(String name);
+        // Part of a book sent in pieces has arrived; the sender should go on to send the next.
+        void receivedChunk(String name);
         void receivedFile(String name, boolean success);
     }
 
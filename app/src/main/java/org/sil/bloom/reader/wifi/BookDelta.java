@@ -0,0 +1,126 @@
+package org.sil.bloom.reader.wifi;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.sil.bloom.reader.BufferPool;
+import org.sil.bloom.reader.IOUtilities;
+import org.sil.bloom.reader.ZipCentralDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipException;
+
+// Lets a sender update a book we already have by sending only the files in it that have changed.
+// The sender first asks for our manifest of the book (the name, CRC and size of every entry,
+// straight from the zip's central directory), then sends a zip of just the new and changed
+// entries, plus DELTA_ENTRY_NAME listing every entry of the new book in order. We rebuild the
+// new book from the two, copying the compressed data of each entry as it is, so nothing is
+// inflated or deflated again.
+class BookDelta {
+    // The entry in a delta zip that lists the entries of the new book.
+    static final String DELTA_ENTRY_NAME = ".bloom-delta.json";
+
+    // Identifies the copy of the book a manifest describes. The sender passes it back with the
+    // delta, so we can tell if the book has changed in between.
+    static String getBaseToken(File book) {
+        return book.length() + "-" + book.lastModified();
+    }
+
+    // Returns null if we can't read the book's central directory, in which case the sender
+    // should just send the whole book.
+    static JSONObject getManifest(File book) throws IOException {
+        ZipCentralDirectory directory = ZipCentralDirectory.open(book);
+        if (directory == null)
+            return null;
+        try {
+            JSONArray entries = new JSONArray();
+            for (ZipCentralDirectory.Entry entry : directory.getEntries()) {
+                if (entry.isDirectory())
+                    continue;
+                JSONObject item = new JSONObject();
+                item.put("name", entry.name);
+                item.put("crc", entry.crc);
+                item.put("size", entry.size);
+                entries.put(item);
+            }
+            JSONObject manifest = new JSONObject();
+            manifest.put("base", getBaseToken(book));
+            manifest.put("entries", entries);
+            return manifest;
+        } catch (JSONException e) {
+            throw new IOException(e);
+        } finally {
+            directory.close();
+        }
+    }
+
+    // Write the new book to output, taking each entry from the delta if it is there and from
+    // the old book otherwise. Throws a ZipException if the delta is incomplete or any entry
+    // it supplies is damaged.
+    static void apply(File oldBook, File delta, File output) throws IOException {
+        ZipFile oldZip = new ZipFile(oldBook);
+        ZipFile deltaZip = null;
+        try {
+            deltaZip = new ZipFile(delta);
+            ZipArchiveEntry listEntry = deltaZip.getEntry(DELTA_ENTRY_NAME);
+            if (listEntry == null)
+                throw new ZipException("delta has no list of entries");
+            JSONArray names = new JSONObject(IOUtilities.InputStreamToString(deltaZip.getInputStream(listEntry)))
+                    .getJSONArray("entries");
+            ZipArchiveOutputStream out = new ZipArchiveOutputStream(output);
+            try {
+                for (int i = 0; i < names.length(); i++) {
+                    String name = names.getString(i);
+                    ZipFile source = deltaZip;
+                    ZipArchiveEntry entry = deltaZip.getEntry(name);
+                    if (entry != null) {
+                        checkCrc(deltaZip, entry);
+                    } else {
+                        source = oldZip;
+                        entry = oldZip.getEntry(name);
+                        if (entry == null)
+                            throw new ZipException("delta does not supply " + name);
+                    }
+                    InputStream raw = source.getRawInputStream(entry);
+                    try {
+                        out.addRawArchiveEntry(entry, raw);
+                    } finally {
+                        raw.close();
+                    }
+                }
+            } finally {
+                out.close();
+            }
+        } catch (JSONException e) {
+            throw new ZipException("bad list of entries in delta: " + e.getMessage());
+        } finally {
+            oldZip.close();
+            if (deltaZip != null)
+                deltaZip.close();
+        }
+    }
+
+    // The entries we copy from our own book were checked when we got it; the ones that have
+    // just come over the network we check before using them.
+    private static void checkCrc(ZipFile zip, ZipArchiveEntry entry) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = BufferPool.acquire();
+        InputStream input = zip.getInputStream(entry);
+        try {
+            int bytesRead;
+            while ((bytesRead = input.read(buffer)) >= 0)
+                crc.update(buffer, 0, bytesRead);
+        } finally {
+            input.close();
+            BufferPool.release(buffer);
+        }
+        if (crc.getValue() != entry.getCrc())
+            throw new ZipException("CRC mismatch for " + entry.getName() + " in delta");
+    }
+}
@@ -6,6 +6,7 @@ import android.content.Intent;
 import android.net.wifi.WifiManager;
 import android.os.AsyncTask;
 import android.os.IBinder;
+import android.util.Log;
 import androidx.annotation.Nullable;
 
 import org.json.JSONException;
@@ -25,7 +26,9 @@ import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Set;
 
 import static org.sil.bloom.reader.BloomReaderApplication.getOurDeviceName;
@@ -41,32 +44,70 @@ import static org.sil.bloom.reader.BloomReaderApplication.getOurDeviceName;
 public class NewBookListenerService extends Service {
     DatagramSocket socket;
     Thread UDPBroadcastThread;
-    private Boolean shouldRestartSocketListen=true;
+    private volatile Boolean shouldRestartSocketListen=true;
 
     // port on which the desktop is listening for our book request.
     // Must match Bloom Desktop UDPListener._portToListen.
     // Must be different from ports in NewBookListenerService.startListenForUDPBroadcast
     // and SyncServer._serverPort.
     static int desktopPort = 5915;
-    boolean gettingBook = false;
+    // If a sender hasn't started sending the book this long after we asked, we may ask again.
+    // (Books are normally advertised every second, and it can take a few seconds for the
+    // transfer to get going.)
+    static final long REQUEST_TIMEOUT_MILLIS = 4000;
+    // After a transfer of a book fails, we wait this long before asking for it again, doubling
+    // the wait after each further failure, and give up on that version of the book after
+    // MAX_TRANSFER_FAILURES. (A book that fails every time, say because it is damaged on the
+    // sender, would otherwise have us asking for it, and reporting the failure, over and over.)
+    static final long RETRY_DELAY_MILLIS = 5000;
+    static final int MAX_TRANSFER_FAILURES = 4;
     boolean httpServiceRunning = false;
-    int addsToSkipBeforeRetry;
     boolean reportedVersionProblem = false;
     private Set<String> _announcedBooks = new HashSet<String>();
+    // Versions (title + version) we have already found we have, so we don't look inside our copy
+    // of the book again every time it is advertised.
+    private Set<String> _upToDateVersions = new HashSet<String>();
+    // Versions (title + version) we have given up trying to get; see MAX_TRANSFER_FAILURES.
+    private Set<String> _failedVersions = new HashSet<String>();
+    // Books that have been advertised and that we want, in the order we first saw them, keyed by title.
+    private final LinkedHashMap<String, AdvertisedBook> _wantedBooks = new LinkedHashMap<>();
+    // The book we have most recently asked each sender (by IP address) for. We only ask a sender
+    // for one book at a time, but different senders can send to us at the same time.
+    private final HashMap<String, AdvertisedBook> _requestsBySender = new HashMap<>();
+    private final EndOfTransferListener _transferListener = new EndOfTransferListener(this);
     WifiManager.MulticastLock multicastLock;
 
+    // A book we have seen advertised and want to get.
+    static class AdvertisedBook {
+        final String title;
+        final String version;
+        String senderIP;
+        String sender;
+        long requestedAt;       // when we last asked for it, or 0 if we haven't
+        boolean receiving;      // the sender has started sending it
+        int failures;           // how many transfers of it have failed
+        long retryAfter;        // after a failure, don't ask for it again before this time
+
+        AdvertisedBook(String title, String version, String senderIP, String sender) {
+            this.title = title;
+            this.version = version;
+            this.senderIP = senderIP;
+            this.sender = sender;
+        }
+    }
+
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
         return null;
     }
 
+    // Receive advertisements until we are stopped. The socket and multicast lock are kept for
+    // as long as we are listening.
     private void listen(Integer port) throws Exception {
         byte[] recvBuf = new byte[15000];
-        if (socket == null || socket.isClosed()) {
-            socket = new DatagramSocket(port);
-            socket.setBroadcast(true);
-        }
+        socket = new DatagramSocket(port);
+        socket.setBroadcast(true);
 
         // This seems to have become necessary for receiving a packet around Android 8.
         WifiManager wifi;
@@ -76,121 +117,214 @@ public class NewBookListenerService extends Service {
 
         try {
             DatagramPacket packet = new DatagramPacket(recvBuf, recvBuf.length);
-            //Log.e("UDP", "Waiting for UDP broadcast");
-            socket.receive(packet);
-            if (gettingBook)
-                return; // ignore new advertisements while downloading. Will receive again later.
-            if (addsToSkipBeforeRetry > 0) {
-                // We ignore a few adds after requesting a book before we (hopefully) start receiving.
-                addsToSkipBeforeRetry--;
-                return;
+            while (shouldRestartSocketListen) {
+                //Log.e("UDP", "Waiting for UDP broadcast");
+                packet.setLength(recvBuf.length);
+                try {
+                    socket.receive(packet);
+                } catch (IOException e) {
+                    if (!shouldRestartSocketListen)
+                        break; // stopListen() closed the socket
+                    throw e;
+                }
+                String message = new String(packet.getData(), packet.getOffset(), packet.getLength(), "UTF-8").trim();
+                try {
+                    handleAdvertisement(packet.getAddress().getHostAddress(), new JSONObject(message));
+                } catch (JSONException e) {
+                    // This can stay in production. Just ignore any broadcast packet that doesn't have
+                    // the data we expect.
+                    e.printStackTrace();
+                }
+                requestWantedBooks();
             }
-            String senderIP = packet.getAddress().getHostAddress();
-            String message = new String(packet.getData()).trim();
-            JSONObject data = new JSONObject(message);
-            String title = data.getString("title");
-            String newBookVersion = data.getString("version");
-            String sender = "unknown";
-            String protocolVersion = "0.0";
-            try {
-                protocolVersion = data.getString("protocolVersion");
-                sender = data.getString("sender");
-            } catch(JSONException e) {
-                e.printStackTrace();
+        } finally {
+            socket.close();
+            multicastLock.release();
+        }
+    }
+
+    private void handleAdvertisement(String senderIP, JSONObject data) throws JSONException {
+        String title = data.getString("title");
+        String newBookVersion = data.getString("version");
+        String sender = "unknown";
+        String protocolVersion = "0.0";
+        try {
+            protocolVersion = data.getString("protocolVersion");
+            sender = data.getString("sender");
+        } catch(JSONException e) {
+            e.printStackTrace();
+        }
+        float version = Float.parseFloat(protocolVersion);
+        if (version <  2.0f) {
+            if (!reportedVersionProblem) {
+                GetFromWiFiActivity.sendProgressMessage(this, "You need a newer version of Bloom editor to exchange data with this BloomReader\n");
+                reportedVersionProblem = true;
             }
-            float version = Float.parseFloat(protocolVersion);
-            if (version <  2.0f) {
-                if (!reportedVersionProblem) {
-                    GetFromWiFiActivity.sendProgressMessage(this, "You need a newer version of Bloom editor to exchange data with this BloomReader\n");
-                    reportedVersionProblem = true;
-                }
+            return;
+        } else if (version >= 3.0f) {
+            // Desktop currently uses 2.0 exactly; the plan is that non-breaking changes
+            // will tweak the minor version number, breaking will change the major.
+            if (!reportedVersionProblem) {
+                GetFromWiFiActivity.sendProgressMessage(this, "You need a newer version of BloomReader to exchange data with this sender\n");
+                reportedVersionProblem = true;
+            }
+            return;
+        }
+        String versionKey = title + "\n" + newBookVersion;
+        synchronized (this) {
+            if (_upToDateVersions.contains(versionKey) || _failedVersions.contains(versionKey))
                 return;
-            } else if (version >= 3.0f) {
-                // Desktop currently uses 2.0 exactly; the plan is that non-breaking changes
-                // will tweak the minor version number, breaking will change the major.
-                if (!reportedVersionProblem) {
-                    GetFromWiFiActivity.sendProgressMessage(this, "You need a newer version of BloomReader to exchange data with this sender\n");
-                    reportedVersionProblem = true;
+            AdvertisedBook wanted = _wantedBooks.get(title);
+            if (wanted != null && wanted.version.equals(newBookVersion)) {
+                // Already on our list; just remember who is advertising it now.
+                if (!wanted.receiving) {
+                    wanted.senderIP = senderIP;
+                    wanted.sender = sender;
                 }
                 return;
             }
-            File bookFile = IOUtilities.getBookFileIfExists(title);
-            boolean bookExists = bookFile != null;
-            // If the book doesn't exist it can't be up to date.
-            if (bookExists && IsBookUpToDate(bookFile, title, newBookVersion)) {
-                // Enhance: possibly we might want to announce this again if the book has been off the air
-                // for a while? So a user doesn't see "nothing happening" if he thinks he just started
-                // publishing it, but somehow BR has seen it recently? Thought about just keeping
-                // the most recent name, so we'd report a different one even if it had been advertised
-                // recently. But there could be two advertisers on the network, which could lead to
-                // alternating advertisements. Another idea: find a way to only keep track of, say,
-                // books advertised in the last few seconds. Since books are normally advertised
-                // every second, a book we haven't seen for even 5 seconds is probably interesting
-                // enough to announce again. One way would be, every 5 seconds we copy the current
-                // set to an 'old' set and clear current. Then when we see a book, we skip announcing if it is in
-                // either set. But only add it to the new one. Then, after 5-10 seconds of not seeing
-                // an add, a book would drop out of both. Another approach would be a dictionary
-                // mapping title to last-advertised-time, and if > 5s ago announce again.
-                if (!_announcedBooks.contains(title)) {
-                    GetFromWiFiActivity.sendProgressMessage(this, String.format(getString(R.string.already_have_version), title) + "\n\n");
-                    _announcedBooks.add(title); // don't keep saying this.
-                }
+        }
+        File bookFile = IOUtilities.getBookFileIfExists(title);
+        boolean bookExists = bookFile != null;
+        // If the book doesn't exist it can't be up to date.
+        if (bookExists && IsBookUpToDate(bookFile, title, newBookVersion)) {
+            synchronized (this) {
+                _upToDateVersions.add(versionKey);
             }
-            else {
-                if (bookExists)
-                    GetFromWiFiActivity.sendProgressMessage(this, String.format(getString(R.string.found_new_version), title, sender) + "\n");
-                else
-                    GetFromWiFiActivity.sendProgressMessage(this, String.format(getString(R.string.found_file), title, sender) + "\n");
-                // It can take a few seconds for the transfer to get going. We won't ask for this again unless
-                // we don't start getting it in a reasonable time.
-                addsToSkipBeforeRetry = 3;
-                getBook(senderIP, title);
+            // Enhance: possibly we might want to announce this again if the book has been off the air
+            // for a while? So a user doesn't see "nothing happening" if he thinks he just started
+            // publishing it, but somehow BR has seen it recently? Thought about just keeping
+            // the most recent name, so we'd report a different one even if it had been advertised
+            // recently. But there could be two advertisers on the network, which could lead to
+            // alternating advertisements. Another idea: find a way to only keep track of, say,
+            // books advertised in the last few seconds. Since books are normally advertised
+            // every second, a book we haven't seen for even 5 seconds is probably interesting
+            // enough to announce again. One way would be, every 5 seconds we copy the current
+            // set to an 'old' set and clear current. Then when we see a book, we skip announcing if it is in
+            // either set. But only add it to the new one. Then, after 5-10 seconds of not seeing
+            // an add, a book would drop out of both. Another approach would be a dictionary
+            // mapping title to last-advertised-time, and if > 5s ago announce again.
+            if (!_announcedBooks.contains(title)) {
+                GetFromWiFiActivity.sendProgressMessage(this, String.format(getString(R.string.already_have_version), title) + "\n\n");
+                _announcedBooks.add(title); // don't keep saying this.
             }
-        } catch (JSONException e) {
-            // This can stay in production. Just ignore any broadcast packet that doesn't have
-            // the data we expect.
-            e.printStackTrace();
         }
-        finally {
-            socket.close();
-            multicastLock.release();
+        else {
+            if (bookExists)
+                GetFromWiFiActivity.sendProgressMessage(this, String.format(getString(R.string.found_new_version), title, sender) + "\n");
+            else
+                GetFromWiFiActivity.sendProgressMessage(this, String.format(getString(R.string.found_file), title, sender) + "\n");
+            synchronized (this) {
+                _wantedBooks.put(title, new AdvertisedBook(title, newBookVersion, senderIP, sender));
+            }
         }
     }
 
+    // Ask for the first book we want from each sender that isn't already sending us something
+    // (or hasn't responded to our last request in a reasonable time).
+    private synchronized void requestWantedBooks() {
+        long now = System.currentTimeMillis();
+        for (AdvertisedBook book : _wantedBooks.values()) {
+            if (now < book.retryAfter)
+                continue;
+            AdvertisedBook current = _requestsBySender.get(book.senderIP);
+            if (current != null && (current.receiving || now - current.requestedAt < REQUEST_TIMEOUT_MILLIS))
+                continue; // busy with this sender
+            book.requestedAt = now;
+            _requestsBySender.put(book.senderIP, book);
+            getBook(book.senderIP, book.title);
+        }
+    }
+
+    // Find the book a transfer is for. The name is the path or name of the file being sent,
+    // which Bloom makes from the title. Returns null if it isn't one we asked for (e.g., a sender
+    // pushing a book we didn't request); guessing would credit the transfer to another
+    // sender's request, and could mark that book up to date without ever fetching it.
+    private AdvertisedBook findRequestFor(String name) {
+        if (name == null)
+            return null;
+        String title = IOUtilities.stripBookFileExtension(new File(name).getName());
+        for (AdvertisedBook book : _requestsBySender.values()) {
+            if (book.title.equals(title))
+                return book;
+        }
+        return null;
+    }
+
     // Private class to handle receiving notification from AcceptFileHandler.
     // I can't figure out how to make an anonymous class which can keep a reference to itself
     // for use in removing itself later. The notification is sent when the transfer of a book
-    // is complete.
+    // is complete. One instance handles every transfer, since several can be going on at once.
     class EndOfTransferListener implements AcceptFileHandler.IFileReceivedNotification {
 
         NewBookListenerService _parent;
-        String _title;
-        public EndOfTransferListener(NewBookListenerService parent, String title) {
+        public EndOfTransferListener(NewBookListenerService parent) {
             _parent = parent;
-            _title = title;
         }
 
         @Override
         public void receivingFile(String name) {
-            // Once the receive actually starts, don't start more receives until we deal with this.
-            // If our request for the book didn't produce a response, we'll ask again when we get
-            // the next notification.
-            gettingBook = true;
+            // Once the receive actually starts, don't ask this sender for anything else until
+            // we deal with this.
+            synchronized (_parent) {
+                AdvertisedBook book = findRequestFor(name);
+                if (book != null)
+                    book.receiving = true;
+            }
+        }
+
+        @Override
+        public void receivedChunk(String name) {
+            // The sender should go straight on with the next piece. If it doesn't within the
+            // usual time, we'll ask for the book again, and it can resume from where it got to.
+            synchronized (_parent) {
+                AdvertisedBook book = findRequestFor(name);
+                if (book != null) {
+                    book.receiving = false;
+                    book.requestedAt = System.currentTimeMillis();
+                }
+            }
         }
 
         @Override
         public void receivedFile(String name, boolean success) {
-            _parent.transferComplete(success);
-            if (success) {
-                // We won't announce subsequent up-to-date advertisements for this book.
-                _announcedBooks.add(_title);
-                GetFromWiFiActivity.sendBookLoadedMessage(_parent, name);
+            synchronized (_parent) {
+                AdvertisedBook book = findRequestFor(name);
+                if (book == null) {
+                    // Not something we asked for, so none of our requests are affected. If it
+                    // did arrive intact, it is in our books folder now, so still show it.
+                    if (success)
+                        GetFromWiFiActivity.sendBookLoadedMessage(_parent, name);
+                    return;
+                }
+                _requestsBySender.remove(book.senderIP);
+                if (success) {
+                    _wantedBooks.remove(book.title);
+                    _upToDateVersions.add(book.title + "\n" + book.version);
+                    // We won't announce subsequent up-to-date advertisements for this book.
+                    _announcedBooks.add(book.title);
+                    GetFromWiFiActivity.sendBookLoadedMessage(_parent, name);
+                } else {
+                    book.receiving = false;
+                    book.requestedAt = 0;
+                    ++book.failures;
+                    if (book.failures >= MAX_TRANSFER_FAILURES) {
+                        Log.w("NewBookListenerService", "Giving up on " + book.title + " after " + book.failures + " failed transfers");
+                        _wantedBooks.remove(book.title);
+                        _failedVersions.add(book.title + "\n" + book.version);
+                    } else {
+                        book.retryAfter = System.currentTimeMillis() + (RETRY_DELAY_MILLIS << (book.failures - 1));
+                    }
+                }
             }
+            _parent.transferComplete(success);
+            // Go straight on to the next book (if any) rather than waiting for it to be advertised again.
+            _parent.requestWantedBooks();
         }
     }
 
     private void getBook(String sourceIP, String title) {
-        AcceptFileHandler.requestFileReceivedNotification(new EndOfTransferListener(this, title));
+        AcceptFileHandler.requestFileReceivedNotification(_transferListener);
         // This server will be sent the actual book data (and the final notification)
         startSyncServer();
         // Send one package to the desktop to request the book. Its contents tell the desktop
@@ -202,7 +336,7 @@ public class NewBookListenerService extends Service {
         sendMessageTask.execute();
     }
 
-    private void startSyncServer() {
+    private synchronized void startSyncServer() {
         if (httpServiceRunning)
             return;
         Intent serviceIntent = new Intent(this, SyncService.class);
@@ -210,7 +344,7 @@ public class NewBookListenerService extends Service {
         httpServiceRunning = true;
     }
 
-    private void stopSyncServer() {
+    private synchronized void stopSyncServer() {
         if (!httpServiceRunning)
             return;
         Intent serviceIntent = new Intent(this, SyncService.class);
@@ -220,9 +354,12 @@ public class NewBookListenerService extends Service {
 
     // Called via EndOfTransferListener when desktop sends transfer complete notification.
     private void transferComplete(boolean success) {
-        // We can stop listening for file transfers and notifications from the desktop.
-        stopSyncServer();
-        gettingBook = false;
+        // If nothing else is coming, we can stop listening for file transfers and notifications
+        // from the desktop.
+        synchronized (this) {
+            if (_requestsBySender.isEmpty() && _wantedBooks.isEmpty())
+                stopSyncServer();
+        }
 
         final int resultId = success ? R.string.done : R.string.transferFailed;
         GetFromWiFiActivity.sendProgressMessage(this, getString(resultId) + "\n\n");
@@ -300,9 +437,7 @@ public class NewBookListenerService extends Service {
             public void run() {
                 try {
                     Integer port = 5913; // Must match port in Bloom class WiFiAdvertiser
-                    while (shouldRestartSocketListen) { //
-                        listen(port);
-                    }
+                    listen(port);
                     //if (!shouldListenForUDPBroadcast) throw new ThreadDeath();
                 } catch (Exception e) {
                     e.printStackTrace();
@@ -349,6 +484,12 @@ public class NewBookListenerService extends Service {
                     // in the event handler for _wifiListener.NewMessageReceived.
                     data.put("deviceAddress", ourIpAddress);
                     data.put("deviceName", ourDeviceName);
+                    // Tells a sender that understands it that we can take books in pieces
+                    // and resume them after an interruption, and that it can update a book
+                    // we already have by sending only what has changed (see AcceptFileHandler).
+                    data.put("protocolVersion", "2.2");
+                    data.put("resumableTransfers", true);
+                    data.put("deltaUpdates", true);
                 } catch (JSONException e) {
                     // How could these fail?? But compiler demands we catch this.
                     e.printStackTrace();
@@ -3,9 +3,18 @@ package org.sil.bloom.reader.wifi;
 import android.content.Context;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-
+import java.net.SocketTimeoutException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import cz.msebera.android.httpclient.ConnectionClosedException;
 import cz.msebera.android.httpclient.HttpException;
 import cz.msebera.android.httpclient.HttpRequest;
 import cz.msebera.android.httpclient.impl.DefaultBHttpServerConnection;
@@ -34,10 +43,24 @@ import cz.msebera.android.httpclient.protocol.ResponseServer;
  */
 public class SyncServer extends Thread {
     Integer _serverPort = 5914; // Must match literal in BloomReaderPublisher.SendBookToWiFi()
+    // If the sender goes this long without sending us anything, give up on the request.
+    // (Before this, AcceptFileHandler had to run each read on a helper thread to get a timeout.)
+    static final int READ_TIMEOUT_MILLIS = 5000;
+    // A big receive window lets a fast WiFi link keep more data in flight. It has to be set on
+    // the server socket before binding for the accepted sockets to be able to use windows
+    // larger than 64K.
+    private static final int RECEIVE_BUFFER_SIZE = 512 * 1024;
+    // Enough to receive several books at once (or serve several tablets) without letting a
+    // crowd of connections swamp the device. Connections beyond what the queue holds are refused.
+    private static final int MAX_WORKERS = 4;
+    private static final int MAX_QUEUED_CONNECTIONS = 16;
     private ImmutableHttpProcessor httpproc = null;
-    private BasicHttpContext httpContext = null;
     private HttpService httpService = null;
-    boolean _running;
+    private ServerSocket _serverSocket;
+    private ThreadPoolExecutor _workers;
+    // Connections currently being served, so stopThread() can close them.
+    private final Set<DefaultBHttpServerConnection> _connections = ConcurrentHashMap.newKeySet();
+    volatile boolean _running;
     Context _parent;
 
     public SyncServer(Context parent)
@@ -45,14 +68,17 @@ public class SyncServer extends Thread {
         super("BloomReaderAndroidServer");
         _parent = parent;
         httpproc = new ImmutableHttpProcessor(new ResponseDate(), new ResponseServer(), new ResponseContent(), new ResponseConnControl());
-        httpContext = new BasicHttpContext();
 
+        // The handler keeps no per-request state (and locks each book while writing it), so one
+        // instance serves every request.
+        final AcceptFileHandler acceptFileHandler = new AcceptFileHandler(_parent);
         HttpRequestHandlerMapper requestMapper = new HttpRequestHandlerMapper() {
             @Override
             public HttpRequestHandler lookup(HttpRequest request) {
                 String uri = request.getRequestLine().getUri();
-                if (uri.contains("/putfile"))
-                    return new AcceptFileHandler(_parent);
+                if (uri.contains("/putfile") || uri.contains("/transferstatus")
+                        || uri.contains("/bookmanifest") || uri.contains("/putdelta"))
+                    return acceptFileHandler;
                 return null;
             }
         };
@@ -69,9 +95,26 @@ public class SyncServer extends Thread {
         super.start();
     }
 
-    // Clear flag so main loop will terminate after next request.
+    // Stop accepting connections and close any we are serving. Closing the server socket is what
+    // gets the main loop out of accept().
     public synchronized void stopThread(){
         _running = false;
+        if (_serverSocket != null) {
+            try {
+                _serverSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (_workers != null)
+            _workers.shutdownNow();
+        for (DefaultBHttpServerConnection connection : _connections) {
+            try {
+                connection.shutdown();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     // Method executed in thread when super.start() is called.
@@ -79,34 +122,91 @@ public class SyncServer extends Thread {
     public void run() {
         super.run();
 
-        try {
-            ServerSocket serverSocket = new ServerSocket(_serverPort);
+        ServerSocket serverSocket;
+        synchronized (this) {
+            if (!_running)
+                return; // stopped before we even got going
+            _workers = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS, 30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(MAX_QUEUED_CONNECTIONS));
+            _workers.allowCoreThreadTimeOut(true);
+            try {
+                _serverSocket = new ServerSocket();
+                _serverSocket.setReuseAddress(true);
+                _serverSocket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+                _serverSocket.bind(new InetSocketAddress(_serverPort));
+            } catch (IOException e) {
+                e.printStackTrace();
+                _workers.shutdown();
+                return;
+            }
+            serverSocket = _serverSocket;
+        }
 
-            serverSocket.setReuseAddress(true);
+        while(_running){
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                // If we're stopping, this is how accept() tells us.
+                if (serverSocket.isClosed())
+                    break;
+                e.printStackTrace();
+                continue;
+            }
+            try {
+                _workers.execute(() -> serveConnection(socket));
+            } catch (RejectedExecutionException e) {
+                // Too busy (or shutting down); the client can try again.
+                closeQuietly(socket);
+            }
+        }
+        stopThread();
+    }
 
-            while(_running){
+    // Handle requests on one connection until the client closes it, it has been idle longer
+    // than the read timeout, or we are stopped. Bloom may send several books on one connection.
+    private void serveConnection(Socket socket) {
+        DefaultBHttpServerConnection serverConnection = null;
+        try {
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+
+            // Constructor requires a buffer size. I found ONE example at
+            // http://www.programcreek.com/java-api-examples/index.php?api=org.apache.http.impl.DefaultBHttpServerConnection
+            // but otherwise no hint anywhere of what the buffer is for or what size might be reasonable.
+            // (It is the buffer the connection reads the socket through, so a bigger one
+            // means fewer, larger reads when receiving a book.)
+            serverConnection = new DefaultBHttpServerConnection(64*1024);
+            serverConnection.bind(socket);
+            _connections.add(serverConnection);
+            // HttpContext isn't thread-safe, so each connection needs its own.
+            BasicHttpContext httpContext = new BasicHttpContext();
+            while (_running && serverConnection.isOpen()) {
+                httpService.handleRequest(serverConnection, httpContext);
+            }
+        } catch (ConnectionClosedException | SocketTimeoutException e) {
+            // The client is done with the connection, or gave up on it.
+        } catch (IOException | HttpException e) {
+            if (_running)
+                e.printStackTrace();
+        } finally {
+            if (serverConnection != null) {
+                _connections.remove(serverConnection);
                 try {
-                    final Socket socket = serverSocket.accept();
-
-                    // Constructor requires a buffer size. I found ONE example at
-                    // http://www.programcreek.com/java-api-examples/index.php?api=org.apache.http.impl.DefaultBHttpServerConnection
-                    // but otherwise no hint anywhere of what the buffer is for or what size might be reasonable.
-                    DefaultBHttpServerConnection serverConnection = new DefaultBHttpServerConnection(8*1024);
-
-                    serverConnection.bind(socket);
-
-                    httpService.handleRequest(serverConnection, httpContext);
-
                     serverConnection.shutdown();
-                } catch (IOException | HttpException e) {
+                } catch (IOException e) {
                     e.printStackTrace();
                 }
+            } else {
+                closeQuietly(socket);
             }
-
-            serverSocket.close();
         }
-        catch (IOException e) {
-            e.printStackTrace();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing useful to do
         }
     }
 }
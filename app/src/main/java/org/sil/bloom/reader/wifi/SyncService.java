@@ -6,6 +6,8 @@ import android.content.Intent;
 import android.net.wifi.WifiManager;
 import android.os.IBinder;
 
+import org.sil.bloom.reader.models.BookCollection;
+
 // Service that runs a simple 'web server' that Bloom desktop can talk to.
 // This is probably overkill for simply allowing the desktop to send one file per book to the device.
 // But (a) code was available to reuse; and (b) copying one more file from HTA will allow this
@@ -35,6 +37,11 @@ public class SyncService extends Service {
         _lock.acquire();
 
         _server = new SyncServer(this);
+
+        // While we're about it, clear out any transfers abandoned long ago. (Not on the UI
+        // thread, since it lists the whole books folder.)
+        new Thread(() -> AcceptFileHandler.deleteAbandonedTransfers(BookCollection.getLocalBooksDirectory(),
+                AcceptFileHandler.ABANDONED_TRANSFER_AGE_MILLIS)).start();
     }
 
     @Override
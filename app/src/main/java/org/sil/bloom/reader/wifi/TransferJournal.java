@@ -0,0 +1,87 @@
+package org.sil.bloom.reader.wifi;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.sil.bloom.reader.IOUtilities;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+// Remembers how much of a book we have safely received in a resumable (chunked) WiFi transfer,
+// so that if the transfer is interrupted the sender can carry on from where it stopped instead
+// of starting again from nothing. The journal is a small json file next to the partial book,
+// and is only updated after the data it describes has been flushed to storage.
+class TransferJournal {
+    static final String JOURNAL_SUFFIX = ".journal";
+
+    // Size of the whole book.
+    final long total;
+    // SHA-256 of the whole book (lower case hex) if the sender told us, otherwise null.
+    final String hash;
+    // How many bytes at the start of the partial file we know to be good.
+    long received;
+    private final File mFile;
+
+    private TransferJournal(File file, long total, String hash, long received) {
+        mFile = file;
+        this.total = total;
+        this.hash = hash;
+        this.received = received;
+    }
+
+    static TransferJournal create(File partialFile, long total, String hash) {
+        return new TransferJournal(journalFileFor(partialFile), total, hash, 0);
+    }
+
+    // Returns null if there is no journal for the partial file, or we can't make sense of it.
+    static TransferJournal load(File partialFile) {
+        File file = journalFileFor(partialFile);
+        if (!file.exists())
+            return null;
+        try {
+            JSONObject json = new JSONObject(IOUtilities.FileToString(file));
+            return new TransferJournal(file, json.getLong("total"),
+                    json.has("hash") ? json.getString("hash") : null, json.getLong("received"));
+        } catch (JSONException | NullPointerException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // Is this journal about the same book the sender is now sending?
+    boolean isFor(long total, String hash) {
+        return this.total == total && (this.hash == null ? hash == null : this.hash.equals(hash));
+    }
+
+    void save() throws IOException {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("total", total);
+            if (hash != null)
+                json.put("hash", hash);
+            json.put("received", received);
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        File temp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(mFile))
+            throw new IOException("could not rename " + temp.getPath());
+    }
+
+    void delete() {
+        mFile.delete();
+    }
+
+    static File journalFileFor(File partialFile) {
+        return new File(partialFile.getPath() + JOURNAL_SUFFIX);
+    }
+}
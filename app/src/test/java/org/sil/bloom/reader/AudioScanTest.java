@@ -0,0 +1,55 @@
+package org.sil.bloom.reader;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class AudioScanTest {
+    // Hands out its data a few bytes at a time, like a slow network or inflater might.
+    private static InputStream trickle(String content, final int chunk) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, chunk));
+            }
+        };
+    }
+
+    @Test
+    public void streamContains_markerSplitAcrossReads_isFound() throws IOException {
+        byte[] marker = AudioScan.BOOK_AUDIO_MATCH.getBytes(StandardCharsets.US_ASCII);
+        String html = "<div><span class='audio-sentence'>Hi</span></div>";
+        for (int chunk = 1; chunk < 20; chunk++)
+            assertThat(AudioScan.streamContains(trickle(html, chunk), marker), is(true));
+    }
+
+    @Test
+    public void streamContains_noMarker_isNotFound() throws IOException {
+        byte[] marker = AudioScan.BOOK_AUDIO_MATCH.getBytes(StandardCharsets.US_ASCII);
+        assertThat(AudioScan.streamContains(trickle("<div>audio-sentenc</div>", 3), marker), is(false));
+    }
+
+    @Test
+    public void getResult_needsBothAudioFolderAndMarker() throws IOException {
+        AudioScan noFolder = new AudioScan();
+        noFolder.noteEntry("index.htm");
+        assertThat(noFolder.needsHtml(), is(false));
+        assertThat(noFolder.getResult(), is(false));
+
+        AudioScan folderNotScanned = new AudioScan();
+        folderNotScanned.noteEntry("audio/a.mp3");
+        assertThat(folderNotScanned.needsHtml(), is(true));
+        assertThat(folderNotScanned.getResult() == null, is(true));
+
+        AudioScan both = new AudioScan();
+        both.noteEntry("audio/a.mp3");
+        both.scanHtml(trickle("<span class=\"audio-sentence\">", 7));
+        assertThat(both.getResult(), is(true));
+    }
+}
@@ -0,0 +1,86 @@
+package org.sil.bloom.reader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class BookCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static File addFile(File bookFolder, String name, int size) throws IOException {
+        File file = new File(bookFolder, name);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+        }
+        return file;
+    }
+
+    @Test
+    public void getFolder_sameVersion_keepsExtractedFiles() throws IOException {
+        BookCache cache = new BookCache(folder.getRoot(), 3, 1000000);
+        File first = cache.getFolder("/books/a.bloompub", 100, 200);
+        File index = addFile(first, "index.htm", 10);
+        assertThat(cache.getFolder("/books/a.bloompub", 100, 200), is(first));
+        assertThat(index.exists(), is(true));
+    }
+
+    @Test
+    public void getFolder_changedBook_discardsOldVersion() throws IOException {
+        BookCache cache = new BookCache(folder.getRoot(), 3, 1000000);
+        File first = cache.getFolder("/books/a.bloompub", 100, 200);
+        addFile(first, "index.htm", 10);
+        File second = cache.getFolder("/books/a.bloompub", 100, 300);
+        assertThat(second.equals(first), is(false));
+        assertThat(first.exists(), is(false));
+        assertThat(new File(second, "index.htm").exists(), is(false));
+    }
+
+    @Test
+    public void getFolder_tooManyBooks_evictsLeastRecentlyUsed() {
+        BookCache cache = new BookCache(folder.getRoot(), 2, 1000000);
+        File a = cache.getFolder("/books/a.bloompub", 1, 1);
+        a.setLastModified(1000000);
+        File b = cache.getFolder("/books/b.bloompub", 1, 1);
+        b.setLastModified(2000000);
+        File c = cache.getFolder("/books/c.bloompub", 1, 1);
+        assertThat(a.exists(), is(false));
+        assertThat(b.exists(), is(true));
+        assertThat(c.exists(), is(true));
+    }
+
+    @Test
+    public void getFolder_tooManyBytes_evictsOthersButNotTheNewBook() throws IOException {
+        BookCache cache = new BookCache(folder.getRoot(), 10, 1000);
+        File a = cache.getFolder("/books/a.bloompub", 1, 1);
+        addFile(a, "video.mp4", 600);
+        File b = cache.getFolder("/books/b.bloompub", 1, 1);
+        addFile(b, "video.mp4", 2000);
+        File c = cache.getFolder("/books/c.bloompub", 1, 1);
+        assertThat(c.exists(), is(true));
+        assertThat(b.exists(), is(false));
+        assertThat(a.exists(), is(false));
+        // A book too big for the budget on its own is still kept while it is the one wanted.
+        File d = cache.getFolder("/books/d.bloompub", 1, 1);
+        addFile(d, "video.mp4", 5000);
+        assertThat(cache.getFolder("/books/d.bloompub", 1, 1).exists(), is(true));
+        assertThat(new File(d, "video.mp4").exists(), is(true));
+    }
+
+    @Test
+    public void remove_deletesAllVersionsOfBook() {
+        BookCache cache = new BookCache(folder.getRoot(), 3, 1000000);
+        File a = cache.getFolder("/books/a.bloompub", 1, 1);
+        File b = cache.getFolder("/books/b.bloompub", 1, 1);
+        cache.remove("/books/a.bloompub");
+        assertThat(a.exists(), is(false));
+        assertThat(b.exists(), is(true));
+    }
+}
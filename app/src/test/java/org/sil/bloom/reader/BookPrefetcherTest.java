@@ -0,0 +1,53 @@
+package org.sil.bloom.reader;
+
+import org.junit.Test;
+import org.sil.bloom.reader.models.BookOrShelf;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+
+public class BookPrefetcherTest {
+    private final List<BookOrShelf> mShelf = Arrays.asList(
+            new BookOrShelf("/books/Animals.bloomshelf"),
+            new BookOrShelf("/books/a.bloompub"),
+            new BookOrShelf("/books/b.bloompub"),
+            new BookOrShelf("/books/c.bloompub"),
+            new BookOrShelf("/books/d.bloompub"));
+
+    @Test
+    public void chooseNextBook_nothingOpened_choosesFirstBook() {
+        BookOrShelf next = BookPrefetcher.chooseNextBook(mShelf, Collections.<String>emptyList());
+        assertThat(next.pathOrUri, is("/books/a.bloompub"));
+    }
+
+    @Test
+    public void chooseNextBook_afterOpeningBook_choosesFollowingBook() {
+        BookOrShelf next = BookPrefetcher.chooseNextBook(mShelf, Collections.singletonList("/books/b.bloompub"));
+        assertThat(next.pathOrUri, is("/books/c.bloompub"));
+    }
+
+    @Test
+    public void chooseNextBook_skipsBooksOpenedRecently() {
+        BookOrShelf next = BookPrefetcher.chooseNextBook(mShelf,
+                Arrays.asList("/books/b.bloompub", "/books/c.bloompub"));
+        assertThat(next.pathOrUri, is("/books/d.bloompub"));
+    }
+
+    @Test
+    public void chooseNextBook_lastBookOpened_choosesNothing() {
+        assertThat(BookPrefetcher.chooseNextBook(mShelf, Collections.singletonList("/books/d.bloompub")), is(nullValue()));
+    }
+
+    @Test
+    public void chooseNextBook_latestBookNotInList_goesOnFromMostRecentInList() {
+        BookOrShelf next = BookPrefetcher.chooseNextBook(mShelf,
+                Arrays.asList("/elsewhere/x.bloompub", "/books/a.bloompub"));
+        // The most recent book that is in this list is a, so we go on from there.
+        assertThat(next.pathOrUri, is("/books/b.bloompub"));
+    }
+}
@@ -0,0 +1,100 @@
+package org.sil.bloom.reader;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Predicate;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertTrue;
+
+public class BufferPoolTest {
+    private static final int BOOK_COUNT = 12;
+    private static final int VIDEO_SIZE = 4 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void acquire_afterRelease_reusesBuffer() {
+        byte[] first = BufferPool.acquire();
+        assertThat(first.length, is(BufferPool.BUFFER_SIZE));
+        BufferPool.release(first);
+        long allocations = BufferPool.getAllocationCount();
+        byte[] second = BufferPool.acquire();
+        BufferPool.release(second);
+        assertThat(BufferPool.getAllocationCount(), is(allocations));
+    }
+
+    @Test
+    public void release_foreignBuffer_isIgnored() {
+        BufferPool.release(new byte[100]);
+        assertThat(BufferPool.acquire().length, is(BufferPool.BUFFER_SIZE));
+    }
+
+    // Validating every book in a library folder, as the library load does, should allocate only a
+    // small, fixed amount however big the books' media files are.
+    @Test
+    public void validateLibrary_allocationIsBounded() throws IOException {
+        assertLibraryCheckAllocationIsBounded(book -> IOUtilities.validateZipFile(book,
+                IOUtilities.CHECK_BLOOMPUB, new TextFileContent("meta.json"), new AudioScan()));
+    }
+
+    // The same for the thorough check, which reads every byte of every entry.
+    @Test
+    public void deepCheckOfLibrary_allocationIsBounded() throws IOException {
+        assertLibraryCheckAllocationIsBounded(book -> IOUtilities.deepCheckZipFile(book,
+                IOUtilities.CHECK_BLOOMPUB, new TextFileContent("meta.json"), new AudioScan()));
+    }
+
+    private void assertLibraryCheckAllocationIsBounded(Predicate<File> check) throws IOException {
+        com.sun.management.ThreadMXBean threads = getThreadBean();
+        Assume.assumeTrue(threads != null);
+        File library = folder.newFolder("library");
+        for (int i = 0; i < BOOK_COUNT; i++)
+            makeBook(library, "book" + i + ".bloompub");
+        File[] books = library.listFiles((dir, name) -> IOUtilities.isBloomPubFile(name));
+        assertThat(books.length, is(BOOK_COUNT));
+        // Once to get the classes loaded and the pool primed.
+        assertTrue(check.test(books[0]));
+
+        long threadId = Thread.currentThread().getId();
+        long allocationsBefore = BufferPool.getAllocationCount();
+        long bytesBefore = threads.getThreadAllocatedBytes(threadId);
+        for (File book : books)
+            assertTrue(book.getName(), check.test(book));
+        long allocated = threads.getThreadAllocatedBytes(threadId) - bytesBefore;
+
+        assertThat(BufferPool.getAllocationCount(), is(allocationsBefore));
+        // Reading each video into a buffer of its own would be BOOK_COUNT * VIDEO_SIZE, and even a
+        // buffer of our own per book would be BOOK_COUNT * BUFFER_SIZE.
+        assertTrue("allocated " + allocated + " bytes", allocated < BOOK_COUNT * BufferPool.BUFFER_SIZE / 4);
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return null;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported())
+            return null;
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+
+    private static void makeBook(File directory, String name) throws IOException {
+        byte[] meta = "{\"title\":\"Test\"}".getBytes(StandardCharsets.UTF_8);
+        try (ZipOutputStream zip = TestFiles.startBook(new File(directory, name), meta, true)) {
+            TestFiles.writeEntry(zip, "video/movie.mp4", new byte[VIDEO_SIZE], ZipEntry.STORED);
+        }
+    }
+}
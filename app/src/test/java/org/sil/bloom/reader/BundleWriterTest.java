@@ -0,0 +1,68 @@
+package org.sil.bloom.reader;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class BundleWriterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File makeFile(String name, int length) throws IOException {
+        return TestFiles.makeFile(new File(folder.getRoot(), name), length);
+    }
+
+    private static final String LONG_NAME = "A book with a title long enough that it does not fit in the name field of a tar header at all";
+
+    @Test
+    public void write_makesTarWithEveryFileAndExactlyThePredictedSize() throws IOException {
+        File[] files = {
+                makeFile("short.bloompub", 70000),
+                makeFile(LONG_NAME + ".bloompub", 1234),
+                makeFile("shelf.bloomshelf", 2)};
+        File bundle = new File(folder.getRoot(), "test.bloombundle");
+        final long[] lastProgress = new long[2];
+        try (FileOutputStream output = new FileOutputStream(bundle)) {
+            new BundleWriter(output.getChannel(), (written, total) -> {
+                lastProgress[0] = written;
+                lastProgress[1] = total;
+                return true;
+            }).write(files);
+        }
+        assertThat(bundle.length(), is(BundleWriter.getBundleSize(files)));
+        assertThat(lastProgress[0], is(bundle.length()));
+        assertThat(lastProgress[1], is(bundle.length()));
+
+        String[] expectedNames = {"short.bloomd", LONG_NAME + ".bloomd", "shelf.bloomshelf"};
+        try (TarArchiveInputStream input = new TarArchiveInputStream(new FileInputStream(bundle))) {
+            for (int i = 0; i < files.length; i++) {
+                TarArchiveEntry entry = input.getNextTarEntry();
+                assertThat(entry.getName(), is(expectedNames[i]));
+                assertThat(Arrays.equals(IOUtils.toByteArray(input), FileUtils.readFileToByteArray(files[i])), is(true));
+            }
+            assertThat(input.getNextTarEntry() == null, is(true));
+        }
+    }
+
+    @Test(expected = InterruptedIOException.class)
+    public void write_listenerSaysStop_throws() throws IOException {
+        File[] files = {makeFile("a.bloompub", 5000)};
+        try (FileOutputStream output = new FileOutputStream(new File(folder.getRoot(), "test.bloombundle"))) {
+            new BundleWriter(output.getChannel(), (written, total) -> false).write(files);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.sil.bloom.reader;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class ChannelRangeInputStreamTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File makeFile(int length) throws IOException {
+        return TestFiles.makeFile(folder.newFile("book.bloompub"), length);
+    }
+
+    @Test
+    public void read_givesJustTheRange() throws IOException {
+        File file = makeFile(10000);
+        byte[] expected = Arrays.copyOfRange(FileUtils.readFileToByteArray(file), 1000, 4000);
+        try (FileInputStream input = new FileInputStream(file)) {
+            ChannelRangeInputStream range = new ChannelRangeInputStream(input.getChannel(), 1000, 3000);
+            assertThat(Arrays.equals(IOUtils.toByteArray(range), expected), is(true));
+            assertThat(range.read(), is(-1));
+        }
+    }
+
+    @Test
+    public void skip_movesWithinTheRangeAndStopsAtItsEnd() throws IOException {
+        File file = makeFile(10000);
+        byte[] content = FileUtils.readFileToByteArray(file);
+        try (FileInputStream input = new FileInputStream(file)) {
+            ChannelRangeInputStream range = new ChannelRangeInputStream(input.getChannel(), 100, 900);
+            assertThat(range.read(), is(content[100] & 0xFF));
+            assertThat(range.skip(500), is(500L));
+            assertThat(range.read(), is(content[601] & 0xFF));
+            assertThat(range.skip(5000), is(398L));
+            assertThat(range.read(), is(-1));
+        }
+    }
+
+    @Test
+    public void readAndSkip_rangeBiggerThanTheBuffer() throws IOException {
+        int start = 1000;
+        int length = 2 * BufferPool.BUFFER_SIZE + 500;
+        File file = makeFile(start + length + 1000);
+        byte[] content = FileUtils.readFileToByteArray(file);
+        try (FileInputStream input = new FileInputStream(file)) {
+            ChannelRangeInputStream range = new ChannelRangeInputStream(input.getChannel(), start, length);
+            byte[] expected = Arrays.copyOfRange(content, start, start + length);
+            assertThat(Arrays.equals(IOUtils.toByteArray(range), expected), is(true));
+            range.close();
+            // Skip from the middle of one buffer's worth to well into the next.
+            range = new ChannelRangeInputStream(input.getChannel(), start, length);
+            assertThat(range.read(), is(content[start] & 0xFF));
+            assertThat(range.skip(BufferPool.BUFFER_SIZE + 10), is((long) BufferPool.BUFFER_SIZE + 10));
+            assertThat(range.read(), is(content[start + BufferPool.BUFFER_SIZE + 11] & 0xFF));
+            range.close();
+            assertThat(range.read(), is(-1));
+        }
+    }
+}
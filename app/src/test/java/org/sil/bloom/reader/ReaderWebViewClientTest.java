@@ -0,0 +1,53 @@
+package org.sil.bloom.reader;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+
+public class ReaderWebViewClientTest {
+
+    @Test
+    public void parseRange_noHeader_returnsNull() {
+        assertThat(ReaderWebViewClient.parseRange(null, 1000), is(nullValue()));
+        assertThat(ReaderWebViewClient.parseRange("items=0-10", 1000), is(nullValue()));
+    }
+
+    @Test
+    public void parseRange_startAndEnd_returnsRange() {
+        assertThat(ReaderWebViewClient.parseRange("bytes=100-199", 1000), is(new long[]{100, 199}));
+    }
+
+    @Test
+    public void parseRange_openEnded_runsToEndOfEntity() {
+        assertThat(ReaderWebViewClient.parseRange("bytes=0-", 1000), is(new long[]{0, 999}));
+        // An end past the end of the entity is clipped.
+        assertThat(ReaderWebViewClient.parseRange("bytes=900-5000", 1000), is(new long[]{900, 999}));
+    }
+
+    @Test
+    public void parseRange_suffix_returnsLastBytes() {
+        assertThat(ReaderWebViewClient.parseRange("bytes=-100", 1000), is(new long[]{900, 999}));
+        assertThat(ReaderWebViewClient.parseRange("bytes=-5000", 1000), is(new long[]{0, 999}));
+    }
+
+    @Test
+    public void parseRange_multipleRanges_usesFirst() {
+        assertThat(ReaderWebViewClient.parseRange("bytes=0-9, 20-29", 1000), is(new long[]{0, 9}));
+    }
+
+    @Test
+    public void parseRange_unsatisfiable_returnsEmpty() {
+        assertThat(ReaderWebViewClient.parseRange("bytes=1000-", 1000).length, is(0));
+        assertThat(ReaderWebViewClient.parseRange("bytes=50-10", 1000).length, is(0));
+    }
+
+    @Test
+    public void getMimeType_bookMedia_returnsSpecificTypes() {
+        assertThat(ReaderWebViewClient.getMimeType("audio/i123.mp3"), is("audio/mpeg"));
+        assertThat(ReaderWebViewClient.getMimeType("video/abc.MP4"), is("video/mp4"));
+        assertThat(ReaderWebViewClient.getMimeType("basePage.css"), is("text/css"));
+        assertThat(ReaderWebViewClient.getMimeType("noExtension"), is("application/octet-stream"));
+    }
+}
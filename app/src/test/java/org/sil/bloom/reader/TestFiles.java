@@ -0,0 +1,71 @@
+package org.sil.bloom.reader;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+// The files and zips our tests make to work on, usually in a TemporaryFolder.
+public class TestFiles {
+    // Make a file of the given length whose bytes aren't all the same, so a test can tell if
+    // something reads the wrong part of it.
+    public static File makeFile(File file, int length) throws IOException {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++)
+            content[i] = (byte) (i * 7);
+        FileUtils.writeByteArrayToFile(file, content);
+        return file;
+    }
+
+    // Make a zip with the given entries; contents[i] is null for the entry named names[i]
+    // to be left out.
+    public static File makeZip(File file, String[] names, String[] contents) throws IOException {
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file))) {
+            for (int i = 0; i < names.length; i++) {
+                if (contents[i] == null)
+                    continue;
+                zip.putNextEntry(new ZipEntry(names[i]));
+                zip.write(contents[i].getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+        return file;
+    }
+
+    // Start a book-like zip with meta.json, an index.htm and (if includeCss) a basePage.css. The
+    // caller adds any media entries with writeEntry() and closes it.
+    public static ZipOutputStream startBook(File file, byte[] metaJson, boolean includeCss) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            writeEntry(zip, "meta.json", metaJson, ZipEntry.DEFLATED);
+            writeEntry(zip, "index.htm", "<html><body><div class='bloom-page'></div></body></html>".getBytes(StandardCharsets.UTF_8), ZipEntry.DEFLATED);
+            if (includeCss)
+                writeEntry(zip, "basePage.css", "body { margin: 0; }".getBytes(StandardCharsets.UTF_8), ZipEntry.DEFLATED);
+        } catch (IOException e) {
+            zip.close();
+            throw e;
+        }
+        return zip;
+    }
+
+    // Add an entry to a zip, either DEFLATED or (as mp3s and videos normally are) STORED.
+    public static void writeEntry(ZipOutputStream zip, String name, byte[] data, int method) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(method);
+        if (method == ZipEntry.STORED) {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            entry.setSize(data.length);
+            entry.setCompressedSize(data.length);
+            entry.setCrc(crc.getValue());
+        }
+        zip.putNextEntry(entry);
+        zip.write(data);
+        zip.closeEntry();
+    }
+}
@@ -0,0 +1,30 @@
+package org.sil.bloom.reader;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class ThumbnailCacheTest {
+    @Test
+    public void calculateInSampleSize_largeImage_keepsAtLeastWantedSize() {
+        // 1000/8 = 125 is still at least 100, but 1000/16 = 62 is not.
+        assertThat(ThumbnailCache.calculateInSampleSize(1000, 1000, 100, 100), is(8));
+    }
+
+    @Test
+    public void calculateInSampleSize_limitedBySmallerDimension() {
+        assertThat(ThumbnailCache.calculateInSampleSize(1000, 250, 100, 100), is(2));
+    }
+
+    @Test
+    public void calculateInSampleSize_smallImage_isOne() {
+        assertThat(ThumbnailCache.calculateInSampleSize(150, 150, 100, 100), is(1));
+        assertThat(ThumbnailCache.calculateInSampleSize(50, 50, 100, 100), is(1));
+    }
+
+    @Test
+    public void calculateInSampleSize_unknownWantedSize_isOne() {
+        assertThat(ThumbnailCache.calculateInSampleSize(1000, 1000, 0, 0), is(1));
+    }
+}
@@ -0,0 +1,186 @@
+package org.sil.bloom.reader;
+
+import android.util.Log;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+
+// Tests the quick (header-only) and deep (unzip everything) validity checks on generated books
+// like the audio/video heavy books we see in the field.
+public class ZipValidationTest {
+    private static final int BOOK_SIZE = 8 * 1024 * 1024;
+    // About the size of the audio/video heavy books we see in the field.
+    private static final int BENCHMARK_BOOK_SIZE = 50 * 1024 * 1024;
+    private static final String META_JSON = "{\"title\":\"Benchmark\",\"tags\":[\"bookshelf:test\"]}";
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static File sBigBook;
+
+    @BeforeClass
+    public static void makeBigBook() throws IOException {
+        sBigBook = makeBook("big.bloompub", BOOK_SIZE, true);
+    }
+
+    @Test
+    public void quickCheck_validBook_isValidAndReadsMetaJson() {
+        TextFileContent meta = new TextFileContent("meta.json");
+        int result = IOUtilities.quickCheckZipFile(sBigBook, IOUtilities.CHECK_BLOOMPUB, meta, null);
+        assertThat(result, is(IOUtilities.ZIP_CHECK_VALID));
+        assertThat(meta.Content, is(META_JSON));
+    }
+
+    @Test
+    public void quickCheck_noCss_isInvalid() throws IOException {
+        File book = makeBook("nocss.bloompub", 1024 * 1024, false);
+        assertThat(IOUtilities.quickCheckZipFile(book, IOUtilities.CHECK_BLOOMPUB, null, null), is(IOUtilities.ZIP_CHECK_INVALID));
+        assertThat(IOUtilities.quickCheckZipFile(book, IOUtilities.CHECK_ZIP, null, null), is(IOUtilities.ZIP_CHECK_VALID));
+    }
+
+    @Test
+    public void quickCheck_truncatedBook_isInvalid() throws IOException {
+        File book = makeBook("truncated.bloompub", 1024 * 1024, true);
+        try (RandomAccessFile file = new RandomAccessFile(book, "rw")) {
+            file.setLength(file.length() / 2);
+        }
+        assertThat(IOUtilities.quickCheckZipFile(book, IOUtilities.CHECK_BLOOMPUB, null, null), is(IOUtilities.ZIP_CHECK_INVALID));
+        assertThat(IOUtilities.deepCheckZipFile(book, IOUtilities.CHECK_BLOOMPUB, null, null), is(false));
+    }
+
+    @Test
+    public void quickCheck_damagedLocalHeader_isInvalid() throws IOException {
+        File book = makeBook("damaged.bloompub", 1024 * 1024, true);
+        try (RandomAccessFile file = new RandomAccessFile(book, "rw")) {
+            // The first local header is at the start of the file; clobber its signature.
+            file.seek(0);
+            file.write(new byte[]{0, 0, 0, 0});
+        }
+        assertThat(IOUtilities.quickCheckZipFile(book, IOUtilities.CHECK_BLOOMPUB, null, null), is(IOUtilities.ZIP_CHECK_INVALID));
+    }
+
+    @Test
+    public void quickCheck_damagedMetaJson_isInvalid() throws IOException {
+        File book = makeBook("badmeta.bloompub", 1024 * 1024, true);
+        long dataOffset;
+        try (ZipCentralDirectory directory = ZipCentralDirectory.open(book)) {
+            dataOffset = directory.getDataOffset(directory.getEntry("meta.json"));
+        }
+        // Flip bits in the middle of the compressed meta.json; the headers all stay intact.
+        try (RandomAccessFile file = new RandomAccessFile(book, "rw")) {
+            file.seek(dataOffset + 5);
+            int b = file.read();
+            file.seek(dataOffset + 5);
+            file.write(b ^ 0x55);
+        }
+        TextFileContent meta = new TextFileContent("meta.json");
+        assertThat(IOUtilities.quickCheckZipFile(book, IOUtilities.CHECK_BLOOMPUB, meta, null), is(IOUtilities.ZIP_CHECK_INVALID));
+    }
+
+    @Test
+    public void quickCheck_notAZipFile_isInvalid() throws IOException {
+        File notZip = folder.newFile("notzip.bloompub");
+        Files.write(notZip.toPath(), "This is not a zip file at all".getBytes(StandardCharsets.UTF_8));
+        assertThat(IOUtilities.quickCheckZipFile(notZip, IOUtilities.CHECK_ZIP, null, null), is(IOUtilities.ZIP_CHECK_INVALID));
+    }
+
+    @Test
+    public void quickCheck_oversizedMetaJson_isInvalid() throws IOException {
+        // Compresses to almost nothing, so the book is small, but we shouldn't try to read it.
+        byte[] bigMeta = new byte[IOUtilities.MAX_DESIRED_FILE_SIZE + 1];
+        Arrays.fill(bigMeta, (byte) ' ');
+        File book = folder.newFile("bigmeta.bloompub");
+        TestFiles.startBook(book, bigMeta, true).close();
+        TextFileContent meta = new TextFileContent("meta.json");
+        assertThat(IOUtilities.quickCheckZipFile(book, IOUtilities.CHECK_BLOOMPUB, meta, null), is(IOUtilities.ZIP_CHECK_INVALID));
+        assertThat(meta.Content, is(nullValue()));
+        assertThat(IOUtilities.deepCheckZipFile(book, IOUtilities.CHECK_BLOOMPUB, meta, null), is(false));
+        assertThat(meta.Content, is(nullValue()));
+    }
+
+    @Test
+    public void bothChecks_metaJsonBiggerThanABuffer_readInFull() throws IOException {
+        StringBuilder bigMeta = new StringBuilder("{\"title\":\"");
+        while (bigMeta.length() < BufferPool.BUFFER_SIZE * 2 + 100)
+            bigMeta.append("Long title ");
+        bigMeta.append("\"}");
+        File book = folder.newFile("longmeta.bloompub");
+        TestFiles.startBook(book, bigMeta.toString().getBytes(StandardCharsets.UTF_8), true).close();
+        TextFileContent meta = new TextFileContent("meta.json");
+        assertThat(IOUtilities.quickCheckZipFile(book, IOUtilities.CHECK_BLOOMPUB, meta, null), is(IOUtilities.ZIP_CHECK_VALID));
+        assertThat(meta.Content, is(bigMeta.toString()));
+        meta = new TextFileContent("meta.json");
+        assertThat(IOUtilities.deepCheckZipFile(book, IOUtilities.CHECK_BLOOMPUB, meta, null), is(true));
+        assertThat(meta.Content, is(bigMeta.toString()));
+    }
+
+    @Test
+    public void deepCheck_agreesWithQuickCheckOnValidBook() {
+        TextFileContent meta = new TextFileContent("meta.json");
+        assertThat(IOUtilities.deepCheckZipFile(sBigBook, IOUtilities.CHECK_BLOOMPUB, meta, null), is(true));
+        assertThat(meta.Content, is(META_JSON));
+    }
+
+    // Compares the time the two checks take. This only runs when asked for (./gradlew test
+    // -Pbenchmarks), and just logs the times, since they depend too much on the machine (and on
+    // what else it is doing) to assert anything about.
+    @Test
+    public void benchmark_quickCheckAgainstDeepCheck() throws IOException {
+        Assume.assumeTrue(Boolean.getBoolean("bloom.benchmarks"));
+        final int runs = 5;
+        File book = makeBook("benchmark.bloompub", BENCHMARK_BOOK_SIZE, true);
+        // Warm up both paths so we aren't just measuring class loading.
+        assertThat(IOUtilities.quickCheckZipFile(book, IOUtilities.CHECK_BLOOMPUB, null, null), is(IOUtilities.ZIP_CHECK_VALID));
+        assertThat(IOUtilities.deepCheckZipFile(book, IOUtilities.CHECK_BLOOMPUB, null, null), is(true));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; ++i)
+            IOUtilities.quickCheckZipFile(book, IOUtilities.CHECK_BLOOMPUB, new TextFileContent("meta.json"), null);
+        long quickNanos = (System.nanoTime() - start) / runs;
+
+        start = System.nanoTime();
+        for (int i = 0; i < runs; ++i)
+            IOUtilities.deepCheckZipFile(book, IOUtilities.CHECK_BLOOMPUB, new TextFileContent("meta.json"), null);
+        long deepNanos = (System.nanoTime() - start) / runs;
+
+        Log.i("ZipValidationTest", String.format(Locale.ROOT, "Validating a %d MB book: quick check %.2f ms, deep check %.2f ms",
+                book.length() / (1024 * 1024), quickNanos / 1e6, deepNanos / 1e6));
+    }
+
+    // Make a book-like zip file of roughly the given size: the usual html, css and meta.json files,
+    // plus "audio" (stored, as mp3s normally are) and "images" (deflated) filled with random bytes.
+    private static File makeBook(String name, int approximateSize, boolean includeCss) throws IOException {
+        File book = folder.newFile(name);
+        Random random = new Random(42);
+        byte[] media = new byte[1024 * 1024];
+        try (ZipOutputStream zip = TestFiles.startBook(book, META_JSON.getBytes(StandardCharsets.UTF_8), includeCss)) {
+            int written = 0;
+            for (int i = 0; written < approximateSize; ++i) {
+                random.nextBytes(media);
+                boolean audio = i % 4 != 0;
+                String entryName = audio ? "audio/sentence" + i + ".mp3" : "images/picture" + i + ".jpg";
+                TestFiles.writeEntry(zip, entryName, media, audio ? ZipEntry.STORED : ZipEntry.DEFLATED);
+                written += media.length;
+            }
+        }
+        return book;
+    }
+}
@@ -0,0 +1,98 @@
+package org.sil.bloom.reader.models;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+
+public class BookCatalogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BookCatalog.Entry makeEntry(String path, long size, long modified) {
+        return new BookCatalog.Entry(path, size, modified, true, "The Title", "Local-Community",
+                "1234-5678", Arrays.asList("level1", "animals"));
+    }
+
+    @Test
+    public void lookup_unchangedFile_returnsEntry() {
+        BookCatalog catalog = new BookCatalog(new File(folder.getRoot(), "catalog"));
+        catalog.put(makeEntry("/books/a.bloompub", 100, 200));
+        assertThat(catalog.lookup("/books/a.bloompub", 100, 200).title, is("The Title"));
+    }
+
+    @Test
+    public void lookup_changedSizeOrTime_returnsNull() {
+        BookCatalog catalog = new BookCatalog(new File(folder.getRoot(), "catalog"));
+        catalog.put(makeEntry("/books/a.bloompub", 100, 200));
+        assertThat(catalog.lookup("/books/a.bloompub", 101, 200), is(nullValue()));
+        assertThat(catalog.lookup("/books/a.bloompub", 100, 201), is(nullValue()));
+        assertThat(catalog.lookup("/books/b.bloompub", 100, 200), is(nullValue()));
+    }
+
+    @Test
+    public void saveAndLoad_roundTripsEverything() throws IOException {
+        File file = new File(folder.getRoot(), "catalog");
+        BookCatalog catalog = new BookCatalog(file);
+        BookCatalog.Entry entry = makeEntry("/books/a.bloompub", 100, 200);
+        catalog.put(entry);
+        catalog.setHasAudio(entry, true);
+        catalog.setThumbnailState(entry, BookCatalog.THUMBNAIL_NONE);
+        catalog.put(BookCatalog.Entry.forInvalidFile("content://x/bad.bloompub", 5, 6));
+        catalog.saveIfDirty();
+
+        BookCatalog reloaded = new BookCatalog(file);
+        reloaded.load();
+        assertThat(reloaded.size(), is(2));
+        BookCatalog.Entry result = reloaded.lookup("/books/a.bloompub", 100, 200);
+        assertThat(result.valid, is(true));
+        assertThat(result.brandingProjectName, is("Local-Community"));
+        assertThat(result.bookInstanceId, is("1234-5678"));
+        assertThat(result.shelves, is(Arrays.asList("level1", "animals")));
+        assertThat(result.getHasAudio(), is(true));
+        assertThat(result.getThumbnailState(), is(BookCatalog.THUMBNAIL_NONE));
+        BookCatalog.Entry bad = reloaded.lookup("content://x/bad.bloompub", 5, 6);
+        assertThat(bad.valid, is(false));
+        assertThat(bad.title, is(nullValue()));
+        assertThat(bad.getHasAudio(), is(nullValue()));
+    }
+
+    @Test
+    public void put_sameVersion_keepsLazilyLearnedState() {
+        BookCatalog catalog = new BookCatalog(new File(folder.getRoot(), "catalog"));
+        BookCatalog.Entry entry = makeEntry("/books/a.bloompub", 100, 200);
+        catalog.put(entry);
+        catalog.setHasAudio(entry, true);
+        catalog.put(makeEntry("/books/a.bloompub", 100, 200));
+        assertThat(catalog.get("/books/a.bloompub").getHasAudio(), is(true));
+        // but not if the book has changed
+        catalog.put(makeEntry("/books/a.bloompub", 150, 300));
+        assertThat(catalog.get("/books/a.bloompub").getHasAudio(), is(nullValue()));
+    }
+
+    @Test
+    public void retainOnly_dropsBooksNotSeen() {
+        BookCatalog catalog = new BookCatalog(new File(folder.getRoot(), "catalog"));
+        catalog.put(makeEntry("/books/a.bloompub", 100, 200));
+        catalog.put(makeEntry("/books/b.bloompub", 100, 200));
+        catalog.retainOnly(Collections.singleton("/books/b.bloompub"));
+        assertThat(catalog.size(), is(1));
+        assertThat(catalog.get("/books/a.bloompub"), is(nullValue()));
+    }
+
+    @Test
+    public void makeBook_restoresMetadata() {
+        BookOrShelf book = makeEntry("/books/a.bloompub", 100, 200).makeBook();
+        assertThat(book.name, is("a"));
+        assertThat(book.title, is("The Title"));
+        assertThat(book.isBookInShelf("animals"), is(true));
+    }
+}
@@ -2,7 +2,11 @@ package org.sil.bloom.reader.models;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 
 import static org.hamcrest.core.Is.is;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -111,4 +115,31 @@ public class BookCollectionTest {
         BookCollection.setShelvesAndTitleOfBook(shelf);
         assertThat(shelf.isBookInAnyShelf(new HashSet<String>()), is(false));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void showLoadedBooks_insertsInSortedPositionsAndReportsRanges() {
+        BookCollection collection = new BookCollection();
+        final List<String> notices = new ArrayList<>();
+        BookCollection.FilteredListListener listener = new BookCollection.FilteredListListener() {
+            @Override
+            public void onItemsInserted(int position, int count) {
+                notices.add("insert " + position + "," + count);
+            }
+
+            @Override
+            public void onItemRemoved(int position) {
+                notices.add("remove " + position);
+            }
+        };
+        collection.showLoadedBooks(Arrays.asList(new BookOrShelf("/books/d"), new BookOrShelf("/books/b")), listener);
+        BookOrShelf c = new BookOrShelf("/books/c");
+        collection.showLoadedBooks(Arrays.asList(new BookOrShelf("/books/e"), c, new BookOrShelf("/books/a")), listener);
+        // showing the same book again (e.g., after the list was rebuilt) changes nothing
+        collection.showLoadedBooks(Collections.singletonList(c), listener);
+
+        assertThat(collection.size(), is(5));
+        for (int i = 0; i < 5; i++)
+            assertThat(collection.get(i).name, is(String.valueOf((char)('a' + i))));
+        assertThat(notices, is(Arrays.asList("insert 0,2", "insert 0,1", "insert 2,1", "insert 4,1")));
+    }
+}
@@ -0,0 +1,79 @@
+package org.sil.bloom.reader.wifi;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class AcceptFileHandlerTest {
+    private static final byte[] BOOK = "0123456789abcdefghij".getBytes(StandardCharsets.US_ASCII);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private AcceptFileHandler.ChunkResult send(File tempFile, int start, int end, int bodyLength) throws IOException {
+        return AcceptFileHandler.receiveChunk(new ByteArrayInputStream(BOOK, start, bodyLength),
+                tempFile, start, end, BOOK.length, null);
+    }
+
+    @Test
+    public void receiveChunk_piecesInOrder_completeTheBook() throws IOException {
+        File tempFile = new File(folder.getRoot(), "a.bloompub" + AcceptFileHandler.RECEIVING_SUFFIX);
+        AcceptFileHandler.ChunkResult result = send(tempFile, 0, 9, 10);
+        assertThat(result.status, is(AcceptFileHandler.ChunkResult.STORED));
+        assertThat(result.received, is(10L));
+        result = send(tempFile, 10, 19, 10);
+        assertThat(result.status, is(AcceptFileHandler.ChunkResult.COMPLETE));
+        assertThat(Files.readAllBytes(tempFile.toPath()), is(BOOK));
+        assertThat(TransferJournal.journalFileFor(tempFile).exists(), is(false));
+    }
+
+    @Test
+    public void receiveChunk_pieceLongerThanItsRange_isNotKept() throws IOException {
+        File tempFile = new File(folder.getRoot(), "b.bloompub" + AcceptFileHandler.RECEIVING_SUFFIX);
+        send(tempFile, 0, 4, 5);
+        AcceptFileHandler.ChunkResult result = send(tempFile, 5, 9, 8);
+        assertThat(result.status, is(AcceptFileHandler.ChunkResult.WRONG_LENGTH));
+        assertThat(result.received, is(5L));
+        assertThat(tempFile.length(), is(5L));
+        // The sender can carry on from where we really are.
+        assertThat(send(tempFile, 5, 9, 5).status, is(AcceptFileHandler.ChunkResult.STORED));
+    }
+
+    @Test
+    public void receiveChunk_pieceShorterThanItsRange_isNotKept() throws IOException {
+        File tempFile = new File(folder.getRoot(), "c.bloompub" + AcceptFileHandler.RECEIVING_SUFFIX);
+        AcceptFileHandler.ChunkResult result = send(tempFile, 0, 9, 6);
+        assertThat(result.status, is(AcceptFileHandler.ChunkResult.WRONG_LENGTH));
+        assertThat(result.received, is(0L));
+        assertThat(tempFile.length(), is(0L));
+    }
+
+    @Test
+    public void deleteAbandonedTransfers_removesOnlyOldLeftovers() throws IOException {
+        File oldPartial = folder.newFile("old.bloompub" + AcceptFileHandler.RECEIVING_SUFFIX);
+        File oldJournal = TransferJournal.journalFileFor(oldPartial);
+        Files.write(oldJournal.toPath(), "{}".getBytes(StandardCharsets.UTF_8));
+        File newPartial = folder.newFile("new.bloompub" + AcceptFileHandler.RECEIVING_SUFFIX);
+        File oldBook = folder.newFile("old.bloompub");
+        long longAgo = System.currentTimeMillis() - 2 * AcceptFileHandler.ABANDONED_TRANSFER_AGE_MILLIS;
+        oldPartial.setLastModified(longAgo);
+        oldJournal.setLastModified(longAgo);
+        oldBook.setLastModified(longAgo);
+
+        AcceptFileHandler.deleteAbandonedTransfers(folder.getRoot(), AcceptFileHandler.ABANDONED_TRANSFER_AGE_MILLIS);
+
+        assertThat(oldPartial.exists(), is(false));
+        assertThat(oldJournal.exists(), is(false));
+        assertThat(newPartial.exists(), is(true));
+        assertThat(oldBook.exists(), is(true));
+    }
+}
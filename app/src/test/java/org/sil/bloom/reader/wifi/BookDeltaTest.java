@@ -0,0 +1,78 @@
+package org.sil.bloom.reader.wifi;
+
+import org.apache.commons.io.IOUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sil.bloom.reader.TestFiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class BookDeltaTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File makeZip(String fileName, String[] names, String[] contents) throws IOException {
+        return TestFiles.makeZip(folder.newFile(fileName), names, contents);
+    }
+
+    private static String deltaList(String... names) {
+        JSONArray entries = new JSONArray();
+        for (String name : names)
+            entries.put(name);
+        return "{\"entries\":" + entries.toString() + "}";
+    }
+
+    private static String readEntry(ZipFile zip, String name) throws IOException {
+        ZipEntry entry = zip.getEntry(name);
+        return entry == null ? null : IOUtils.toString(zip.getInputStream(entry), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void getManifest_listsEveryEntryWithItsCrc() throws Exception {
+        File book = makeZip("a.bloompub", new String[] {"index.htm", "audio/a.mp3"}, new String[] {"<html/>", "sound"});
+        JSONObject manifest = BookDelta.getManifest(book);
+        JSONArray entries = manifest.getJSONArray("entries");
+        assertThat(entries.length(), is(2));
+        assertThat(entries.getJSONObject(1).getString("name"), is("audio/a.mp3"));
+        try (ZipFile zip = new ZipFile(book)) {
+            assertThat(entries.getJSONObject(1).getLong("crc"), is(zip.getEntry("audio/a.mp3").getCrc()));
+        }
+        assertThat(manifest.getString("base"), is(BookDelta.getBaseToken(book)));
+    }
+
+    @Test
+    public void apply_takesChangedEntriesFromDeltaAndTheRestFromOldBook() throws IOException {
+        File oldBook = makeZip("old.bloompub", new String[] {"index.htm", "audio/a.mp3", "gone.png"},
+                new String[] {"old text", "sound", "picture"});
+        File delta = makeZip("delta", new String[] {BookDelta.DELTA_ENTRY_NAME, "index.htm", "new.png"},
+                new String[] {deltaList("index.htm", "audio/a.mp3", "new.png"), "new text", "new picture"});
+        File output = new File(folder.getRoot(), "new.bloompub");
+        BookDelta.apply(oldBook, delta, output);
+        try (ZipFile zip = new ZipFile(output)) {
+            assertThat(zip.size(), is(3));
+            assertThat(readEntry(zip, "index.htm"), is("new text"));
+            assertThat(readEntry(zip, "audio/a.mp3"), is("sound"));
+            assertThat(readEntry(zip, "new.png"), is("new picture"));
+            assertThat(readEntry(zip, "gone.png") == null, is(true));
+        }
+    }
+
+    @Test(expected = ZipException.class)
+    public void apply_entryMissingFromBoth_throws() throws IOException {
+        File oldBook = makeZip("old.bloompub", new String[] {"index.htm"}, new String[] {"old text"});
+        File delta = makeZip("delta", new String[] {BookDelta.DELTA_ENTRY_NAME},
+                new String[] {deltaList("index.htm", "missing.png")});
+        BookDelta.apply(oldBook, delta, new File(folder.getRoot(), "new.bloompub"));
+    }
+}